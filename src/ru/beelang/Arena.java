@@ -0,0 +1,409 @@
+package ru.beelang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Flat representation of the syntax tree.<p/>
+ * Instead of an object per node linked by references and lists, all the nodes of a
+ * program are encoded one after another in a single <code>int[]</code>. A node is
+ * addressed by its offset in that array: the first slot holds the node kind, the
+ * following ones hold its operands, child nodes are referenced by their offsets
+ * (-1 for an absent child). Literal values, the tokens needed for error reporting and
+ * the <code>CallSite</code>s of the calls are kept in side pools and referenced by index.
+ * <p>Children are emitted right after their parent, so walking the tree mostly reads
+ * the array forward. Node layouts:</p>
+ * <ul>
+ * <li><code>LITERAL     literal</code></li>
+ * <li><code>VARIABLE    symbol token kind slot</code></li>
+ * <li><code>ASSIGN      symbol token kind slot value</code></li>
+ * <li><code>INCREMENT   symbol token kind slot delta</code></li>
+ * <li><code>BINARY      token left right operator</code></li>
+ * <li><code>LOGICAL     isOr left right</code></li>
+ * <li><code>UNARY       token right</code></li>
+ * <li><code>CALL        site callee argCount arg*</code></li>
+ * <li><code>ARRAY_INDEX token index</code></li>
+ * <li><code>BLOCK       count stmt*</code></li>
+ * <li><code>EXPRESSION  expr</code></li>
+ * <li><code>FUNCTION    token kind slot locals paramCount bodyCount upvalueCount cellCount
+ *                 paramToken* stmt* upvalue* cell*</code></li>
+ * <li><code>IF          condition then else</code></li>
+ * <li><code>RETURN      value</code></li>
+ * <li><code>VAR         token kind slot initializer</code></li>
+ * <li><code>WHILE       condition body increment</code></li>
+ * <li><code>BREAK</code></li>
+ * <li><code>CONTINUE</code></li>
+ * </ul>
+ * The operator of a <code>BINARY</code> node is one of <code>ADD</code>..<code>NOT_EQUAL</code>,
+ * so it's dispatched on with no look at the token, which is kept for the errors only.
+ * Groupings don't affect evaluation, so they're not encoded at all: the inner expression
+ * takes their place. Kinds, slots, upvalues and numbers of locals come from the <code>Resolver</code>,
+ * so the tree must be resolved before it's encoded.
+ */
+class Arena
+{
+    static final int LITERAL     = 0;
+    static final int VARIABLE    = 1;
+    static final int ASSIGN      = 2;
+    static final int INCREMENT   = 3;
+    static final int BINARY      = 4;
+    static final int LOGICAL     = 5;
+    static final int UNARY       = 6;
+    static final int CALL        = 7;
+    static final int ARRAY_INDEX = 8;
+    static final int BLOCK       = 9;
+    static final int EXPRESSION  = 10;
+    static final int FUNCTION    = 11;
+    static final int IF          = 12;
+    static final int RETURN      = 13;
+    static final int VAR         = 14;
+    static final int WHILE       = 15;
+    static final int BREAK       = 16;
+    static final int CONTINUE    = 17;
+
+    /** Operators of the <code>BINARY</code> nodes, the arithmetic ones come first. */
+    static final int ADD           = 0;
+    static final int SUBTRACT      = 1;
+    static final int MULTIPLY      = 2;
+    static final int DIVIDE        = 3;
+    static final int LESS          = 4;
+    static final int LESS_EQUAL    = 5;
+    static final int GREATER       = 6;
+    static final int GREATER_EQUAL = 7;
+    static final int EQUAL         = 8;
+    static final int NOT_EQUAL     = 9;
+
+    /** Encoded nodes. */
+    final int[] code;
+    final Object[] literals;
+    final Token[] tokens;
+    final CallSite[] sites;
+    /** Offsets of the top-level statements. */
+    final int[] program;
+
+    private Arena(int[] code, Object[] literals, Token[] tokens, CallSite[] sites, int[] program)
+    {
+        this.code = code;
+        this.literals = literals;
+        this.tokens = tokens;
+        this.sites = sites;
+        this.program = program;
+    }
+
+    /**
+     * Encodes the statements produced by the <code>Parser</code>.
+     * @param statements
+     * @return
+     */
+    static Arena of(List<Stmt> statements)
+    {
+        Builder builder = new Builder();
+        int[] program = new int[statements.size()];
+
+        for (int i = 0; i < program.length; ++i)
+            program[i] = builder.encode(statements.get(i));
+
+        return new Arena(Arrays.copyOf(builder.code, builder.size),
+                         builder.literals.toArray(),
+                         builder.tokens.toArray(new Token[0]),
+                         builder.sites.toArray(new CallSite[0]),
+                         program);
+    }
+
+    private static class Builder implements Expr.Visitor<Integer>, Stmt.Visitor<Integer>
+    {
+        private int[] code = new int[256];
+        private int size = 0;
+        private final List<Object> literals = new ArrayList<>();
+        private final List<Token> tokens = new ArrayList<>();
+        private final List<CallSite> sites = new ArrayList<>();
+
+        int encode(Stmt stmt)
+        {
+            return (null == stmt) ? -1 : stmt.accept(this);
+        }
+
+        int encode(Expr expr)
+        {
+            return (null == expr) ? -1 : expr.accept(this);
+        }
+
+        /**
+         * Reserves the node of the given kind with the given number of operand slots.
+         * @return offset of the node.
+         */
+        private int node(int kind, int operands)
+        {
+            if (size + operands + 1 > code.length)
+                code = Arrays.copyOf(code, Math.max(code.length * 2, size + operands + 1));
+
+            int node = size;
+            code[node] = kind;
+            size += operands + 1;
+            return node;
+        }
+
+        private int token(Token token)
+        {
+            tokens.add(token);
+            return tokens.size() - 1;
+        }
+
+        private int literal(Object value)
+        {
+            literals.add(value);
+            return literals.size() - 1;
+        }
+
+        @Override
+        public Integer visitArrayIndexExpr(Expr.ArrayIndex expr)
+        {
+            int node = node(ARRAY_INDEX, 2);
+            code[node + 1] = token(expr.name);
+            int index = encode(expr.index);
+            code[node + 2] = index;
+            return node;
+        }
+
+        @Override
+        public Integer visitIncrementExpr(Expr.Increment expr)
+        {
+            int node = node(INCREMENT, 5);
+            code[node + 1] = expr.symbol;
+            code[node + 2] = token(expr.name);
+            code[node + 3] = expr.kind;
+            code[node + 4] = expr.slot;
+            code[node + 5] = (expr.sign.type == TokenType.INCREMENT) ? 1 : -1;
+            return node;
+        }
+
+        @Override
+        public Integer visitAssignExpr(Expr.Assign expr)
+        {
+            int node = node(ASSIGN, 5);
+            code[node + 1] = expr.symbol;
+            code[node + 2] = token(expr.name);
+            code[node + 3] = expr.kind;
+            code[node + 4] = expr.slot;
+            int value = encode(expr.value);
+            code[node + 5] = value;
+            return node;
+        }
+
+        @Override
+        public Integer visitBinaryExpr(Expr.Binary expr)
+        {
+            int node = node(BINARY, 4);
+            code[node + 1] = token(expr.operator);
+            int left = encode(expr.left);
+            code[node + 2] = left;
+            int right = encode(expr.right);
+            code[node + 3] = right;
+            code[node + 4] = operator(expr.operator.type);
+            return node;
+        }
+
+        private static int operator(TokenType type)
+        {
+            switch (type)
+            {
+                case PLUS:          return ADD;
+                case MINUS:         return SUBTRACT;
+                case STAR:          return MULTIPLY;
+                case SLASH:         return DIVIDE;
+                case LESS:          return LESS;
+                case LESS_EQUAL:    return LESS_EQUAL;
+                case GREATER:       return GREATER;
+                case GREATER_EQUAL: return GREATER_EQUAL;
+                case EQUAL_EQUAL:   return EQUAL;
+                case BANG_EQUAL:    return NOT_EQUAL;
+                default:
+                    throw new IllegalStateException("Unexpected binary operator " + type);
+            }
+        }
+
+        @Override
+        public Integer visitCallExpr(Expr.Call expr)
+        {
+            int count = expr.arguments.size();
+            int node = node(CALL, 3 + count);
+            sites.add(expr.site);
+            code[node + 1] = sites.size() - 1;
+            int callee = encode(expr.callee);
+            code[node + 2] = callee;
+            code[node + 3] = count;
+
+            for (int i = 0; i < count; ++i)
+            {
+                int argument = encode(expr.arguments.get(i));
+                code[node + 4 + i] = argument;
+            }
+            return node;
+        }
+
+        @Override
+        public Integer visitGroupingExpr(Expr.Grouping expr)
+        {
+            return encode(expr.expression);
+        }
+
+        @Override
+        public Integer visitLiteralExpr(Expr.Literal expr)
+        {
+            int node = node(LITERAL, 1);
+            code[node + 1] = literal(expr.value);
+            return node;
+        }
+
+        @Override
+        public Integer visitLogicalExpr(Expr.Logical expr)
+        {
+            int node = node(LOGICAL, 3);
+            code[node + 1] = (expr.operator.type == TokenType.OR) ? 1 : 0;
+            int left = encode(expr.left);
+            code[node + 2] = left;
+            int right = encode(expr.right);
+            code[node + 3] = right;
+            return node;
+        }
+
+        @Override
+        public Integer visitUnaryExpr(Expr.Unary expr)
+        {
+            int node = node(UNARY, 2);
+            code[node + 1] = token(expr.operator);
+            int right = encode(expr.right);
+            code[node + 2] = right;
+            return node;
+        }
+
+        @Override
+        public Integer visitVariableExpr(Expr.Variable expr)
+        {
+            int node = node(VARIABLE, 4);
+            code[node + 1] = expr.symbol;
+            code[node + 2] = token(expr.name);
+            code[node + 3] = expr.kind;
+            code[node + 4] = expr.slot;
+            return node;
+        }
+
+        @Override
+        public Integer visitBlockStmt(Stmt.Block stmt)
+        {
+            int count = stmt.statements.size();
+            int node = node(BLOCK, 1 + count);
+            code[node + 1] = count;
+
+            for (int i = 0; i < count; ++i)
+            {
+                int statement = encode(stmt.statements.get(i));
+                code[node + 2 + i] = statement;
+            }
+            return node;
+        }
+
+        @Override
+        public Integer visitBreakStmt(Stmt.Break stmt)
+        {
+            return node(BREAK, 0);
+        }
+
+        @Override
+        public Integer visitContinueStmt(Stmt.Continue stmt)
+        {
+            return node(CONTINUE, 0);
+        }
+
+        @Override
+        public Integer visitExpressionStmt(Stmt.Expression stmt)
+        {
+            int node = node(EXPRESSION, 1);
+            int expression = encode(stmt.expression);
+            code[node + 1] = expression;
+            return node;
+        }
+
+        @Override
+        public Integer visitFunctionStmt(Stmt.Function stmt)
+        {
+            int params = stmt.params.size();
+            int count = stmt.body.size();
+            int upvalues = stmt.upvalues.length;
+            int cells = stmt.cells.length;
+            int node = node(FUNCTION, 8 + params + count + upvalues + cells);
+            code[node + 1] = token(stmt.name);
+            code[node + 2] = stmt.kind;
+            code[node + 3] = stmt.slot;
+            code[node + 4] = stmt.locals;
+            code[node + 5] = params;
+            code[node + 6] = count;
+            code[node + 7] = upvalues;
+            code[node + 8] = cells;
+
+            int at = node + 9;
+            for (int i = 0; i < params; ++i)
+                code[at + i] = token(stmt.params.get(i));
+
+            at += params;
+            for (int i = 0; i < count; ++i)
+            {
+                int statement = encode(stmt.body.get(i));
+                code[at + i] = statement;
+            }
+
+            at += count;
+            System.arraycopy(stmt.upvalues, 0, code, at, upvalues);
+            System.arraycopy(stmt.cells, 0, code, at + upvalues, cells);
+            return node;
+        }
+
+        @Override
+        public Integer visitIfStmt(Stmt.If stmt)
+        {
+            int node = node(IF, 3);
+            int condition = encode(stmt.condition);
+            code[node + 1] = condition;
+            int thenBranch = encode(stmt.thenBranch);
+            code[node + 2] = thenBranch;
+            int elseBranch = encode(stmt.elseBranch);
+            code[node + 3] = elseBranch;
+            return node;
+        }
+
+        @Override
+        public Integer visitReturnStmt(Stmt.Return stmt)
+        {
+            int node = node(RETURN, 1);
+            int value = encode(stmt.value);
+            code[node + 1] = value;
+            return node;
+        }
+
+        @Override
+        public Integer visitVarStmt(Stmt.Var stmt)
+        {
+            int node = node(VAR, 4);
+            code[node + 1] = token(stmt.name);
+            code[node + 2] = stmt.kind;
+            code[node + 3] = stmt.slot;
+            int initializer = encode(stmt.initializer);
+            code[node + 4] = initializer;
+            return node;
+        }
+
+        @Override
+        public Integer visitWhileStmt(Stmt.While stmt)
+        {
+            int node = node(WHILE, 3);
+            int condition = encode(stmt.condition);
+            code[node + 1] = condition;
+            int body = encode(stmt.body);
+            code[node + 2] = body;
+            int increment = encode(stmt.increment);
+            code[node + 3] = increment;
+            return node;
+        }
+    }
+}
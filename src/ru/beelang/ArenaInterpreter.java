@@ -0,0 +1,655 @@
+package ru.beelang;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import ru.beelang.nativeFuncs.BeeCallable;
+
+import static ru.beelang.Arena.*;
+
+/**
+ * Executes a program encoded in an <code>Arena</code>.<p/>
+ * Same semantics as the <code>Interpreter</code>, but the nodes are walked directly in
+ * the flat <code>int[]</code>: a node is dispatched with a <code>switch</code> over its kind
+ * instead of the visitor's double dispatch, and there are no node objects to chase.
+ * The ints are kept unboxed the same way the <code>Interpreter</code> keeps them, see
+ * <code>evaluateInt()</code>.
+ * <p>Even so it stays somewhat slower than the <code>Interpreter</code>: the JVM inlines the
+ * small visit methods of the tree into each other, while the few large dispatch methods
+ * here are called one from another. It's kept as the engine whose program is plain data.</p>
+ * <p>An instance is bound to a single arena. Functions declared in the arena keep
+ * a reference to it, so they can be called from anywhere (e.g. from a script
+ * run later by another instance).</p>
+ */
+class ArenaInterpreter
+{
+    private final int[] code;
+    private final Object[] literals;
+    private final Token[] tokens;
+    private final CallSite[] sites;
+    private final int[] program;
+    /** The tree-walking interpreter the globals are shared with. Natives receive it as well. */
+    private final Interpreter host;
+    /** Shared with the host, so the calls between the engines nest on the same stack. */
+    private final ValueStack stack;
+    /** Value of the last <code>RETURN</code> executed, see <code>Completion</code>. */
+    private Object returned = null;
+    /** Set by <code>evaluateInt()</code> if the value isn't an int, the value is kept in <code>notInt</code>. */
+    private boolean mismatch = false;
+    private Object notInt = null;
+
+    ArenaInterpreter(Arena arena, Interpreter host)
+    {
+        this.code = arena.code;
+        this.literals = arena.literals;
+        this.tokens = arena.tokens;
+        this.sites = arena.sites;
+        this.program = arena.program;
+        this.host = host;
+        this.stack = host.stack;
+    }
+
+    /**
+     * @param locals number of slots needed by the top-level blocks, as counted by the <code>Resolver</code>.
+     */
+    void interpret(int locals)
+    {
+        int previous = stack.enter(locals, ValueStack.NO_UPVALUES, Collections.emptyList(), null);
+        try
+        {
+            // a 'return' at the top level ends the program.
+            for (int statement : program)
+            {
+                if (execute(statement) != Completion.NORMAL)
+                    break;
+            }
+        }catch(RuntimeError error)
+        {
+            Main.runtimeError(error);
+        }finally
+        {
+            stack.leave(previous, ValueStack.NO_UPVALUES);
+        }
+    }
+
+    /**
+     * Dispatches the statement. The cases are kept short, the longer ones are in methods
+     * of their own, so the dispatch stays small enough for the JVM to inline.
+     */
+    private Completion execute(int node)
+    {
+        switch (code[node])
+        {
+            case BLOCK:
+                return executeBlock(node + 2, code[node + 1]);
+            case EXPRESSION:
+                discard(code[node + 1]);
+                return Completion.NORMAL;
+            case FUNCTION:
+                declare(node);
+                return Completion.NORMAL;
+            case IF:
+                if (condition(code[node + 1]))
+                    return execute(code[node + 2]);
+                else if (code[node + 3] >= 0)
+                    return execute(code[node + 3]);
+                return Completion.NORMAL;
+            case RETURN:
+                returned = (code[node + 1] >= 0) ? evaluate(code[node + 1]) : null;
+                return Completion.RETURN;
+            case VAR:
+                define(node);
+                return Completion.NORMAL;
+            case WHILE:
+                return loop(node);
+            case BREAK:
+                return Completion.BREAK;
+            case CONTINUE:
+                return Completion.CONTINUE;
+            default:
+                throw new IllegalStateException("Unexpected statement kind " + code[node]);
+        }
+    }
+
+    private void declare(int node)
+    {
+        Token name = tokens[code[node + 1]];
+        int upvalues = node + 9 + code[node + 5] + code[node + 6];
+
+        if (code[node + 2] == Resolver.CELL)
+        {
+            // the function may refer to itself, so its cell is captured before it's filled.
+            ValueStack.Cell cell = stack.defineCell(code[node + 3]);
+            cell.value = new Function(node, capture(upvalues, code[node + 7]));
+        }else
+        {
+            Function function = new Function(node, capture(upvalues, code[node + 7]));
+            stack.define(code[node + 2], code[node + 3], name.symbol, function, name);
+        }
+    }
+
+    private void define(int node)
+    {
+        Token name = tokens[code[node + 1]];
+        if (code[node + 2] == Resolver.LOCAL && code[node + 4] >= 0)
+        {
+            int value = evaluateInt(code[node + 4]);
+            if (mismatch)
+                stack.define(Resolver.LOCAL, code[node + 3], name.symbol, other(), name);
+            else
+                stack.setInt(code[node + 3], value);
+            return;
+        }
+
+        Object value = (code[node + 4] >= 0) ? evaluate(code[node + 4]) : null;
+        stack.define(code[node + 2], code[node + 3], name.symbol, value, name);
+    }
+
+    private Completion loop(int node)
+    {
+        // the children are read once for all the iterations.
+        int condition = code[node + 1];
+        int body = code[node + 2];
+        int increment = code[node + 3];
+        while (condition(condition))
+        {
+            Completion completion = execute(body);
+            if (completion == Completion.BREAK)
+                break;
+            if (completion == Completion.RETURN)
+                return completion;
+
+            if (increment >= 0)
+                discard(increment);
+        }
+        return Completion.NORMAL;
+    }
+
+    /**
+     * Executes <code>count</code> statements whose offsets are stored starting from
+     * <code>from</code>, in the current frame of the stack.
+     * @return completion of the statement which has left the block, if any.
+     */
+    private Completion executeBlock(int from, int count)
+    {
+        for (int i = 0; i < count; ++i)
+        {
+            Completion completion = execute(code[from + i]);
+            if (completion != Completion.NORMAL)
+                return completion;
+        }
+        return Completion.NORMAL;
+    }
+
+    private Object evaluate(int node)
+    {
+        switch (code[node])
+        {
+            case LITERAL:
+                return literals[code[node + 1]];
+            case VARIABLE:
+                return (code[node + 3] == Resolver.LOCAL) ? stack.local(code[node + 4]) : get(node);
+            case ASSIGN:
+            {
+                Object value = evaluate(code[node + 5]);
+                assign(node, value);
+                return value;
+            }
+            case INCREMENT:
+                return increment(node);
+            case BINARY:
+                return binary(node);
+            case LOGICAL:
+            {
+                Object left = evaluate(code[node + 2]);
+                boolean truthy = Interpreter.isTruthy(left);
+
+                if ((code[node + 1] == 1) ? truthy : !truthy)
+                    return left;
+
+                return evaluate(code[node + 3]);
+            }
+            case UNARY:
+                return Interpreter.unary(tokens[code[node + 1]], evaluate(code[node + 2]));
+            case CALL:
+            {
+                CallSite site = sites[code[node + 1]];
+                Object callee = evaluate(code[node + 2]);
+
+                switch (code[node + 3])
+                {
+                    case 0:
+                        return site.check(callee).call0(host, site.paren);
+                    case 1:
+                    {
+                        Object a = evaluate(code[node + 4]);
+                        return site.check(callee).call1(host, a, site.paren);
+                    }
+                    case 2:
+                    {
+                        Object a = evaluate(code[node + 4]);
+                        Object b = evaluate(code[node + 5]);
+                        return site.check(callee).call2(host, a, b, site.paren);
+                    }
+                    case 3:
+                    {
+                        Object a = evaluate(code[node + 4]);
+                        Object b = evaluate(code[node + 5]);
+                        Object c = evaluate(code[node + 6]);
+                        return site.check(callee).call3(host, a, b, c, site.paren);
+                    }
+                    default:
+                    {
+                        Object[] arguments = new Object[code[node + 3]];
+                        for (int i = 0; i < arguments.length; ++i)
+                            arguments[i] = evaluate(code[node + 4 + i]);
+
+                        return site.check(callee).callArray(host, arguments, site.paren);
+                    }
+                }
+            }
+            case ARRAY_INDEX:
+                return null;
+            default:
+                throw new IllegalStateException("Unexpected expression kind " + code[node]);
+        }
+    }
+
+    /**
+     * The operands are taken as ints first, so the ints held unboxed don't get boxed.
+     */
+    private Object binary(int node)
+    {
+        Token operator = tokens[code[node + 1]];
+        int left = evaluateInt(code[node + 2]);
+        if (mismatch)
+        {
+            Object value = other();
+            return Interpreter.binary(operator, value, evaluate(code[node + 3]));
+        }
+
+        int right = evaluateInt(code[node + 3]);
+        if (mismatch)
+            return Interpreter.binary(operator, left, other());
+
+        int op = code[node + 4];
+        if (op >= LESS)
+            return compare(op, left, right);
+
+        return arithmetic(op, left, right, node);
+    }
+
+    /**
+     * Evaluates the condition of <code>IF</code> or <code>WHILE</code>: the outcome of an
+     * int comparison is taken as it is, with no <code>Boolean</code> in between.
+     */
+    private boolean condition(int node)
+    {
+        if (code[node] != BINARY || code[node + 4] < LESS)
+            return Interpreter.isTruthy(evaluate(node));
+
+        Token operator = tokens[code[node + 1]];
+        int left = evaluateInt(code[node + 2]);
+        if (mismatch)
+        {
+            Object value = other();
+            return Interpreter.isTruthy(Interpreter.binary(operator, value, evaluate(code[node + 3])));
+        }
+
+        int right = evaluateInt(code[node + 3]);
+        if (mismatch)
+            return Interpreter.isTruthy(Interpreter.binary(operator, left, other()));
+
+        return compare(code[node + 4], left, right);
+    }
+
+    private static boolean compare(int op, int left, int right)
+    {
+        switch (op)
+        {
+            case LESS:          return left < right;
+            case LESS_EQUAL:    return left <= right;
+            case GREATER:       return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case EQUAL:         return left == right;
+            default:            return left != right;
+        }
+    }
+
+    /**
+     * @param node of the operation, the division by zero is reported at its token.
+     */
+    private int arithmetic(int op, int left, int right, int node)
+    {
+        switch (op)
+        {
+            case ADD:      return left + right;
+            case SUBTRACT: return left - right;
+            case MULTIPLY: return left * right;
+            default:       return Interpreter.arithmetic(tokens[code[node + 1]], left, right);
+        }
+    }
+
+    /**
+     * Int-typed evaluation, the same as <code>Interpreter.evaluateInt()</code>: if the value
+     * isn't an int, <code>mismatch</code> is set and the value is taken by <code>other()</code>.
+     * @return the value, or 0 if it isn't an int.
+     */
+    private int evaluateInt(int node)
+    {
+        switch (code[node])
+        {
+            case VARIABLE:
+            {
+                int slot = code[node + 4];
+                if (code[node + 3] == Resolver.LOCAL && stack.holdsInt(slot))
+                    return stack.getInt(slot);
+
+                return variableInt(node);
+            }
+            case LITERAL:
+                return unboxed(literals[code[node + 1]]);
+            case INCREMENT:
+                return increment(node);
+            case BINARY:
+                return arithmetic(node);
+            case UNARY:
+                return negate(node);
+            default:
+                return unboxed(evaluate(node));
+        }
+    }
+
+    private int variableInt(int node)
+    {
+        int slot = code[node + 4];
+        if (code[node + 3] == Resolver.GLOBAL_SLOT && host.globals.holdsInt(slot))
+            return host.globals.getInt(slot);
+
+        return unboxed(get(node));
+    }
+
+    private int arithmetic(int node)
+    {
+        int op = code[node + 4];
+        if (op >= LESS)
+            return unboxed(evaluate(node));
+
+        int left = evaluateInt(code[node + 2]);
+        if (mismatch)
+            return unboxed(Interpreter.binary(tokens[code[node + 1]], other(), evaluate(code[node + 3])));
+
+        int right = evaluateInt(code[node + 3]);
+        if (mismatch)
+            return unboxed(Interpreter.binary(tokens[code[node + 1]], left, other()));
+
+        return arithmetic(op, left, right, node);
+    }
+
+    private int negate(int node)
+    {
+        Token operator = tokens[code[node + 1]];
+        if (operator.type != TokenType.MINUS)
+            return unboxed(evaluate(node));
+
+        int right = evaluateInt(code[node + 2]);
+        if (mismatch)
+            return unboxed(Interpreter.unary(operator, other()));
+
+        return -right;
+    }
+
+    private int unboxed(Object value)
+    {
+        if (value instanceof Integer)
+            return (int)value;
+
+        mismatch = true;
+        notInt = value;
+        return 0;
+    }
+
+    /**
+     * Takes the value <code>evaluateInt()</code> has put aside.
+     */
+    private Object other()
+    {
+        Object value = notInt;
+        mismatch = false;
+        notInt = null;
+        return value;
+    }
+
+    /**
+     * Evaluates the expression whose value isn't needed, so an int assigned
+     * or incremented isn't boxed.
+     */
+    private void discard(int node)
+    {
+        if (code[node] == INCREMENT)
+        {
+            increment(node);
+            return;
+        }
+
+        int kind = code[node + 3];
+        if (code[node] != ASSIGN || (kind != Resolver.LOCAL && kind != Resolver.GLOBAL && kind != Resolver.GLOBAL_SLOT))
+        {
+            evaluate(node);
+            return;
+        }
+
+        int value = evaluateInt(code[node + 5]);
+        boolean isInt = !mismatch;
+        Object other = isInt ? null : other();
+
+        if (kind == Resolver.GLOBAL)
+            bindGlobal(node);
+
+        if (kind == Resolver.LOCAL)
+        {
+            if (isInt)
+                stack.setInt(code[node + 4], value);
+            else
+                stack.setLocal(code[node + 4], other);
+        }else
+        {
+            if (isInt)
+                host.globals.setInt(code[node + 4], value);
+            else
+                host.globals.set(code[node + 4], other);
+        }
+    }
+
+    /**
+     * Increments the variable of the <code>INCREMENT</code> node, the locals and the
+     * globals holding ints are updated unboxed.
+     * @return the new value.
+     */
+    private int increment(int node)
+    {
+        Token name = tokens[code[node + 2]];
+        int delta = code[node + 5];
+        if (code[node + 3] == Resolver.LOCAL)
+            return stack.increment(code[node + 4], delta, name);
+
+        if (code[node + 3] == Resolver.GLOBAL)
+            bindGlobal(node);
+
+        if (code[node + 3] == Resolver.GLOBAL_SLOT)
+        {
+            int slot = code[node + 4];
+            if (!host.globals.holdsInt(slot))
+                throw new RuntimeError(name, "Operand must be of type int.");
+
+            int value = host.globals.getInt(slot) + delta;
+            host.globals.setInt(slot, value);
+            return value;
+        }
+
+        Object value = get(node);
+        if (!(value instanceof Integer))
+            throw new RuntimeError(name, "Operand must be of type int.");
+
+        int result = (int)value + delta;
+        assign(node, result);
+        return result;
+    }
+
+    /**
+     * Reads the variable referred to by the <code>VARIABLE</code>, <code>ASSIGN</code> or
+     * <code>INCREMENT</code> node, all of them start with <code>symbol token kind slot</code>.
+     */
+    private Object get(int node)
+    {
+        if (code[node + 3] == Resolver.GLOBAL)
+            bindGlobal(node);
+
+        return stack.get(code[node + 3], code[node + 4], code[node + 1], tokens[code[node + 2]]);
+    }
+
+    private void assign(int node, Object value)
+    {
+        if (code[node + 3] == Resolver.GLOBAL)
+            bindGlobal(node);
+
+        stack.set(code[node + 3], code[node + 4], code[node + 1], tokens[code[node + 2]], value);
+    }
+
+    /**
+     * Replaces the lookup of a global by symbol with the load from its slot, the same
+     * inline cache the <code>Interpreter</code> keeps in the tree nodes.
+     */
+    private void bindGlobal(int node)
+    {
+        code[node + 4] = host.globals.slot(code[node + 1], tokens[code[node + 2]]);
+        code[node + 3] = Resolver.GLOBAL_SLOT;
+    }
+
+    /**
+     * Collects the upvalues of the closure being created, see <code>ValueStack.capture()</code>.
+     * @param from offset of the first upvalue descriptor.
+     * @param count number of the descriptors.
+     */
+    private ValueStack.Cell[] capture(int from, int count)
+    {
+        return stack.capture(code, from, count);
+    }
+
+    /**
+     * Function declared in the arena. Refers to its <code>FUNCTION</code> node.
+     */
+    private class Function implements BeeCallable
+    {
+        private final int declaration;
+        private final ValueStack.Cell[] upvalues;
+        /** Slots of the parameters captured by nested functions. */
+        private final int[] cells;
+        /** Operands of the declaration read by every call: the size of the frame and the statements of the body. */
+        private final int locals;
+        private final int body;
+        private final int bodyCount;
+
+        Function(int declaration, ValueStack.Cell[] upvalues)
+        {
+            this.declaration = declaration;
+            this.upvalues = upvalues;
+            this.locals = code[declaration + 4];
+            this.body = declaration + 9 + code[declaration + 5];
+            this.bodyCount = code[declaration + 6];
+
+            int from = declaration + 9 + code[declaration + 5] + code[declaration + 6] + code[declaration + 7];
+            this.cells = Arrays.copyOfRange(code, from, from + code[declaration + 8]);
+        }
+
+        @Override
+        public int arity()
+        {
+            return code[declaration + 5];
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments, Token token)
+        {
+            return callArray(interpreter, arguments.toArray(), token);
+        }
+
+        @Override
+        public Object call0(Interpreter interpreter, Token token)
+        {
+            // gets its own frame, the parameters take the first slots.
+            ValueStack.Cell[] caller = stack.upvalues();
+            return execute(stack.enter(locals, upvalues), caller, token);
+        }
+
+        @Override
+        public Object call1(Interpreter interpreter, Object a, Token token)
+        {
+            ValueStack.Cell[] caller = stack.upvalues();
+            int previous = stack.enter(locals, upvalues);
+            stack.setLocal(0, a);
+            return execute(previous, caller, token);
+        }
+
+        @Override
+        public Object call2(Interpreter interpreter, Object a, Object b, Token token)
+        {
+            ValueStack.Cell[] caller = stack.upvalues();
+            int previous = stack.enter(locals, upvalues);
+            stack.setLocal(0, a);
+            stack.setLocal(1, b);
+            return execute(previous, caller, token);
+        }
+
+        @Override
+        public Object call3(Interpreter interpreter, Object a, Object b, Object c, Token token)
+        {
+            ValueStack.Cell[] caller = stack.upvalues();
+            int previous = stack.enter(locals, upvalues);
+            stack.setLocal(0, a);
+            stack.setLocal(1, b);
+            stack.setLocal(2, c);
+            return execute(previous, caller, token);
+        }
+
+        @Override
+        public Object callArray(Interpreter interpreter, Object[] arguments, Token token)
+        {
+            ValueStack.Cell[] caller = stack.upvalues();
+            int previous = stack.enter(locals, upvalues);
+            for (int i = 0; i < arguments.length; ++i)
+                stack.setLocal(i, arguments[i]);
+
+            return execute(previous, caller, token);
+        }
+
+        /**
+         * Runs the body in the frame just entered, whose parameters have been set.
+         * @param token of the call, the overflow of the Java stack is reported at.
+         */
+        private Object execute(int previous, ValueStack.Cell[] caller, Token token)
+        {
+            try {
+                stack.box(cells);
+                if (executeBlock(body, bodyCount) != Completion.RETURN)
+                    return null;
+
+                Object value = returned;
+                returned = null;
+                return value;
+            }catch (StackOverflowError e) {
+                // each call of the script takes Java frames, and a tail call isn't an exception.
+                throw new RuntimeError(token, "Stack overflow.");
+            }finally {
+                stack.leave(previous, caller);
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return "<fn " + tokens[code[declaration + 1]].lexeme + ">";
+        }
+    }
+}
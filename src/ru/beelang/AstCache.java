@@ -0,0 +1,695 @@
+package ru.beelang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk cache of the syntax trees produced by the <code>Parser</code>.<p/>
+ * Each entry is keyed by the SHA-256 digest of the script's content, so a script that
+ * hasn't changed since the last run is loaded right from its compiled form and the
+ * front end (scanning and parsing) is skipped entirely.
+ * <p>Entry layout:</p>
+ * <ul>
+ * <li>header: magic number and the format <code>VERSION</code>;</li>
+ * <li>names: identifiers used in the tree. Symbol ids are valid only within a single run,
+ * so names are interned again on load;</li>
+ * <li>literal pool: distinct values of the literals (nil, booleans, ints, strings, byte arrays);</li>
+ * <li>the tree: statements encoded in prefix order, each node starts with a tag byte,
+ * child nodes, tokens and pool references follow.</li>
+ * </ul>
+ * All the integers (lines, indices, counts) are written as unsigned varints.
+ */
+class AstCache
+{
+    private static final int MAGIC = 0x42454541;   // "BEEA"
+    /** Must be bumped whenever the syntax tree classes or the encoding change. */
+    private static final int VERSION = 2;
+
+    // Node tags. Zero stands for null (absent else branch, initializer, etc.)
+    private static final int NULL = 0;
+    private static final int EXPR_ARRAY_INDEX = 1;
+    private static final int EXPR_INCREMENT   = 2;
+    private static final int EXPR_ASSIGN      = 3;
+    private static final int EXPR_BINARY      = 4;
+    private static final int EXPR_CALL        = 5;
+    private static final int EXPR_GROUPING    = 6;
+    private static final int EXPR_LITERAL     = 7;
+    private static final int EXPR_LOGICAL     = 8;
+    private static final int EXPR_UNARY       = 9;
+    private static final int EXPR_VARIABLE    = 10;
+    private static final int STMT_BLOCK       = 11;
+    private static final int STMT_EXPRESSION  = 12;
+    private static final int STMT_FUNCTION    = 13;
+    private static final int STMT_IF          = 14;
+    private static final int STMT_RETURN      = 15;
+    private static final int STMT_VAR         = 16;
+    private static final int STMT_WHILE       = 17;
+    private static final int STMT_BREAK       = 18;
+    private static final int STMT_CONTINUE    = 19;
+
+    // Literal pool tags.
+    private static final int LIT_NIL   = 0;
+    private static final int LIT_FALSE = 1;
+    private static final int LIT_TRUE  = 2;
+    private static final int LIT_INT   = 3;
+    private static final int LIT_STR   = 4;
+    private static final int LIT_BYTES = 5;
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final Path directory;
+    private final SymbolTable symbols;
+
+    AstCache(Path directory, SymbolTable symbols)
+    {
+        this.directory = directory;
+        this.symbols = symbols;
+    }
+
+    /**
+     * Computes the key of the script: digest of the format version, the charset the
+     * script is decoded with (it affects the string literals) and the script's content.
+     * The file is mapped, so it is never copied to the heap just to be hashed.
+     * @param script
+     * @param charset
+     * @return
+     * @throws IOException
+     */
+    String key(Path script, String charset) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }catch(NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+
+        digest.update((VERSION + ":" + charset + ":").getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(script, StandardOpenOption.READ))
+        {
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest())
+            hex.append(String.format("%02x", b));
+
+        return hex.toString();
+    }
+
+    /**
+     * @param key
+     * @return cached statements or null if there is no valid entry for the given key.
+     */
+    List<Stmt> load(String key)
+    {
+        Path entry = directory.resolve(key + ".bast");
+        try (InputStream input = Files.newInputStream(entry))
+        {
+            return new Decoder(new DataInputStream(input)).decode();
+        }catch(NoSuchFileException e)
+        {
+            return null;
+        }catch(IOException | RuntimeException e)
+        {
+            // damaged or outdated entry: fall back to the front end, it'll be overwritten.
+            return null;
+        }
+    }
+
+    /**
+     * Writes the entry for the given key. The entry is written to a temporary file
+     * first and then moved in place, so a concurrent run never sees a partial entry.
+     * Failures are ignored: the cache is only an optimization.
+     * @param key
+     * @param statements
+     */
+    void store(String key, List<Stmt> statements)
+    {
+        try
+        {
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, key, ".tmp");
+            try
+            {
+                try (OutputStream output = Files.newOutputStream(temp))
+                {
+                    new Encoder().encode(statements, output);
+                }catch(UncheckedIOException e)
+                {
+                    throw e.getCause();
+                }
+                Files.move(temp, directory.resolve(key + ".bast"),
+                           StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }catch(IOException | RuntimeException e)
+            {
+                // a failed entry mustn't be left behind in the cache directory.
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+        }catch(IOException e)
+        {
+            System.err.println("Warning: can't write AST cache entry: " + e.getMessage());
+        }
+    }
+
+    // ========================================================= //
+    // ======================== Encoding ======================= //
+    // ========================================================= //
+
+    private static class Encoder implements Expr.Visitor<Void>, Stmt.Visitor<Void>
+    {
+        private final ByteArrayOutputStream tree = new ByteArrayOutputStream();
+        private final Map<String, Integer> names = new HashMap<>();
+        private final List<String> nameList = new ArrayList<>();
+        /** Pool indices of ints, strings and booleans. */
+        private final Map<Object, Integer> literals = new HashMap<>();
+        /** Byte arrays are pooled by identity: they are mutable objects. */
+        private final Map<Object, Integer> arrays = new IdentityHashMap<>();
+        private final List<Object> pool = new ArrayList<>();
+
+        void encode(List<Stmt> statements, OutputStream output) throws IOException
+        {
+            writeStatements(statements);
+
+            DataOutputStream out = new DataOutputStream(output);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            writeVarInt(out, nameList.size());
+            for (String name : nameList)
+                writeString(out, name);
+
+            writeVarInt(out, pool.size());
+            for (Object value : pool)
+                writeLiteral(out, value);
+
+            tree.writeTo(out);
+            out.flush();
+        }
+
+        private void writeLiteral(OutputStream out, Object value) throws IOException
+        {
+            if (null == value)
+            {
+                out.write(LIT_NIL);
+            }else if (value instanceof Boolean)
+            {
+                out.write((Boolean)value ? LIT_TRUE : LIT_FALSE);
+            }else if (value instanceof Integer)
+            {
+                out.write(LIT_INT);
+                // ints are full 32-bit values, negative ones would take 5 bytes anyway.
+                writeVarInt(out, (Integer)value);
+            }else if (value instanceof String)
+            {
+                out.write(LIT_STR);
+                writeString(out, (String)value);
+            }else if (value instanceof byte[])
+            {
+                byte[] bytes = (byte[])value;
+                out.write(LIT_BYTES);
+                writeVarInt(out, bytes.length);
+                out.write(bytes);
+            }else
+            {
+                throw new IllegalArgumentException("Unexpected literal " + value);
+            }
+        }
+
+        private void writeStatements(List<Stmt> statements)
+        {
+            writeVarInt(tree, statements.size());
+            for (Stmt stmt : statements)
+                write(stmt);
+        }
+
+        private void write(Stmt stmt)
+        {
+            if (null == stmt)
+                tree.write(NULL);
+            else
+                stmt.accept(this);
+        }
+
+        private void write(Expr expr)
+        {
+            if (null == expr)
+                tree.write(NULL);
+            else
+                expr.accept(this);
+        }
+
+        private void write(Token token)
+        {
+            tree.write(token.type.ordinal());
+            writeVarInt(tree, token.line);
+
+            if (token.type == TokenType.IDENTIFIER)
+            {
+                Integer idx = names.get(token.lexeme);
+                if (null == idx)
+                {
+                    idx = nameList.size();
+                    names.put(token.lexeme, idx);
+                    nameList.add(token.lexeme);
+                }
+                writeVarInt(tree, idx);
+            }else if (null == TokenBuffer.fixedLexeme(token.type))
+            {
+                writeString(tree, token.lexeme);
+            }
+        }
+
+        private void writeVarInt(OutputStream out, int value)
+        {
+            try
+            {
+                while ((value & ~0x7F) != 0)
+                {
+                    out.write((value & 0x7F) | 0x80);
+                    value >>>= 7;
+                }
+                out.write(value);
+            }catch(IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeString(OutputStream out, String value)
+        {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, bytes.length);
+            try
+            {
+                out.write(bytes);
+            }catch(IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private int poolIndex(Object value)
+        {
+            Map<Object, Integer> index = (value instanceof byte[]) ? arrays : literals;
+            // HashMap doesn't mind the null key, so nil is pooled as well.
+            Integer idx = index.get(value);
+            if (null == idx)
+            {
+                idx = pool.size();
+                index.put(value, idx);
+                pool.add(value);
+            }
+            return idx;
+        }
+
+        @Override
+        public Void visitArrayIndexExpr(Expr.ArrayIndex expr)
+        {
+            tree.write(EXPR_ARRAY_INDEX);
+            write(expr.name);
+            write(expr.index);
+            return null;
+        }
+
+        @Override
+        public Void visitIncrementExpr(Expr.Increment expr)
+        {
+            tree.write(EXPR_INCREMENT);
+            write(expr.name);
+            write(expr.sign);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr)
+        {
+            tree.write(EXPR_ASSIGN);
+            write(expr.name);
+            write(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr)
+        {
+            tree.write(EXPR_BINARY);
+            write(expr.left);
+            write(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr)
+        {
+            tree.write(EXPR_CALL);
+            write(expr.callee);
+            write(expr.paren);
+            writeVarInt(tree, expr.arguments.size());
+            for (Expr argument : expr.arguments)
+                write(argument);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr)
+        {
+            tree.write(EXPR_GROUPING);
+            write(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr)
+        {
+            tree.write(EXPR_LITERAL);
+            writeVarInt(tree, poolIndex(expr.value));
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr)
+        {
+            tree.write(EXPR_LOGICAL);
+            write(expr.left);
+            write(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr)
+        {
+            tree.write(EXPR_UNARY);
+            write(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr)
+        {
+            tree.write(EXPR_VARIABLE);
+            write(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt)
+        {
+            tree.write(STMT_BLOCK);
+            writeStatements(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitBreakStmt(Stmt.Break stmt)
+        {
+            tree.write(STMT_BREAK);
+            write(stmt.keyword);
+            return null;
+        }
+
+        @Override
+        public Void visitContinueStmt(Stmt.Continue stmt)
+        {
+            tree.write(STMT_CONTINUE);
+            write(stmt.keyword);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt)
+        {
+            tree.write(STMT_EXPRESSION);
+            write(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt)
+        {
+            tree.write(STMT_FUNCTION);
+            write(stmt.name);
+            writeVarInt(tree, stmt.params.size());
+            for (Token param : stmt.params)
+                write(param);
+            writeStatements(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt)
+        {
+            tree.write(STMT_IF);
+            write(stmt.condition);
+            write(stmt.thenBranch);
+            write(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt)
+        {
+            tree.write(STMT_RETURN);
+            write(stmt.keyword);
+            write(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt)
+        {
+            tree.write(STMT_VAR);
+            write(stmt.name);
+            write(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt)
+        {
+            tree.write(STMT_WHILE);
+            write(stmt.condition);
+            write(stmt.body);
+            write(stmt.increment);
+            return null;
+        }
+    }
+
+    // ========================================================= //
+    // ======================== Decoding ======================= //
+    // ========================================================= //
+
+    private class Decoder
+    {
+        private final DataInputStream in;
+        /** Symbol ids of the entry's names, interned in this run's symbol table. */
+        private int[] nameSymbols;
+        private String[] names;
+        private Object[] pool;
+
+        Decoder(DataInputStream in)
+        {
+            this.in = in;
+        }
+
+        List<Stmt> decode() throws IOException
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a compatible AST cache entry.");
+
+            int count = readVarInt();
+            names = new String[count];
+            nameSymbols = new int[count];
+            for (int i = 0; i < count; ++i)
+            {
+                names[i] = readString();
+                nameSymbols[i] = symbols.intern(names[i]);
+            }
+
+            pool = new Object[readVarInt()];
+            for (int i = 0; i < pool.length; ++i)
+                pool[i] = readLiteral();
+
+            return readStatements();
+        }
+
+        private Object readLiteral() throws IOException
+        {
+            switch (in.readUnsignedByte())
+            {
+                case LIT_NIL:   return null;
+                case LIT_FALSE: return false;
+                case LIT_TRUE:  return true;
+                case LIT_INT:   return readVarInt();
+                case LIT_STR:   return readString();
+                case LIT_BYTES:
+                    byte[] bytes = new byte[readVarInt()];
+                    in.readFully(bytes);
+                    return bytes;
+                default:
+                    throw new IOException("Unknown literal tag.");
+            }
+        }
+
+        private List<Stmt> readStatements() throws IOException
+        {
+            int count = readVarInt();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i)
+                statements.add(readStmt());
+            return statements;
+        }
+
+        private Stmt readStmt() throws IOException
+        {
+            int tag = in.readUnsignedByte();
+            switch (tag)
+            {
+                case NULL:
+                    return null;
+                case STMT_BLOCK:
+                    return new Stmt.Block(readStatements());
+                case STMT_EXPRESSION:
+                    return new Stmt.Expression(readExpr());
+                case STMT_FUNCTION:
+                {
+                    Token name = readToken();
+                    int count = readVarInt();
+                    List<Token> params = new ArrayList<>(count);
+                    for (int i = 0; i < count; ++i)
+                        params.add(readToken());
+                    return new Stmt.Function(name, name.symbol, params, readStatements());
+                }
+                case STMT_IF:
+                    return new Stmt.If(readExpr(), readStmt(), readStmt());
+                case STMT_RETURN:
+                    return new Stmt.Return(readToken(), readExpr());
+                case STMT_VAR:
+                {
+                    Token name = readToken();
+                    return new Stmt.Var(name, name.symbol, readExpr());
+                }
+                case STMT_WHILE:
+                    return new Stmt.While(readExpr(), readStmt(), readExpr());
+                case STMT_BREAK:
+                    return new Stmt.Break(readToken());
+                case STMT_CONTINUE:
+                    return new Stmt.Continue(readToken());
+                default:
+                    throw new IOException("Unexpected statement tag " + tag + ".");
+            }
+        }
+
+        private Expr readExpr() throws IOException
+        {
+            int tag = in.readUnsignedByte();
+            switch (tag)
+            {
+                case NULL:
+                    return null;
+                case EXPR_ARRAY_INDEX:
+                    return new Expr.ArrayIndex(readToken(), readExpr());
+                case EXPR_INCREMENT:
+                {
+                    Token name = readToken();
+                    return new Expr.Increment(name, name.symbol, readToken());
+                }
+                case EXPR_ASSIGN:
+                {
+                    Token name = readToken();
+                    return new Expr.Assign(name, name.symbol, readExpr());
+                }
+                case EXPR_BINARY:
+                    return new Expr.Binary(readExpr(), readToken(), readExpr());
+                case EXPR_CALL:
+                {
+                    Expr callee = readExpr();
+                    Token paren = readToken();
+                    int count = readVarInt();
+                    List<Expr> arguments = new ArrayList<>(count);
+                    for (int i = 0; i < count; ++i)
+                        arguments.add(readExpr());
+                    return new Expr.Call(callee, paren, arguments);
+                }
+                case EXPR_GROUPING:
+                    return new Expr.Grouping(readExpr());
+                case EXPR_LITERAL:
+                    return new Expr.Literal(pool[readVarInt()]);
+                case EXPR_LOGICAL:
+                    return new Expr.Logical(readExpr(), readToken(), readExpr());
+                case EXPR_UNARY:
+                    return new Expr.Unary(readToken(), readExpr());
+                case EXPR_VARIABLE:
+                {
+                    Token name = readToken();
+                    return new Expr.Variable(name, name.symbol);
+                }
+                default:
+                    throw new IOException("Unexpected expression tag " + tag + ".");
+            }
+        }
+
+        private Token readToken() throws IOException
+        {
+            TokenType type = TYPES[in.readUnsignedByte()];
+            int line = readVarInt();
+
+            if (type == TokenType.IDENTIFIER)
+            {
+                int idx = readVarInt();
+                return new Token(type, names[idx], null, line, nameSymbols[idx]);
+            }
+
+            String lexeme = TokenBuffer.fixedLexeme(type);
+            if (null == lexeme)
+                lexeme = readString();
+
+            return new Token(type, lexeme, null, line);
+        }
+
+        private int readVarInt() throws IOException
+        {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7)
+            {
+                int b = in.readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("Malformed varint.");
+        }
+
+        private String readString() throws IOException
+        {
+            byte[] bytes = new byte[readVarInt()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
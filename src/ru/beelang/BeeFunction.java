@@ -6,19 +6,46 @@ import ru.beelang.nativeFuncs.BeeCallable;
 
 public class BeeFunction implements BeeCallable
 {
+    /**
+     * Returned by the body in place of the value when it ends with a call in tail
+     * position, the call itself is made by the caller, see <code>tailCall()</code>.
+     */
+    static final Object TAIL_CALL = new Object();
+
     private final Stmt.Function declaration;
-    private final Environment closure;
+    /** Cells of the enclosing functions' variables the function refers to. */
+    private final ValueStack.Cell[] upvalues;
+    /** Statements of the body, resolved on the first call since the body may be parsed (and folded) lazily. */
+    private List<Stmt> body = null;
+    /** Body compiled by the <code>ClosureCompiler</code>, shared by the functions of the declaration. */
+    private final ClosureCompiler.Exec compiled;
+    /** Calls and loop iterations so far, counted towards the compilation by the <code>JitCompiler</code>. */
+    private int hotness = 0;
+    /** Body compiled to JVM bytecode once the function has got hot. */
+    private JitCompiler.Compiled jitted = null;
+    /** Set if the body can't be compiled to bytecode. */
+    private boolean interpretOnly = false;
 
     /**
      * 
      * @param declaration
-     * @param closure to capture the current environment. Represents the lexical
-     * scope surrounding the function declaration.
+     * @param upvalues the variables captured from the lexical scope surrounding
+     * the function declaration, see <code>ValueStack.capture()</code>.
+     */
+    BeeFunction(Stmt.Function declaration, ValueStack.Cell[] upvalues)
+    {
+        this(declaration, upvalues, null);
+    }
+
+    /**
+     * @param compiled body of the declaration, the function runs it instead of
+     * walking the statements.
      */
-    BeeFunction(Stmt.Function declaration, Environment closure)
+    BeeFunction(Stmt.Function declaration, ValueStack.Cell[] upvalues, ClosureCompiler.Exec compiled)
     {
         this.declaration = declaration;
-        this.closure = closure;
+        this.upvalues = upvalues;
+        this.compiled = compiled;
     }
 
     @Override
@@ -36,18 +63,314 @@ public class BeeFunction implements BeeCallable
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments, Token token)
     {
-        // gets its own environment
-        Environment environment = new Environment(closure);
-        int size = declaration.params.size();
-        
-        for(int i = 0; i < size; ++i)
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i), token);
-        
+        return callArray(interpreter, arguments.toArray(), token);
+    }
+
+    /**
+     * The fixed-arity calls put the arguments right into the frame, or pass them as they
+     * are to the compiled code. All the entry points make the tail calls the body leaves
+     * to them, see <code>trampoline()</code>.
+     */
+    @Override
+    public Object call0(Interpreter interpreter, Token token)
+    {
+        if (prepare(interpreter))
+        {
+            Object result = runJitted(interpreter, null, null, null, null);
+            if (result != JitCompiler.DEOPT)
+                return trampoline(interpreter, result, token);
+        }
+
+        ValueStack stack = interpreter.stack;
+        ValueStack.Cell[] caller = stack.upvalues();
+        int previous = stack.enter(declaration.locals, upvalues);
+        return trampoline(interpreter, execute(interpreter, previous, caller, token), token);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a, Token token)
+    {
+        if (prepare(interpreter))
+        {
+            Object result = runJitted(interpreter, a, null, null, null);
+            if (result != JitCompiler.DEOPT)
+                return trampoline(interpreter, result, token);
+        }
+
+        ValueStack stack = interpreter.stack;
+        ValueStack.Cell[] caller = stack.upvalues();
+        int previous = stack.enter(declaration.locals, upvalues);
+        stack.setLocal(0, a);
+        return trampoline(interpreter, execute(interpreter, previous, caller, token), token);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b, Token token)
+    {
+        if (prepare(interpreter))
+        {
+            Object result = runJitted(interpreter, a, b, null, null);
+            if (result != JitCompiler.DEOPT)
+                return trampoline(interpreter, result, token);
+        }
+
+        ValueStack stack = interpreter.stack;
+        ValueStack.Cell[] caller = stack.upvalues();
+        int previous = stack.enter(declaration.locals, upvalues);
+        stack.setLocal(0, a);
+        stack.setLocal(1, b);
+        return trampoline(interpreter, execute(interpreter, previous, caller, token), token);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c, Token token)
+    {
+        if (prepare(interpreter))
+        {
+            Object result = runJitted(interpreter, a, b, c, null);
+            if (result != JitCompiler.DEOPT)
+                return trampoline(interpreter, result, token);
+        }
+
+        ValueStack stack = interpreter.stack;
+        ValueStack.Cell[] caller = stack.upvalues();
+        int previous = stack.enter(declaration.locals, upvalues);
+        stack.setLocal(0, a);
+        stack.setLocal(1, b);
+        stack.setLocal(2, c);
+        return trampoline(interpreter, execute(interpreter, previous, caller, token), token);
+    }
+
+    @Override
+    public Object callArray(Interpreter interpreter, Object[] arguments, Token token)
+    {
+        return trampoline(interpreter, invoke(interpreter, arguments, token), token);
+    }
+
+    /**
+     * Leaves the call in tail position to the trampoline of the function being returned
+     * from, if the callee is a <code>BeeFunction</code>: the frame of the returning function
+     * is released before the callee enters its own, so a chain of tail calls (a tail
+     * recursive loop in particular) runs in constant Java and <code>ValueStack</code> depth.
+     * Any other callee is just called.
+     * @param site checks the callee.
+     * @param arguments all the arguments if there are more than three, otherwise null.
+     * @return <code>TAIL_CALL</code>, to be returned by the body in place of the value,
+     * or the value of the call.
+     */
+    static Object tailCall(Interpreter interpreter, CallSite site, Object callee, Object a, Object b, Object c,
+                           Object[] arguments)
+    {
+        BeeCallable function = site.check(callee);
+        if (function instanceof BeeFunction)
+        {
+            // the arguments are kept until the callee copies them into its frame, nothing
+            // runs in between, so up to three of them share the buffer of the interpreter.
+            if (null == arguments)
+            {
+                arguments = interpreter.tailBuffer;
+                arguments[0] = a;
+                arguments[1] = b;
+                arguments[2] = c;
+            }
+
+            interpreter.tailCallee = (BeeFunction)function;
+            interpreter.tailArguments = arguments;
+            return TAIL_CALL;
+        }
+
+        switch (site.argCount)
+        {
+            case 0:
+                return function.call0(interpreter, site.paren);
+            case 1:
+                return function.call1(interpreter, a, site.paren);
+            case 2:
+                return function.call2(interpreter, a, b, site.paren);
+            case 3:
+                return function.call3(interpreter, a, b, c, site.paren);
+            default:
+                return function.callArray(interpreter, arguments, site.paren);
+        }
+    }
+
+    /**
+     * Makes the tail calls the result stands for, one after another, until one of them
+     * returns the value.
+     * @param token of the call which has returned the result.
+     */
+    private static Object trampoline(Interpreter interpreter, Object result, Token token)
+    {
+        while (result == TAIL_CALL)
+        {
+            BeeFunction function = interpreter.tailCallee;
+            Object[] arguments = interpreter.tailArguments;
+            interpreter.tailCallee = null;
+            interpreter.tailArguments = null;
+            result = function.invoke(interpreter, arguments, token);
+        }
+
+        return result;
+    }
+
+    /**
+     * Single call of the function, the tail call it ends with (if any) is left to the caller.
+     * @param arguments holds at least as many values as the function takes, the rest are ignored.
+     * @param token of the call, the overflow of the Java stack is reported at.
+     * @return the value or <code>TAIL_CALL</code>.
+     */
+    private Object invoke(Interpreter interpreter, Object[] arguments, Token token)
+    {
+        int arity = declaration.params.size();
+        if (prepare(interpreter))
+        {
+            Object a = (arity > 0) ? arguments[0] : null;
+            Object b = (arity > 1) ? arguments[1] : null;
+            Object c = (arity > 2) ? arguments[2] : null;
+            Object result = runJitted(interpreter, a, b, c, arguments);
+            if (result != JitCompiler.DEOPT)
+                return result;
+        }
+
+        // gets its own frame, the parameters take the first slots.
+        ValueStack stack = interpreter.stack;
+        ValueStack.Cell[] caller = stack.upvalues();
+        int previous = stack.enter(declaration.locals, upvalues);
+        for (int i = 0; i < arity; ++i)
+            stack.setLocal(i, arguments[i]);
+
+        return execute(interpreter, previous, caller, token);
+    }
+
+    /**
+     * Runs the compiled code, the function gets compiled once it's hot.
+     * @param arguments all the arguments if there are more than three, otherwise null.
+     * @return <code>JitCompiler.DEOPT</code> if the call has to be interpreted.
+     */
+    private Object runJitted(Interpreter interpreter, Object a, Object b, Object c, Object[] arguments)
+    {
+        if (null == jitted && ++hotness > JitCompiler.THRESHOLD)
+            jit(interpreter, a, b, c, arguments);
+
+        if (null == jitted)
+            return JitCompiler.DEOPT;
+
+        Object result = jitted.run(a, b, c, arguments, interpreter);
+
+        // the code expects an int where it has got something else, so it's replaced
+        // with the one taking that parameter as is, and the call is interpreted.
+        if (result == JitCompiler.DEOPT)
+            jit(interpreter, a, b, c, arguments);
+
+        return result;
+    }
+
+    /**
+     * Resolves the body on the first call.
+     * @return true if the call should go to the <code>JitCompiler</code>.
+     */
+    private boolean prepare(Interpreter interpreter)
+    {
+        if (null == body && null == compiled)
+            resolveBody();
+
+        return interpreter.jit && null == compiled && !interpretOnly;
+    }
+
+    private void resolveBody()
+    {
+        if (declaration.body instanceof Parser.LazyBody)
+        {
+            Parser.LazyBody lazy = (Parser.LazyBody)declaration.body;
+            List<Stmt> statements = ConstantFolder.fold(lazy.statements());
+            Resolver.resolveBody(declaration, statements);
+            body = statements;
+        }else
+        {
+            body = declaration.body;
+        }
+    }
+
+    Stmt.Function declaration()
+    {
+        return declaration;
+    }
+
+    /**
+     * @return statements of the body, resolved. A lazily parsed body gets parsed.
+     */
+    List<Stmt> statements()
+    {
+        if (null == body)
+            resolveBody();
+
+        return body;
+    }
+
+    /**
+     * Runs the body in the frame just entered, whose parameters have been set.
+     * @param previous frame pointer returned by <code>ValueStack.enter()</code>.
+     * @param caller upvalues of the caller.
+     * @param token of the call, the overflow of the Java stack is reported at.
+     */
+    private Object execute(Interpreter interpreter, int previous, ValueStack.Cell[] caller, Token token)
+    {
+        ValueStack stack = interpreter.stack;
+        int backEdges = interpreter.backEdges;
+        BeeFunction running = interpreter.running;
+        interpreter.running = (null == compiled && interpreter.jit && !interpretOnly) ? this : null;
+
         try {
-            interpreter.executeBlock(declaration.body, environment);
-        }catch(Return returnValue) {
-            return returnValue.value;
+            stack.box(declaration.cells);
+            Completion completion = (null != compiled) ? compiled.exec(stack) : interpreter.executeBlock(body);
+            if (completion != Completion.RETURN)
+                return null;
+
+            Object value = interpreter.returned;
+            interpreter.returned = null;
+            return value;
+        }catch (StackOverflowError e) {
+            // the recursion isn't in tail position, each call takes Java frames.
+            throw new RuntimeError(token, "Stack overflow.");
+        }finally {
+            stack.leave(previous, caller);
+            interpreter.running = running;
+            hotness += interpreter.backEdges - backEdges;
         }
-        return null;
+    }
+
+    /**
+     * Switches the call being interpreted to the compiled code at the loop which has got
+     * hot within the call, see <code>JitCompiler.compileLoop()</code>.
+     * @param loop run by the interpreter in the frame of this function, at its condition.
+     * @return the value the function returns, or <code>JitCompiler.DEOPT</code> if the
+     * body can't be compiled and the interpreter goes on.
+     */
+    Object enterLoop(Interpreter interpreter, Stmt.While loop)
+    {
+        if (interpretOnly)
+            return JitCompiler.DEOPT;
+
+        Object[] frame = new Object[declaration.locals];
+        for (int slot = 0; slot < frame.length; ++slot)
+            frame[slot] = interpreter.stack.local(slot);
+
+        JitCompiler.Compiled code = JitCompiler.compileLoop(declaration, body, frame, loop, interpreter.globals);
+        if (null == code)
+        {
+            interpretOnly = true;
+            return JitCompiler.DEOPT;
+        }
+
+        return code.run(null, null, null, frame, interpreter);
+    }
+
+    private void jit(Interpreter interpreter, Object a, Object b, Object c, Object[] arguments)
+    {
+        if (null == arguments)
+            arguments = new Object[] {a, b, c};
+
+        jitted = JitCompiler.compile(declaration, body, arguments, jitted, interpreter.globals);
+        interpretOnly = (null == jitted);
     }
 }
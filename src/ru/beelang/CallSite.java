@@ -0,0 +1,35 @@
+package ru.beelang;
+
+import ru.beelang.nativeFuncs.BeeCallable;
+
+/**
+ * Inline cache of a call expression.<p/>
+ * Keeps the function called last at the site, once it has been checked to be callable
+ * with the number of the arguments the site passes. As long as the site keeps calling
+ * the same function, which it mostly does, the call skips the type and the arity checks
+ * and goes straight to the fixed-arity entry point of the function.
+ */
+final class CallSite
+{
+    final Token paren;
+    final int argCount;
+    private BeeCallable target = null;
+
+    CallSite(Token paren, int argCount)
+    {
+        this.paren = paren;
+        this.argCount = argCount;
+    }
+
+    /**
+     * @return the callee, checked.
+     * @throws RuntimeError if it can't be called with the arguments of the site.
+     */
+    BeeCallable check(Object callee)
+    {
+        if (null == target || callee != target)
+            target = Interpreter.checkCallable(callee, argCount, paren);
+
+        return target;
+    }
+}
@@ -0,0 +1,658 @@
+package ru.beelang;
+
+import java.util.List;
+
+/**
+ * Compiles the resolved syntax tree into a tree of pre-linked closures.<p/>
+ * The tree interpreter decides anew on every evaluation what to do with a node: it
+ * dispatches through the visitor, switches on the operator and on the kind of the
+ * variable. Here all of that is decided once, at compile time: each node becomes a
+ * lambda for its operator, the kind of its variable, the number of the arguments of its
+ * call or the shape of its branch, with the closures of its children captured directly.
+ * Running the code is then a chain of calls the JIT can inline, with no dispatch besides
+ * the checks of the operand types.
+ * <p>The closures run over the <code>ValueStack</code> of the <code>Interpreter</code>, and
+ * the functions are <code>BeeFunction</code>s caching the compiled body of their
+ * declaration, so they can be called by the tree interpreter as well.</p>
+ */
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Eval>, Stmt.Visitor<ClosureCompiler.Exec>
+{
+    /** Compiled expression. */
+    interface Eval
+    {
+        Object eval(ValueStack s);
+    }
+
+    /** Compiled expression evaluated for its truthiness, the condition of a branch. */
+    interface Cond
+    {
+        boolean test(ValueStack s);
+    }
+
+    /** Compiled statement, see <code>Completion</code>. */
+    interface Exec
+    {
+        Completion exec(ValueStack s);
+    }
+
+    private static final Exec EMPTY = s -> Completion.NORMAL;
+
+    private final Interpreter interpreter;
+    private final Environment globals;
+
+    private ClosureCompiler(Interpreter interpreter)
+    {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+    }
+
+    /**
+     * Compiles the statements of a script.
+     * @param statements resolved by the <code>Resolver</code>.
+     * @param interpreter its globals are accessed, and it's passed to the native functions.
+     * @return
+     */
+    static Exec compile(List<Stmt> statements, Interpreter interpreter)
+    {
+        return new ClosureCompiler(interpreter).block(statements);
+    }
+
+    private Exec block(List<Stmt> statements)
+    {
+        Exec[] code = statements.stream()
+                                .filter(statement -> null != statement)
+                                .map(this::compile)
+                                .toArray(Exec[]::new);
+        switch (code.length)
+        {
+            case 0:
+                return EMPTY;
+            case 1:
+                return code[0];
+            case 2:
+            {
+                Exec first = code[0];
+                Exec second = code[1];
+                return s -> {
+                    Completion completion = first.exec(s);
+                    return (completion != Completion.NORMAL) ? completion : second.exec(s);
+                };
+            }
+            default:
+                return s -> {
+                    for (Exec statement : code)
+                    {
+                        Completion completion = statement.exec(s);
+                        if (completion != Completion.NORMAL)
+                            return completion;
+                    }
+                    return Completion.NORMAL;
+                };
+        }
+    }
+
+    private Exec compile(Stmt stmt)
+    {
+        return (null == stmt) ? EMPTY : stmt.accept(this);
+    }
+
+    private Eval compile(Expr expr)
+    {
+        return expr.accept(this);
+    }
+
+    /**
+     * Compiles the expression evaluated for its truthiness. The comparisons and the logical
+     * operators give the primitive result right away, without boxing a <code>Boolean</code>.
+     */
+    private Cond condition(Expr expr)
+    {
+        while (expr instanceof Expr.Grouping)
+            expr = ((Expr.Grouping)expr).expression;
+
+        if (expr instanceof Expr.Binary)
+        {
+            Cond comparison = comparison((Expr.Binary)expr);
+            if (null != comparison)
+                return comparison;
+        }else if (expr instanceof Expr.Logical)
+        {
+            Expr.Logical logical = (Expr.Logical)expr;
+            Cond left = condition(logical.left);
+            Cond right = condition(logical.right);
+            if (logical.operator.type == TokenType.OR)
+                return s -> left.test(s) || right.test(s);
+
+            return s -> left.test(s) && right.test(s);
+        }else if (expr instanceof Expr.Unary && ((Expr.Unary)expr).operator.type == TokenType.BANG)
+        {
+            Cond right = condition(((Expr.Unary)expr).right);
+            return s -> !right.test(s);
+        }
+
+        Eval value = compile(expr);
+        return s -> Interpreter.isTruthy(value.eval(s));
+    }
+
+    /**
+     * @return the compiled ordering comparison, or null if the operator is another one.
+     */
+    private Cond comparison(Expr.Binary expr)
+    {
+        Token operator = expr.operator;
+        switch (operator.type)
+        {
+            case LESS: case LESS_EQUAL: case GREATER: case GREATER_EQUAL:
+                break;
+            default:
+                return null;
+        }
+
+        Eval left = compile(expr.left);
+        Eval right = compile(expr.right);
+        switch (operator.type)
+        {
+            case LESS:
+                return s -> {
+                    Object l = left.eval(s);
+                    Object r = right.eval(s);
+                    if (l instanceof Integer && r instanceof Integer)
+                        return (int)l < (int)r;
+                    return (boolean)Interpreter.binary(operator, l, r);
+                };
+            case LESS_EQUAL:
+                return s -> {
+                    Object l = left.eval(s);
+                    Object r = right.eval(s);
+                    if (l instanceof Integer && r instanceof Integer)
+                        return (int)l <= (int)r;
+                    return (boolean)Interpreter.binary(operator, l, r);
+                };
+            case GREATER:
+                return s -> {
+                    Object l = left.eval(s);
+                    Object r = right.eval(s);
+                    if (l instanceof Integer && r instanceof Integer)
+                        return (int)l > (int)r;
+                    return (boolean)Interpreter.binary(operator, l, r);
+                };
+            case GREATER_EQUAL:
+                return s -> {
+                    Object l = left.eval(s);
+                    Object r = right.eval(s);
+                    if (l instanceof Integer && r instanceof Integer)
+                        return (int)l >= (int)r;
+                    return (boolean)Interpreter.binary(operator, l, r);
+                };            default:
+                return null;
+        }
+    }
+
+    private Eval load(int kind, int slot, int symbol, Token name)
+    {
+        switch (kind)
+        {
+            case Resolver.LOCAL:
+                return s -> s.local(slot);
+            case Resolver.CELL:
+                return s -> s.cell(slot).value;
+            case Resolver.UPVALUE:
+                return s -> s.upvalue(slot).value;
+            default:
+                return new Global(symbol, name, globals)::get;
+        }
+    }
+
+    private Eval store(int kind, int slot, int symbol, Token name, Eval value)
+    {
+        switch (kind)
+        {
+            case Resolver.LOCAL:
+                return s -> {
+                    Object result = value.eval(s);
+                    s.setLocal(slot, result);
+                    return result;
+                };
+            case Resolver.CELL:
+                return s -> s.cell(slot).value = value.eval(s);
+            case Resolver.UPVALUE:
+                return s -> s.upvalue(slot).value = value.eval(s);
+            default:
+            {
+                Global global = new Global(symbol, name, globals);
+                return s -> {
+                    Object result = value.eval(s);
+                    global.set(result);
+                    return result;
+                };
+            }
+        }
+    }
+
+    private Exec define(int kind, int slot, int symbol, Token name, Eval value)
+    {
+        switch (kind)
+        {
+            case Resolver.LOCAL:
+                return s -> {
+                    s.setLocal(slot, value.eval(s));
+                    return Completion.NORMAL;
+                };
+            case Resolver.CELL:
+                return s -> {
+                    s.setLocal(slot, new ValueStack.Cell(value.eval(s)));
+                    return Completion.NORMAL;
+                };
+            case Resolver.DUPLICATE:
+                return s -> {
+                    s.define(kind, slot, symbol, value.eval(s), name);
+                    return Completion.NORMAL;
+                };
+            default:
+                return s -> {
+                    globals.defineGlobal(symbol, value.eval(s), name);
+                    return Completion.NORMAL;
+                };
+        }
+    }
+
+    /** Reference to a global, which looks the slot up on the first access and keeps it. */
+    private static final class Global
+    {
+        private final int symbol;
+        private final Token name;
+        private final Environment globals;
+        private int slot = -1;
+
+        Global(int symbol, Token name, Environment globals)
+        {
+            this.symbol = symbol;
+            this.name = name;
+            this.globals = globals;
+        }
+
+        Object get(ValueStack s)
+        {
+            if (slot < 0)
+                slot = globals.slot(symbol, name);
+
+            return globals.get(slot);
+        }
+
+        void set(Object value)
+        {
+            if (slot < 0)
+                slot = globals.slot(symbol, name);
+
+            globals.set(slot, value);
+        }
+    }
+
+    // ======================================================= //
+    // ============== Expr.Visitor implementation ============ //
+    // ======================================================= //
+
+    @Override
+    public Eval visitArrayIndexExpr(Expr.ArrayIndex expr)
+    {
+        // not implemented by the interpreter either.
+        return s -> null;
+    }
+
+    @Override
+    public Eval visitIncrementExpr(Expr.Increment expr)
+    {
+        int delta = (expr.sign.type == TokenType.INCREMENT) ? 1 : -1;
+        Token name = expr.name;
+        if (expr.kind == Resolver.LOCAL)
+        {
+            int slot = expr.slot;
+            return s -> {
+                Object value = s.local(slot);
+                if (!(value instanceof Integer))
+                    throw new RuntimeError(name, "Operand must be of type int.");
+
+                Object result = (int)value + delta;
+                s.setLocal(slot, result);
+                return result;
+            };
+        }
+
+        Eval load = load(expr.kind, expr.slot, expr.symbol, name);
+        Eval increment = s -> {
+            Object value = load.eval(s);
+            if (!(value instanceof Integer))
+                throw new RuntimeError(name, "Operand must be of type int.");
+
+            return (int)value + delta;
+        };
+        return store(expr.kind, expr.slot, expr.symbol, name, increment);
+    }
+
+    @Override
+    public Eval visitAssignExpr(Expr.Assign expr)
+    {
+        return store(expr.kind, expr.slot, expr.symbol, expr.name, compile(expr.value));
+    }
+
+    @Override
+    public Eval visitBinaryExpr(Expr.Binary expr)
+    {
+        Cond comparison = comparison(expr);
+        if (null != comparison)
+            return s -> comparison.test(s);
+
+        Token operator = expr.operator;
+        Eval left = compile(expr.left);
+        Eval right = compile(expr.right);
+        switch (operator.type)
+        {
+            case PLUS:
+                return s -> {
+                    Object l = left.eval(s);
+                    Object r = right.eval(s);
+                    if (l instanceof Integer && r instanceof Integer)
+                        return (int)l + (int)r;
+                    return Interpreter.binary(operator, l, r);
+                };
+            case MINUS:
+                return s -> {
+                    Object l = left.eval(s);
+                    Object r = right.eval(s);
+                    if (l instanceof Integer && r instanceof Integer)
+                        return (int)l - (int)r;
+                    return Interpreter.binary(operator, l, r);
+                };
+            case STAR:
+                return s -> {
+                    Object l = left.eval(s);
+                    Object r = right.eval(s);
+                    if (l instanceof Integer && r instanceof Integer)
+                        return (int)l * (int)r;
+                    return Interpreter.binary(operator, l, r);
+                };            default:
+                return s -> Interpreter.binary(operator, left.eval(s), right.eval(s));
+        }
+    }
+
+    @Override
+    public Eval visitCallExpr(Expr.Call expr)
+    {
+        Token paren = expr.paren;
+        CallSite site = expr.site;
+        Eval callee = compile(expr.callee);
+        Eval[] arguments = expr.arguments.stream().map(this::compile).toArray(Eval[]::new);
+        switch (arguments.length)
+        {
+            case 0:
+                return s -> site.check(callee.eval(s)).call0(interpreter, paren);
+            case 1:
+            {
+                Eval first = arguments[0];
+                return s -> {
+                    Object function = callee.eval(s);
+                    Object a = first.eval(s);
+                    return site.check(function).call1(interpreter, a, paren);
+                };
+            }
+            case 2:
+            {
+                Eval first = arguments[0];
+                Eval second = arguments[1];
+                return s -> {
+                    Object function = callee.eval(s);
+                    Object a = first.eval(s);
+                    Object b = second.eval(s);
+                    return site.check(function).call2(interpreter, a, b, paren);
+                };
+            }
+            case 3:
+            {
+                Eval first = arguments[0];
+                Eval second = arguments[1];
+                Eval third = arguments[2];
+                return s -> {
+                    Object function = callee.eval(s);
+                    Object a = first.eval(s);
+                    Object b = second.eval(s);
+                    Object c = third.eval(s);
+                    return site.check(function).call3(interpreter, a, b, c, paren);
+                };
+            }
+            default:
+                return s -> {
+                    Object function = callee.eval(s);
+                    Object[] values = new Object[arguments.length];
+                    for (int i = 0; i < values.length; ++i)
+                        values[i] = arguments[i].eval(s);
+                    return site.check(function).callArray(interpreter, values, paren);
+                };
+        }
+    }
+
+    @Override
+    public Eval visitGroupingExpr(Expr.Grouping expr)
+    {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Eval visitLiteralExpr(Expr.Literal expr)
+    {
+        Object value = expr.value;
+        return s -> value;
+    }
+
+    @Override
+    public Eval visitLogicalExpr(Expr.Logical expr)
+    {
+        Eval left = compile(expr.left);
+        Eval right = compile(expr.right);
+        if (expr.operator.type == TokenType.OR)
+        {
+            return s -> {
+                Object value = left.eval(s);
+                return Interpreter.isTruthy(value) ? value : right.eval(s);
+            };
+        }
+
+        return s -> {
+            Object value = left.eval(s);
+            return Interpreter.isTruthy(value) ? right.eval(s) : value;
+        };
+    }
+
+    @Override
+    public Eval visitUnaryExpr(Expr.Unary expr)
+    {
+        Token operator = expr.operator;
+        if (operator.type == TokenType.BANG)
+        {
+            Cond right = condition(expr.right);
+            return s -> !right.test(s);
+        }
+
+        Eval right = compile(expr.right);
+        return s -> {
+            Object value = right.eval(s);
+            if (value instanceof Integer)
+                return -(int)value;
+            return Interpreter.unary(operator, value);
+        };
+    }
+
+    @Override
+    public Eval visitVariableExpr(Expr.Variable expr)
+    {
+        return load(expr.kind, expr.slot, expr.symbol, expr.name);
+    }
+
+    // ======================================================= //
+    // ============== Stmt.Visitor implementation ============ //
+    // ======================================================= //
+
+    @Override
+    public Exec visitBlockStmt(Stmt.Block stmt)
+    {
+        return block(stmt.statements);
+    }
+
+    @Override
+    public Exec visitBreakStmt(Stmt.Break stmt)
+    {
+        return s -> Completion.BREAK;
+    }
+
+    @Override
+    public Exec visitContinueStmt(Stmt.Continue stmt)
+    {
+        return s -> Completion.CONTINUE;
+    }
+
+    @Override
+    public Exec visitExpressionStmt(Stmt.Expression stmt)
+    {
+        Eval expression = compile(stmt.expression);
+        return s -> {
+            expression.eval(s);
+            return Completion.NORMAL;
+        };
+    }
+
+    /**
+     * The body is compiled once here, every function created by the declaration
+     * shares it.
+     */
+    @Override
+    public Exec visitFunctionStmt(Stmt.Function stmt)
+    {
+        Exec body = block(stmt.body);
+        int[] upvalues = stmt.upvalues;
+
+        if (stmt.kind == Resolver.CELL)
+        {
+            int slot = stmt.slot;
+            // the function may refer to itself, so its cell is captured before it's filled.
+            return s -> {
+                ValueStack.Cell cell = s.defineCell(slot);
+                cell.value = new BeeFunction(stmt, s.capture(upvalues), body);
+                return Completion.NORMAL;
+            };
+        }
+
+        return define(stmt.kind, stmt.slot, stmt.symbol, stmt.name,
+                      s -> new BeeFunction(stmt, s.capture(upvalues), body));
+    }
+
+    @Override
+    public Exec visitIfStmt(Stmt.If stmt)
+    {
+        Cond condition = condition(stmt.condition);
+        Exec thenBranch = compile(stmt.thenBranch);
+        if (null == stmt.elseBranch)
+        {
+            return s -> condition.test(s) ? thenBranch.exec(s) : Completion.NORMAL;
+        }
+
+        Exec elseBranch = compile(stmt.elseBranch);
+        return s -> condition.test(s) ? thenBranch.exec(s) : elseBranch.exec(s);
+    }
+
+    /**
+     * The value is left in the <code>Interpreter</code>, the function call picks it up.
+     */
+    @Override
+    public Exec visitReturnStmt(Stmt.Return stmt)
+    {
+        if (null == stmt.value)
+        {
+            return s -> {
+                interpreter.returned = null;
+                return Completion.RETURN;
+            };
+        }
+
+        Eval value = stmt.tail ? tailCall((Expr.Call)stmt.value) : compile(stmt.value);
+        return s -> {
+            interpreter.returned = value.eval(s);
+            return Completion.RETURN;
+        };
+    }
+
+    /**
+     * Same as <code>visitCallExpr()</code>, but the call is made by the caller of the
+     * function being returned from, see <code>BeeFunction.tailCall()</code>.
+     */
+    private Eval tailCall(Expr.Call expr)
+    {
+        CallSite site = expr.site;
+        Eval callee = compile(expr.callee);
+        Eval[] arguments = expr.arguments.stream().map(this::compile).toArray(Eval[]::new);
+        if (arguments.length > 3)
+        {
+            return s -> {
+                Object function = callee.eval(s);
+                Object[] values = new Object[arguments.length];
+                for (int i = 0; i < values.length; ++i)
+                    values[i] = arguments[i].eval(s);
+                return BeeFunction.tailCall(interpreter, site, function, null, null, null, values);
+            };
+        }
+
+        // the missing arguments are nils, the callee takes as many as the site passes.
+        Eval first = (arguments.length > 0) ? arguments[0] : (s -> null);
+        Eval second = (arguments.length > 1) ? arguments[1] : (s -> null);
+        Eval third = (arguments.length > 2) ? arguments[2] : (s -> null);
+        return s -> {
+            Object function = callee.eval(s);
+            Object a = first.eval(s);
+            Object b = second.eval(s);
+            Object c = third.eval(s);
+            return BeeFunction.tailCall(interpreter, site, function, a, b, c, null);
+        };
+    }
+
+    @Override
+    public Exec visitVarStmt(Stmt.Var stmt)
+    {
+        Eval value = (null == stmt.initializer) ? (s -> null) : compile(stmt.initializer);
+        return define(stmt.kind, stmt.slot, stmt.symbol, stmt.name, value);
+    }
+
+    @Override
+    public Exec visitWhileStmt(Stmt.While stmt)
+    {
+        Cond condition = condition(stmt.condition);
+        Exec body = compile(stmt.body);
+
+        if (null == stmt.increment)
+        {
+            return s -> {
+                while (condition.test(s))
+                {
+                    Completion completion = body.exec(s);
+                    if (completion == Completion.BREAK)
+                        break;
+                    if (completion == Completion.RETURN)
+                        return completion;
+                }
+                return Completion.NORMAL;
+            };
+        }
+
+        Eval increment = compile(stmt.increment);
+        return s -> {
+            while (condition.test(s))
+            {
+                Completion completion = body.exec(s);
+                if (completion == Completion.BREAK)
+                    break;
+                if (completion == Completion.RETURN)
+                    return completion;
+
+                increment.eval(s);
+            }
+            return Completion.NORMAL;
+        };
+    }
+}
@@ -0,0 +1,21 @@
+package ru.beelang;
+
+/**
+ * The way the control leaves a statement.<p/>
+ * Executing a statement yields its completion instead of throwing: <code>return</code>,
+ * <code>break</code> and <code>continue</code> are passed up through the enclosing
+ * statements until the function call or the loop consumes them. The value of a
+ * <code>return</code> doesn't travel with the completion, the engine keeps it aside,
+ * so neither of them allocates.
+ */
+public enum Completion
+{
+    /** Control goes on to the next statement. */
+    NORMAL,
+    /** Leaves the function, the value is kept by the engine. */
+    RETURN,
+    /** Leaves the innermost loop. */
+    BREAK,
+    /** Goes on to the next iteration of the innermost loop, its increment runs first. */
+    CONTINUE
+}
@@ -0,0 +1,303 @@
+package ru.beelang;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Optimization pass run over the syntax tree between the <code>Parser</code> and the
+ * execution.<p/>
+ * Rewrites the parts of the tree whose value is known before the program runs:
+ * <ul>
+ * <li>unary and binary operations on literals become a single literal, e.g.
+ * <code>0x10 * 16 + 4</code> or <code>"APDU " + "header"</code>;</li>
+ * <li>groupings are replaced by the inner expression;</li>
+ * <li><code>and</code>/<code>or</code> with a literal left operand is reduced to the
+ * operand which would have been evaluated;</li>
+ * <li><code>if</code> with a literal condition is reduced to the branch which would have
+ * been taken, <code>while</code> with a falsey literal condition is dropped.</li>
+ * </ul>
+ * The operations are evaluated by the same <code>Interpreter.binary()</code> and
+ * <code>Interpreter.unary()</code> the interpreter uses. If an operation fails, e.g. on
+ * division by zero or mismatched operand types, the node is kept as is, so the error is
+ * still raised when (and if) the program gets to it, with the line of its operator.
+ * <p>Nodes are never modified: a node whose subtrees don't change is returned as is,
+ * otherwise a new one is built. Lazily parsed function bodies are left alone here and
+ * are folded by <code>BeeFunction</code> once parsed.</p>
+ */
+class ConstantFolder implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt>
+{
+    private static final ConstantFolder INSTANCE = new ConstantFolder();
+
+    private ConstantFolder() {}
+
+    /**
+     * Folds the statements of a program or a function body.
+     * @param statements
+     * @return
+     */
+    static List<Stmt> fold(List<Stmt> statements)
+    {
+        return INSTANCE.statements(statements);
+    }
+
+    private List<Stmt> statements(List<Stmt> statements)
+    {
+        List<Stmt> result = new ArrayList<>(statements.size());
+        boolean changed = false;
+
+        for (Stmt statement : statements)
+        {
+            Stmt folded = (null == statement) ? null : statement.accept(this);
+            changed |= (folded != statement);
+
+            // a statement folded away leaves nothing to execute.
+            if (null != folded || null == statement)
+                result.add(folded);
+        }
+
+        return changed ? result : statements;
+    }
+
+    /**
+     * Folds the statement which is not a part of a list, e.g. a branch of
+     * <code>if</code> or a loop body. Such a place can't be left empty.
+     */
+    private Stmt statement(Stmt statement)
+    {
+        if (null == statement)
+            return null;
+
+        Stmt folded = statement.accept(this);
+        return (null == folded) ? new Stmt.Block(Collections.emptyList()) : folded;
+    }
+
+    private Expr fold(Expr expr)
+    {
+        return (null == expr) ? null : expr.accept(this);
+    }
+
+    private static boolean isLiteral(Expr expr)
+    {
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object value(Expr expr)
+    {
+        return ((Expr.Literal)expr).value;
+    }
+
+    // ======================================================= //
+    // ============== Expr.Visitor implementation ============ //
+    // ======================================================= //
+
+    @Override
+    public Expr visitArrayIndexExpr(Expr.ArrayIndex expr)
+    {
+        Expr index = fold(expr.index);
+        return (index == expr.index) ? expr : new Expr.ArrayIndex(expr.name, index);
+    }
+
+    @Override
+    public Expr visitIncrementExpr(Expr.Increment expr)
+    {
+        return expr;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr)
+    {
+        Expr value = fold(expr.value);
+        return (value == expr.value) ? expr : new Expr.Assign(expr.name, expr.symbol, value);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr)
+    {
+        Expr left = fold(expr.left);
+        Expr right = fold(expr.right);
+
+        if (isLiteral(left) && isLiteral(right))
+        {
+            try
+            {
+                return new Expr.Literal(Interpreter.binary(expr.operator, value(left), value(right)));
+            }catch(RuntimeError error)
+            {
+                // leave it to be reported at runtime.
+            }
+        }
+
+        if (left == expr.left && right == expr.right)
+            return expr;
+
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr)
+    {
+        Expr callee = fold(expr.callee);
+        boolean changed = (callee != expr.callee);
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+
+        for (Expr argument : expr.arguments)
+        {
+            Expr folded = fold(argument);
+            changed |= (folded != argument);
+            arguments.add(folded);
+        }
+
+        return changed ? new Expr.Call(callee, expr.paren, arguments) : expr;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr)
+    {
+        return fold(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr)
+    {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr)
+    {
+        Expr left = fold(expr.left);
+        Expr right = fold(expr.right);
+
+        if (isLiteral(left))
+        {
+            boolean truthy = Interpreter.isTruthy(value(left));
+            // 'or' yields the left operand if it's truthy, 'and' - if it's falsey.
+            if ((expr.operator.type == TokenType.OR) ? truthy : !truthy)
+                return left;
+
+            return right;
+        }
+
+        if (left == expr.left && right == expr.right)
+            return expr;
+
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr)
+    {
+        Expr right = fold(expr.right);
+
+        if (isLiteral(right))
+        {
+            try
+            {
+                return new Expr.Literal(Interpreter.unary(expr.operator, value(right)));
+            }catch(RuntimeError error)
+            {
+                // leave it to be reported at runtime.
+            }
+        }
+
+        return (right == expr.right) ? expr : new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr)
+    {
+        return expr;
+    }
+
+    // ======================================================= //
+    // ============== Stmt.Visitor implementation ============ //
+    // ======================================================= //
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt)
+    {
+        List<Stmt> statements = statements(stmt.statements);
+        return (statements == stmt.statements) ? stmt : new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt)
+    {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitContinueStmt(Stmt.Continue stmt)
+    {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt)
+    {
+        Expr expression = fold(stmt.expression);
+        return (expression == stmt.expression) ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt)
+    {
+        // parsing the body just to fold it would defeat the laziness.
+        if (stmt.body instanceof Parser.LazyBody)
+            return stmt;
+
+        List<Stmt> body = statements(stmt.body);
+        return (body == stmt.body) ? stmt : new Stmt.Function(stmt.name, stmt.symbol, stmt.params, body);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt)
+    {
+        Expr condition = fold(stmt.condition);
+
+        // the branch runs in the same environment as the 'if' itself would.
+        if (isLiteral(condition))
+            return Interpreter.isTruthy(value(condition)) ? stmt.thenBranch.accept(this)
+                 : (null == stmt.elseBranch) ? null : stmt.elseBranch.accept(this);
+
+        Stmt thenBranch = statement(stmt.thenBranch);
+        Stmt elseBranch = statement(stmt.elseBranch);
+
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch)
+            return stmt;
+
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt)
+    {
+        Expr value = fold(stmt.value);
+        return (value == stmt.value) ? stmt : new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt)
+    {
+        Expr initializer = fold(stmt.initializer);
+        return (initializer == stmt.initializer) ? stmt : new Stmt.Var(stmt.name, stmt.symbol, initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt)
+    {
+        Expr condition = fold(stmt.condition);
+
+        if (isLiteral(condition) && !Interpreter.isTruthy(value(condition)))
+            return null;
+
+        Stmt body = statement(stmt.body);
+        Expr increment = fold(stmt.increment);
+
+        if (condition == stmt.condition && body == stmt.body && increment == stmt.increment)
+            return stmt;
+
+        return new Stmt.While(condition, body, increment);
+    }
+}
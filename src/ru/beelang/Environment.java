@@ -1,87 +1,175 @@
 package ru.beelang;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+
+import ru.beelang.nativeFuncs.BeeCallable;
 
 /**
- * This class is intended to store bindings that associate variables to their values.<p/>
+ * This class is intended to store bindings that associate global variables to their values.<p/>
+ * Each global gets a slot in <code>values</code> when it's defined, in the order of the
+ * definitions. The slot of a symbol never changes afterwards, so a reference to the global
+ * which has looked the slot up once may keep it and load the value by index from then on
+ * (see the use of <code>slot()</code> by the execution engines).
+ * Symbol ids are dense, so the slot of a symbol is found by indexing
+ * <code>slots</code> with its id, with no hashing at all.
+ * The local variables live on the <code>ValueStack</code> instead.
+ * <p>Like the locals, a global may hold an int unboxed, see <code>setInt()</code>.</p>
+ * <p>Replacing a function held by a global changes the <code>version()</code>, so the
+ * one which relies on what a global function computes may tell it has changed.</p>
  */
 public class Environment
 {
-    final Environment enclosing;
-    /** HashMap of the variable-value bindings. Uses Strings as a key, not tokens. */
-    private final Map<String, Object> values = new HashMap<>();
+    /** Held by a slot whose value is the int in <code>ints</code>. */
+    private static final Object UNBOXED = new Object();
+
+    /** Values of the globals indexed by slot. */
+    private Object[] values = new Object[16];
+    /** Values of the globals marked <code>UNBOXED</code> in <code>values</code>. */
+    private int[] ints = new int[16];
+    private int count = 0;
+    /** (slot + 1) of each symbol indexed by its id, 0 if the symbol isn't defined. */
+    private int[] slots = new int[64];
+    /** Number of the functions held by the globals which have been replaced. */
+    private int version = 0;
+
+    /**
+     * Finds the slot of the global variable.
+     * @param symbol
+     * @param name
+     * @return the slot, stays valid as long as the environment exists.
+     * @throws RuntimeError if the variable isn't defined.
+     */
+    public int slot(int symbol, Token name)
+    {
+        int slot = find(symbol);
+        if (slot >= 0)
+            return slot;
+
+        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    }
+
+    /**
+     * @param slot as returned by <code>slot()</code>.
+     */
+    public Object get(int slot)
+    {
+        Object value = values[slot];
+        return (value == UNBOXED) ? (Integer)ints[slot] : value;
+    }
+
+    /**
+     * @param slot as returned by <code>slot()</code>.
+     */
+    public void set(int slot, Object value)
+    {
+        replace(slot);
+        values[slot] = value;
+    }
+
+    /**
+     * Returns the value of the global variable.
+     * @param symbol
+     * @param name
+     * @return
+     */
+    Object getGlobal(int symbol, Token name)
+    {
+        return get(slot(symbol, name));
+    }
 
     /**
-     * for the global scope's environment, which ends the chain.
+     * @return true if the global holds an int, boxed or not.
      */
-    Environment()
+    boolean holdsInt(int slot)
     {
-        enclosing = null;
+        Object value = values[slot];
+        return value == UNBOXED || value instanceof Integer;
     }
 
     /**
-     * Creates a new local scope nested inside the given outer one.
-     * @param enclosing
+     * @param slot of the global which holds an int, see <code>holdsInt()</code>.
      */
-    Environment(Environment enclosing)
+    int getInt(int slot)
     {
-        this.enclosing = enclosing;
+        Object value = values[slot];
+        return (value == UNBOXED) ? ints[slot] : (int)value;
     }
 
-    Object get(Token name)
+    /**
+     * Stores the int with no boxing, <code>get()</code> boxes it when it's asked for an object.
+     */
+    void setInt(int slot, int value)
     {
-        if (values.containsKey(name.lexeme))
-            return values.get(name.lexeme);
-        
-        // handle the 'parent-pointer tree',
-        // i.e. lookup for given token in the nearest outer scope
-        if (null != enclosing)
-            return enclosing.get(name);
-        
-        throw new RuntimeError(name, "Undefined variable '" +name.lexeme + "'.");
+        replace(slot);
+        values[slot] = UNBOXED;
+        ints[slot] = value;
     }
 
     /**
-     * The key difference between this method and <code>define()</code> is that
+     * The key difference between this method and <code>defineGlobal()</code> is that
      * this method isn't allowed to create a new variable.<p/>
      * In terms of out implementation, that means it's a runtime error if the key
      * doesn't already exist in the environment's variable map.
+     * @param symbol
      * @param name
      * @param value
      */
-    void assign(Token name, Object value)
+    void assignGlobal(int symbol, Token name, Object value)
     {
-        if (values.containsKey(name.lexeme))
-        {
-            values.put(name.lexeme, value);
-            return;
-        }
-
-        // if the variable isn't in this environment, it checks the outer one, recursively.
-        if (null != enclosing)
-        {
-            enclosing.assign(name, value);
-            return;
-        }
-        
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        set(slot(symbol, name), value);
     }
 
     /**
-     * Variable definition.<p/>
-     * Binds a new name to a value.
-     * @param name
+     * Global variable definition.<p/>
+     * Binds a new name to a value. A global can't be redefined, so once a symbol
+     * gets its slot, it keeps it.
+     * @param symbol
      * @param value
+     * @param token
      * @throws RuntimeError if variable have already been defined
      */
-    void define(String name, Object value, Token token)
+    public void defineGlobal(int symbol, Object value, Token token)
     {
-        if (values.containsKey(name))
-            throw new RuntimeError(token, "identifier '" + name + "' is already in use.");
+        if (find(symbol) >= 0)
+            throw new RuntimeError(token, "identifier '" + token.lexeme + "' is already in use.");
+
+        if (symbol >= slots.length)
+            slots = Arrays.copyOf(slots, Math.max(slots.length * 2, symbol + 1));
+
+        if (count == values.length)
+        {
+            values = Arrays.copyOf(values, count * 2);
+            ints = Arrays.copyOf(ints, values.length);
+        }
 
-        values.put(name, value);
+        values[count] = value;
+        slots[symbol] = ++count;
     }
 
+    /**
+     * Changes each time a global which holds a function is assigned. The assignments of
+     * the other values leave it as it is, so a loop counting in a global doesn't change it.
+     * @see Memo
+     */
+    int version()
+    {
+        return version;
+    }
 
+    /**
+     * Counts the assignment of the global, if it replaces a function.
+     */
+    private void replace(int slot)
+    {
+        if (values[slot] instanceof BeeCallable)
+            ++version;
+    }
+
+    /**
+     * Returns the slot of the given symbol or -1 if it isn't defined in this environment.
+     */
+    private int find(int symbol)
+    {
+        return (symbol < slots.length) ? slots[symbol] - 1 : -1;
+    }
 }
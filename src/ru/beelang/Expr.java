@@ -32,8 +32,9 @@ abstract class Expr {
     }
 
     static class Increment extends Expr {
-        Increment(Token name, Token sign) {
+        Increment(Token name, int symbol, Token sign) {
             this.name = name;
+            this.symbol = symbol;
             this.sign = sign;
         }
 
@@ -43,12 +44,17 @@ abstract class Expr {
         }
 
         final Token name;
+        final int symbol;
         final Token sign;
+        /** Filled in by the Resolver. */
+        int kind = -1;
+        int slot = -1;
     }
 
     static class Assign extends Expr {
-        Assign(Token name, Expr value) {
+        Assign(Token name, int symbol, Expr value) {
             this.name = name;
+            this.symbol = symbol;
             this.value = value;
         }
 
@@ -58,7 +64,11 @@ abstract class Expr {
         }
 
         final Token name;
+        final int symbol;
         final Expr value;
+        /** Filled in by the Resolver. */
+        int kind = -1;
+        int slot = -1;
     }
 
     static class Binary extends Expr {
@@ -93,6 +103,8 @@ abstract class Expr {
         final Expr callee;
         final Token paren;
         final List<Expr> arguments;
+        /** Filled in by the Resolver. */
+        CallSite site = null;
     }
 
     static class Grouping extends Expr {
@@ -154,8 +166,9 @@ abstract class Expr {
     }
 
     static class Variable extends Expr {
-        Variable(Token name) {
+        Variable(Token name, int symbol) {
             this.name = name;
+            this.symbol = symbol;
         }
 
         @Override
@@ -164,6 +177,10 @@ abstract class Expr {
         }
 
         final Token name;
+        final int symbol;
+        /** Filled in by the Resolver. */
+        int kind = -1;
+        int slot = -1;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
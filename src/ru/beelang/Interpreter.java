@@ -8,34 +8,83 @@ import ru.beelang.nativeFuncs.Print;
 import ru.beelang.nativeFuncs.PrintHex;
 import ru.beelang.nativeFuncs.Println;
 
-import java.util.ArrayList;
+import java.util.Collections;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion>
 {
+    /** Identifiers interned by the scanner, shared by all the scripts run by this interpreter. */
+    final SymbolTable symbols = new SymbolTable();
     /**Holds a fixed reference to the outermost global environment. */
     final Environment globals = new Environment();
-    /** Changes as we enter and exit local scopes, tracks the current environment.*/
-    private Environment environment = globals;
+    /** Frames of the calls being executed, holds all the local variables. */
+    final ValueStack stack = new ValueStack(globals);
+    /** Set by '-jit' option: hot functions get compiled to JVM bytecode, see <code>JitCompiler</code>. */
+    boolean jit = false;
+    /** Loop iterations executed so far, the functions count them in their hotness. */
+    int backEdges = 0;
+    /** Function whose body is being walked, if it may get compiled, see <code>BeeFunction.enterLoop()</code>. */
+    BeeFunction running = null;
+    /** Set by <code>evaluateInt()</code> if the value isn't an int, the value is kept in <code>notInt</code>. */
+    private boolean mismatch = false;
+    private Object notInt = null;
+    /** Value of the last <code>return</code> executed, see <code>Completion.RETURN</code>. */
+    Object returned = null;
+    /** Tail call left to the caller by the function returning <code>BeeFunction.TAIL_CALL</code>. */
+    BeeFunction tailCallee = null;
+    Object[] tailArguments = null;
+    /** Holds up to three arguments of a tail call, so that they aren't allocated. */
+    final Object[] tailBuffer = new Object[3];
 
     Interpreter()
     {
-        globals.define("clock", new Clock(), null);
-        globals.define("print", new Print(), null);
-        globals.define("println", new Println(), null);
-        globals.define("inHex", new PrintHex(), null);
+        globals.defineGlobal(symbols.intern("clock"), new Clock(), null);
+        globals.defineGlobal(symbols.intern("print"), new Print(), null);
+        globals.defineGlobal(symbols.intern("println"), new Println(), null);
+        globals.defineGlobal(symbols.intern("inHex"), new PrintHex(), null);
+        globals.defineGlobal(symbols.intern("memo"), new Memo(), null);
     }
 
-    void interpret(List<Stmt> statements)
+    /**
+     * @param statements
+     * @param locals number of slots needed by the top-level blocks, as counted by the <code>Resolver</code>.
+     */
+    void interpret(List<Stmt> statements, int locals)
     {
+        int previous = stack.enter(locals, ValueStack.NO_UPVALUES, Collections.emptyList(), null);
         try
         {
+            // a 'return' at the top level ends the program.
             for(Stmt statement : statements)
             {
-                execute(statement);
+                if (execute(statement) != Completion.NORMAL)
+                    break;
             }
         }catch(RuntimeError error)
         {
             Main.runtimeError(error);
+        }finally
+        {
+            stack.leave(previous, ValueStack.NO_UPVALUES);
+        }
+    }
+
+    /**
+     * Runs the script compiled by the <code>ClosureCompiler</code>.
+     * @param script
+     * @param locals number of slots needed by the top-level blocks, as counted by the <code>Resolver</code>.
+     */
+    void interpret(ClosureCompiler.Exec script, int locals)
+    {
+        int previous = stack.enter(locals, ValueStack.NO_UPVALUES, Collections.emptyList(), null);
+        try
+        {
+            script.exec(stack);
+        }catch(RuntimeError error)
+        {
+            Main.runtimeError(error);
+        }finally
+        {
+            stack.leave(previous, ValueStack.NO_UPVALUES);
         }
     }
 
@@ -43,9 +92,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
      * Helper method analogue to evaluate() one, which handles the Statements.
      * @param stmt
      */
-    private void execute(Stmt stmt)
+    private Completion execute(Stmt stmt)
     {
-        stmt.accept(this);
+        return stmt.accept(this);
     }
 
     /**
@@ -58,6 +107,95 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
         return expr.accept(this);
     }
 
+    /**
+     * Int-typed entry point of the evaluation: evaluates the expression which is expected
+     * to give an int, without boxing the ints along the way.<p/>
+     * The variables holding ints unboxed are read as they are, and the arithmetic on them is
+     * done on primitives. If a value turns out not to be an int, <code>mismatch</code> is set
+     * and the value is put aside for the caller, which takes it by <code>other()</code> and
+     * completes the operation the generic way. So the order of the evaluation and the errors
+     * stay the same as if the expression was evaluated by <code>evaluate()</code>.
+     * @param expr
+     * @return the value, or 0 if it isn't an int.
+     */
+    private int evaluateInt(Expr expr)
+    {
+        if (expr instanceof Expr.Variable)
+        {
+            Expr.Variable variable = (Expr.Variable)expr;
+            if (variable.kind == Resolver.LOCAL && stack.holdsInt(variable.slot))
+                return stack.getInt(variable.slot);
+            if (variable.kind == Resolver.GLOBAL_SLOT && globals.holdsInt(variable.slot))
+                return globals.getInt(variable.slot);
+
+            return unboxed(evaluate(expr));
+        }
+
+        if (expr instanceof Expr.Literal)
+            return unboxed(((Expr.Literal)expr).value);
+
+        if (expr instanceof Expr.Binary)
+        {
+            Expr.Binary binary = (Expr.Binary)expr;
+            switch (binary.operator.type)
+            {
+                case PLUS: case MINUS: case STAR: case SLASH:
+                {
+                    int left = evaluateInt(binary.left);
+                    if (mismatch)
+                        return unboxed(binary(binary.operator, other(), evaluate(binary.right)));
+
+                    int right = evaluateInt(binary.right);
+                    if (mismatch)
+                        return unboxed(binary(binary.operator, left, other()));
+
+                    return arithmetic(binary.operator, left, right);
+                }
+                default:
+                    return unboxed(evaluate(expr));
+            }
+        }
+
+        if (expr instanceof Expr.Grouping)
+            return evaluateInt(((Expr.Grouping)expr).expression);
+
+        if (expr instanceof Expr.Increment)
+            return increment((Expr.Increment)expr);
+
+        if (expr instanceof Expr.Unary && ((Expr.Unary)expr).operator.type == TokenType.MINUS)
+        {
+            Expr.Unary unary = (Expr.Unary)expr;
+            int right = evaluateInt(unary.right);
+            if (mismatch)
+                return unboxed(unary(unary.operator, other()));
+
+            return -right;
+        }
+
+        return unboxed(evaluate(expr));
+    }
+
+    private int unboxed(Object value)
+    {
+        if (value instanceof Integer)
+            return (int)value;
+
+        mismatch = true;
+        notInt = value;
+        return 0;
+    }
+
+    /**
+     * Takes the value <code>evaluateInt()</code> has put aside.
+     */
+    private Object other()
+    {
+        Object value = notInt;
+        mismatch = false;
+        notInt = null;
+        return value;
+    }
+
     // ======================================================= //
     // ============== Expr.Visitor implementation ============ //
     // ======================================================= //
@@ -72,19 +210,43 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
     @Override
     public Object visitIncrementExpr(Expr.Increment expr)
     {
-        Object currVal = environment.get(expr.name);
+        return increment(expr);
+    }
+
+    /**
+     * Increments the variable, the locals and the globals holding ints are updated unboxed.
+     * @return the new value.
+     */
+    private int increment(Expr.Increment expr)
+    {
+        int delta = (expr.sign.type == TokenType.INCREMENT) ? 1 : -1;
+        if (expr.kind == Resolver.LOCAL)
+            return stack.increment(expr.slot, delta, expr.name);
+
+        if (expr.kind == Resolver.GLOBAL)
+        {
+            expr.slot = globals.slot(expr.symbol, expr.name);
+            expr.kind = Resolver.GLOBAL_SLOT;
+        }
+
+        if (expr.kind == Resolver.GLOBAL_SLOT)
+        {
+            if (!globals.holdsInt(expr.slot))
+                throw new RuntimeError(expr.name, "Operand must be of type int.");
+
+            int value = globals.getInt(expr.slot) + delta;
+            globals.setInt(expr.slot, value);
+            return value;
+        }
+
+        Object currVal = stack.get(expr.kind, expr.slot, expr.symbol, expr.name);
 
         if (!(currVal instanceof Integer))
             throw new RuntimeError(expr.name, "Operand must be of type int.");
-        
-        if (expr.sign.type == TokenType.INCREMENT)
-            currVal = ((int)currVal + (int)1);
-        else
-            currVal = ((int)currVal - (int)1);
-        
-        environment.assign(expr.name, currVal);
 
-        return currVal;
+        int value = (int)currVal + delta;
+        stack.set(expr.kind, expr.slot, expr.symbol, expr.name, value);
+        return value;
     }
 
     /**
@@ -99,55 +261,79 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
     public Object visitAssignExpr(Expr.Assign expr)
     {
         Object value = evaluate(expr.value);
-        environment.assign(expr.name, value);
+
+        if (expr.kind == Resolver.GLOBAL)
+        {
+            expr.slot = globals.slot(expr.symbol, expr.name);
+            expr.kind = Resolver.GLOBAL_SLOT;
+        }
+
+        stack.set(expr.kind, expr.slot, expr.symbol, expr.name, value);
+
         return value;
     }
+
+    /**
+     * Assignment whose value isn't needed: an int is stored into a local or a global unboxed.
+     */
+    private void assign(Expr.Assign expr)
+    {
+        if (expr.kind != Resolver.LOCAL && expr.kind != Resolver.GLOBAL && expr.kind != Resolver.GLOBAL_SLOT)
+        {
+            visitAssignExpr(expr);
+            return;
+        }
+
+        int value = evaluateInt(expr.value);
+        boolean isInt = !mismatch;
+        Object other = isInt ? null : other();
+
+        if (expr.kind == Resolver.GLOBAL)
+        {
+            expr.slot = globals.slot(expr.symbol, expr.name);
+            expr.kind = Resolver.GLOBAL_SLOT;
+        }
+
+        if (expr.kind == Resolver.LOCAL)
+        {
+            if (isInt)
+                stack.setInt(expr.slot, value);
+            else
+                stack.setLocal(expr.slot, other);
+        }else
+        {
+            if (isInt)
+                globals.setInt(expr.slot, value);
+            else
+                globals.set(expr.slot, other);
+        }
+    }
     
     @Override
     public Object visitBinaryExpr(Expr.Binary expr)
     {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
-
-        switch(expr.operator.type)
+        // the operands are taken as ints first, so the ints held unboxed don't get boxed.
+        int left = evaluateInt(expr.left);
+        if (mismatch)
         {
-            case BANG_EQUAL:
-                return !isEqual(left, right);
-            case EQUAL_EQUAL:
-                return isEqual(left, right);
-            case GREATER:
-                checkNumberOperands(expr.operator, left, right);
-                return (int)left > (int)right;
-            case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (int)left >= (int)right;
-            case LESS:
-                checkNumberOperands(expr.operator, left, right);
-                return (int)left < (int)right;
-            case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (int)left <= (int)right;
-            case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (int)left - (int)right;
-            case PLUS:
-                if (left instanceof Integer && right instanceof Integer)
-                    return (int)left + (int)right;    // add
-                
-                if (left instanceof String && right instanceof String)
-                    return (String)left + (String)right;    // concat
-
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
-            case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                return (int)left / (int)right;
-            case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return (int)left * (int)right;
+            Object value = other();
+            return binary(expr.operator, value, evaluate(expr.right));
         }
 
-        // Expected to be unreachable.
-        return null;
+        int right = evaluateInt(expr.right);
+        if (mismatch)
+            return binary(expr.operator, left, other());
+
+        switch (expr.operator.type)
+        {
+            case LESS:          return left < right;
+            case LESS_EQUAL:    return left <= right;
+            case GREATER:       return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case EQUAL_EQUAL:   return left == right;
+            case BANG_EQUAL:    return left != right;
+            default:            return arithmetic(expr.operator, left, right);
+        }
     }
 
     @Override
@@ -155,31 +341,41 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
     {
         // evaluate the expression for the callee.
         Object callee = evaluate(expr.callee);
+        List<Expr> arguments = expr.arguments;
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments)
+        // up to three arguments are passed as they are, with no list or array to hold them.
+        // The site checks the callee only if it's not the one called there last time.
+        switch (arguments.size())
         {
-            arguments.add(evaluate(argument));
-        }
-
-        if (!(callee instanceof BeeCallable))
-            throw new RuntimeError(expr.paren, "Can only call functions and classes.");
-
-        //cast the callee to a BeeCallable
-        BeeCallable function = (BeeCallable)callee;
+            case 0:
+                return expr.site.check(callee).call0(this, expr.paren);
+            case 1:
+            {
+                Object a = evaluate(arguments.get(0));
+                return expr.site.check(callee).call1(this, a, expr.paren);
+            }
+            case 2:
+            {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                return expr.site.check(callee).call2(this, a, b, expr.paren);
+            }
+            case 3:
+            {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                return expr.site.check(callee).call3(this, a, b, c, expr.paren);
+            }
+            default:
+            {
+                Object[] values = new Object[arguments.size()];
+                for (int i = 0; i < values.length; ++i)
+                    values[i] = evaluate(arguments.get(i));
 
-        if (function.arity() == -1)
-        {
-            // Do nothing. Just skip arity check
-            // because method to be called is a native one and
-            // can accept arguments of variable length.
-        }else if (arguments.size() != function.arity())
-        {
-            throw new RuntimeError(expr.paren, "Expected " + function.arity() + " arguments "
-                                    + "but got " + arguments.size() + ".");
+                return expr.site.check(callee).callArray(this, values, expr.paren);
+            }
         }
-        //perform the call
-        return function.call(this, arguments, expr.paren);
     }
 
     /**
@@ -233,21 +429,20 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
     {
         Object right = evaluate(expr.right);
 
-        switch(expr.operator.type)
-        {
-            case BANG:
-                return (!isTruthy(right));  // logical NOT
-            case MINUS:
-                checkNumberOperand(expr.operator, right);
-        }
-
-        return null;
+        return unary(expr.operator, right);
     }
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr)
     {
-        return environment.get(expr.name);
+        // inline cache: a global never leaves its slot, so it's looked up by symbol only once.
+        if (expr.kind == Resolver.GLOBAL)
+        {
+            expr.slot = globals.slot(expr.symbol, expr.name);
+            expr.kind = Resolver.GLOBAL_SLOT;
+        }
+
+        return stack.get(expr.kind, expr.slot, expr.symbol, expr.name);
     }
     
     // ======================================================= //
@@ -255,83 +450,294 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
     // ======================================================= //
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt)
+    public Completion visitBlockStmt(Stmt.Block stmt)
     {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+        // the locals of the block have their slots in the frame of the enclosing function.
+        return executeBlock(stmt.statements);
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt)
+    public Completion visitBreakStmt(Stmt.Break stmt)
     {
-        evaluate(stmt.expression);
-        return null;
+        return Completion.BREAK;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt)
+    public Completion visitContinueStmt(Stmt.Continue stmt)
     {
-        BeeFunction function = new BeeFunction(stmt, environment);
-        environment.define(stmt.name.lexeme, function, stmt.name);
-        return null;
+        return Completion.CONTINUE;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt)
+    public Completion visitExpressionStmt(Stmt.Expression stmt)
+    {
+        discard(stmt.expression);
+        return Completion.NORMAL;
+    }
+
+    @Override
+    public Completion visitFunctionStmt(Stmt.Function stmt)
+    {
+        if (stmt.kind == Resolver.CELL)
+        {
+            // the function may refer to itself, so its cell is captured before it's filled.
+            ValueStack.Cell cell = stack.defineCell(stmt.slot);
+            cell.value = new BeeFunction(stmt, stack.capture(stmt.upvalues));
+        }else
+        {
+            BeeFunction function = new BeeFunction(stmt, stack.capture(stmt.upvalues));
+            stack.define(stmt.kind, stmt.slot, stmt.symbol, function, stmt.name);
+        }
+        return Completion.NORMAL;
+    }
+
+    @Override
+    public Completion visitIfStmt(Stmt.If stmt)
     {
         if (isTruthy(evaluate(stmt.condition)))
         {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         }else if (null != stmt.elseBranch)
         {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return Completion.NORMAL;
     }
     
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt)
+    public Completion visitReturnStmt(Stmt.Return stmt)
     {
         Object value = null;
-        if (null != stmt.value)
+        if (stmt.tail)
+            value = tailCall((Expr.Call)stmt.value);
+        else if (null != stmt.value)
             value = evaluate(stmt.value);
         
-        throw new Return(value);
+        returned = value;
+        return Completion.RETURN;
+    }
+
+    /**
+     * Same as <code>visitCallExpr()</code>, but the call is made by the caller of the
+     * function being returned from, see <code>BeeFunction.tailCall()</code>.
+     */
+    private Object tailCall(Expr.Call expr)
+    {
+        Object callee = evaluate(expr.callee);
+        List<Expr> arguments = expr.arguments;
+        if (arguments.size() > 3)
+        {
+            Object[] values = new Object[arguments.size()];
+            for (int i = 0; i < values.length; ++i)
+                values[i] = evaluate(arguments.get(i));
+
+            return BeeFunction.tailCall(this, expr.site, callee, null, null, null, values);
+        }
+
+        Object a = (arguments.size() > 0) ? evaluate(arguments.get(0)) : null;
+        Object b = (arguments.size() > 1) ? evaluate(arguments.get(1)) : null;
+        Object c = (arguments.size() > 2) ? evaluate(arguments.get(2)) : null;
+        return BeeFunction.tailCall(this, expr.site, callee, a, b, c, null);
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt)
+    public Completion visitVarStmt(Stmt.Var stmt)
     {
+        if (stmt.kind == Resolver.LOCAL && null != stmt.initializer)
+        {
+            int value = evaluateInt(stmt.initializer);
+            if (mismatch)
+                stack.define(stmt.kind, stmt.slot, stmt.symbol, other(), stmt.name);
+            else
+                stack.setInt(stmt.slot, value);
+            return Completion.NORMAL;
+        }
+
         Object value = null;
         if (null != stmt.initializer)
         {
             value = evaluate(stmt.initializer);
         }
-        environment.define(stmt.name.lexeme, value, stmt.name);
-        return null;
+        stack.define(stmt.kind, stmt.slot, stmt.symbol, value, stmt.name);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt)
+    public Completion visitWhileStmt(Stmt.While stmt)
     {
+        int iterations = 0;
         while(isTruthy(evaluate(stmt.condition)))
         {
-            execute(stmt.body);
+            ++backEdges;
+            Completion completion = execute(stmt.body);
+
+            if (completion == Completion.BREAK)
+                break;
+
+            if (completion == Completion.RETURN)
+                return completion;
+
+            if (null != stmt.increment)
+                discard(stmt.increment);
+
+            // a long loop gets the call finished by the compiled code.
+            if (null != running && ++iterations == JitCompiler.THRESHOLD)
+            {
+                Object value = running.enterLoop(this, stmt);
+                if (value != JitCompiler.DEOPT)
+                {
+                    returned = value;
+                    return Completion.RETURN;
+                }
+            }
         }
-        return null;
+        return Completion.NORMAL;
+    }
+
+    /**
+     * Evaluates the expression whose value isn't needed, so an int assigned
+     * or incremented isn't boxed.
+     */
+    private void discard(Expr expression)
+    {
+        if (expression instanceof Expr.Assign)
+            assign((Expr.Assign)expression);
+        else if (expression instanceof Expr.Increment)
+            increment((Expr.Increment)expression);
+        else
+            evaluate(expression);
     }
 
     // ========================================================= //
     // ======================== Helpers ======================== //
     // ========================================================= //
 
+    /**
+     * Applies binary operator to the already evaluated operands.<p/>
+     * Static, so that every execution engine shares the same semantics of the operators.
+     * @param operator
+     * @param left
+     * @param right
+     * @return
+     */
+    public static Object binary(Token operator, Object left, Object right)
+    {
+        switch(operator.type)
+        {
+            case BANG_EQUAL:
+                return !isEqual(left, right);
+            case EQUAL_EQUAL:
+                return isEqual(left, right);
+            case GREATER:
+                checkNumberOperands(operator, left, right);
+                return (int)left > (int)right;
+            case GREATER_EQUAL:
+                checkNumberOperands(operator, left, right);
+                return (int)left >= (int)right;
+            case LESS:
+                checkNumberOperands(operator, left, right);
+                return (int)left < (int)right;
+            case LESS_EQUAL:
+                checkNumberOperands(operator, left, right);
+                return (int)left <= (int)right;
+            case MINUS:
+                checkNumberOperands(operator, left, right);
+                return (int)left - (int)right;
+            case PLUS:
+                if (left instanceof Integer && right instanceof Integer)
+                    return (int)left + (int)right;    // add
+                
+                if (left instanceof String && right instanceof String)
+                    return (String)left + (String)right;    // concat
+
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+            case SLASH:
+                checkNumberOperands(operator, left, right);
+                if ((int)right == 0)
+                    throw new RuntimeError(operator, "Division by zero.");
+                return (int)left / (int)right;
+            case STAR:
+                checkNumberOperands(operator, left, right);
+                return (int)left * (int)right;
+        }
+
+        // Expected to be unreachable.
+        return null;
+    }
+
+    /**
+     * Applies the arithmetic operator to the int operands.
+     */
+    static int arithmetic(Token operator, int left, int right)
+    {
+        switch (operator.type)
+        {
+            case PLUS:  return left + right;
+            case MINUS: return left - right;
+            case STAR:  return left * right;
+            default:
+                if (right == 0)
+                    throw new RuntimeError(operator, "Division by zero.");
+                return left / right;
+        }
+    }
+
+    /**
+     * Applies unary operator to the already evaluated operand.
+     * @param operator
+     * @param right
+     * @return
+     */
+    public static Object unary(Token operator, Object right)
+    {
+        switch(operator.type)
+        {
+            case BANG:
+                return (!isTruthy(right));  // logical NOT
+            case MINUS:
+                checkNumberOperand(operator, right);
+                return -(int)right;     // negation
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks that the callee is a function which accepts the given number of arguments.
+     * @param callee
+     * @param argCount
+     * @param paren
+     * @return callee cast to a BeeCallable
+     */
+    public static BeeCallable checkCallable(Object callee, int argCount, Token paren)
+    {
+        if (!(callee instanceof BeeCallable))
+            throw new RuntimeError(paren, "Can only call functions and classes.");
+
+        //cast the callee to a BeeCallable
+        BeeCallable function = (BeeCallable)callee;
+
+        if (function.arity() == -1)
+        {
+            // Do nothing. Just skip arity check
+            // because method to be called is a native one and
+            // can accept arguments of variable length.
+        }else if (argCount != function.arity())
+        {
+            throw new RuntimeError(paren, "Expected " + function.arity() + " arguments "
+                                    + "but got " + argCount + ".");
+        }
+
+        return function;
+    }
+
     /**
      * Helper method used in <code>visitUnaryExpr()</code> method to assert Integer value.<p/>
      * Throws BeeLang-specific runtime exception.
      * @param operator
      * @param operand
      */
-    private void checkNumberOperand(Token operator, Object operand)
+    private static void checkNumberOperand(Token operator, Object operand)
     {
         if (operand instanceof Integer)
             return;
@@ -345,7 +751,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
      * @param left
      * @param right
      */
-    private void checkNumberOperands(Token operator, Object left, Object right)
+    private static void checkNumberOperands(Token operator, Object left, Object right)
     {
         if (left instanceof Integer && right instanceof Integer)
             return;
@@ -355,30 +761,26 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
 
     /**
      * Helper method used in <code>visitBlockStmt()</code> method.<p/>
-     * executes a list of statements in the context of a given environment.<p/>
-     * To execute code within a given scope, this method updates the interpreter's
-     * environment field, visits all of the statements,
-     * and then restores the previous value.
+     * executes a list of statements in the current frame of the <code>stack</code>.
+     * The caller is responsible for entering a new frame if the statements need one,
+     * e.g. the body of a function.
      * @param statements
-     * @param environment
+     * @return completion of the statement which has left the block, <code>NORMAL</code>
+     * if all of them have been executed.
      */
-    void executeBlock(List<Stmt>statements, Environment environment)
+    Completion executeBlock(List<Stmt>statements)
     {
-        Environment previous = this.environment;
-        
-        try
-        {
-            this.environment = environment;
-            for (Stmt statement : statements)
-                execute(statement);
-        }finally
+        // indexed, so a block run in a loop doesn't allocate an iterator each time.
+        for (int i = 0; i < statements.size(); ++i)
         {
-            //restore previous environment even if an exception is thrown.
-            this.environment = previous;
+            Completion completion = execute(statements.get(i));
+            if (completion != Completion.NORMAL)
+                return completion;
         }
+        return Completion.NORMAL;
     }
 
-    private boolean isTruthy(Object object)
+    public static boolean isTruthy(Object object)
     {
         if (object == null)
             return false;
@@ -395,7 +797,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
      * @param b
      * @return
      */
-    private boolean isEqual(Object a, Object b)
+    private static boolean isEqual(Object a, Object b)
     {
         if (a == null && b == null)
             return true;
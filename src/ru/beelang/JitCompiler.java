@@ -0,0 +1,1019 @@
+package ru.beelang;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ru.beelang.jit.Assembler;
+
+import static ru.beelang.jit.Assembler.*;
+
+/**
+ * Second tier of the tree interpreter: translates the body of a hot <code>BeeFunction</code>
+ * into JVM bytecode, loaded as a hidden class.<p/>
+ * A function gets compiled once its count of calls and loop iterations crosses
+ * <code>THRESHOLD</code> (see <code>BeeFunction.call()</code>). The locals which are
+ * only ever assigned ints are kept in JVM int locals, so the arithmetic, comparisons
+ * and increments on them are plain JVM instructions which the JIT of the JVM compiles
+ * further, the rest of the values stay boxed and go through the operators of the
+ * <code>Interpreter</code>. The types of the locals are inferred from the body; the
+ * types of the parameters are taken from the arguments of the call that triggered the
+ * compilation, and checked on entry: if an argument isn't the int the code expects, the
+ * code returns <code>DEOPT</code> before doing anything, and the call falls back to the
+ * interpreter while the function is recompiled with that parameter generalized.
+ * <p>A single call may run a loop long enough to matter on its own, so a loop which
+ * crosses <code>THRESHOLD</code> iterations gets the function compiled with an extra
+ * entry right at the condition of that loop (see <code>compileLoop()</code>): the code
+ * takes the values the locals have in the frame of the call and finishes it, the
+ * interpreter just returns what the code returns.</p>
+ * <p>Only the functions which neither capture variables nor declare functions of their
+ * own are compiled, the other ones always stay interpreted. The globals are accessed
+ * through <code>Global</code> references, which look the slot up once, and the calls
+ * and runtime errors go through the same helpers the interpreter uses.</p>
+ */
+class JitCompiler
+{
+    /**
+     * Compiled body, implemented by the generated hidden class. The first three arguments
+     * are passed as they are, so a call of a small function needs no array; the array of
+     * all of them is passed only if there are more.
+     */
+    interface Code
+    {
+        Object run(Object[] constants, Object a, Object b, Object c, Object[] arguments, Interpreter interpreter);
+    }
+
+    /** Code of a function along with its constants and the parameter types it expects. */
+    static final class Compiled
+    {
+        private final Code code;
+        private final Object[] constants;
+        private final boolean[] intParams;
+
+        private Compiled(Code code, Object[] constants, boolean[] intParams)
+        {
+            this.code = code;
+            this.constants = constants;
+            this.intParams = intParams;
+        }
+
+        /**
+         * @param arguments all the arguments, needed only if there are more than three.
+         * @return the value returned by the function, or <code>DEOPT</code> if the code
+         * can't take the arguments given.
+         */
+        Object run(Object a, Object b, Object c, Object[] arguments, Interpreter interpreter)
+        {
+            return code.run(constants, a, b, c, arguments, interpreter);
+        }
+    }
+
+    /** Number of calls and loop iterations of a function to get it compiled. */
+    static final int THRESHOLD = 1000;
+
+    /** Returned by the code whose parameter type checks have failed. */
+    static final Object DEOPT = new Object();
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String TOKEN = "Lru/beelang/Token;";
+    private static final String SELF = "ru/beelang/JitCompiler";
+    private static final String GLOBAL = "ru/beelang/JitCompiler$Global";
+    private static final String SITE = "ru/beelang/CallSite";
+
+    /** Static types of the values the expressions leave on the JVM stack. */
+    private static final int OBJ = 0;
+    private static final int INT = 1;
+    private static final int BOOL = 2;
+
+    /** JVM locals of the parameters of <code>Code.run()</code>, following 'this'. */
+    private static final int CONSTANTS = 1;
+    private static final int FIRST_ARGUMENT = 2;
+    private static final int ARGUMENTS = 5;
+    private static final int INTERPRETER = 6;
+    /** JVM local of the first slot of the frame. */
+    private static final int FIRST_LOCAL = 7;
+
+    /** Thrown on the constructs the compiler doesn't handle. */
+    private static final class Unsupported extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported()
+        {
+            super(null, null, false, false);
+        }
+    }
+
+    private final Environment globals;
+    private final Assembler asm = new Assembler();
+    private final List<Object> constants = new ArrayList<>();
+    /** Whether each slot of the frame is an int local. */
+    private final boolean[] ints;
+    /** Assignments to the slots found in the body: the slot and the value, null for a bare declaration. */
+    private final List<Integer> assignedSlots = new ArrayList<>();
+    private final List<Expr> assignedValues = new ArrayList<>();
+    /** Targets of 'break' and 'continue' in the innermost loop being compiled. */
+    private Label breakLabel = null;
+    private Label continueLabel = null;
+    /** Loop the code is entered at from the interpreter, and the label of its condition. */
+    private Stmt.While entryLoop = null;
+    private final Label entry = new Label();
+
+    private JitCompiler(int locals, Environment globals)
+    {
+        this.ints = new boolean[locals];
+        this.globals = globals;
+    }
+
+    /**
+     * Compiles the body of the function.
+     * @param declaration
+     * @param body resolved statements of the body.
+     * @param arguments of the current call, the parameters which get ints are specialized for ints.
+     * @param previous code compiled for the function before, which has failed the checks of
+     * the parameter types; the parameters it didn't specialize stay generic.
+     * @param globals the globals are looked up in.
+     * @return the code, or null if the body can't be compiled.
+     */
+    static Compiled compile(Stmt.Function declaration, List<Stmt> body, Object[] arguments,
+                            Compiled previous, Environment globals)
+    {
+        if (declaration.upvalues.length > 0 || declaration.cells.length > 0)
+            return null;
+
+        int arity = declaration.params.size();
+        boolean[] intParams = new boolean[arity];
+        for (int i = 0; i < arity; ++i)
+            intParams[i] = arguments[i] instanceof Integer && (null == previous || previous.intParams[i]);
+
+        return compile(declaration, body, intParams, null, globals);
+    }
+
+    /**
+     * Compiles the body of the function to be entered at the loop the interpreter is
+     * running: the code loads the locals from the frame and jumps to the condition of
+     * the loop, the function is finished by the code. The parameters holding ints are
+     * specialized for ints, as they are by the call. The code is run once, so it
+     * checks nothing on entry.
+     * @param frame values of all the slots of the frame, the code's array of arguments.
+     * @param loop being run by the interpreter.
+     * @return the code, or null if the body can't be compiled.
+     */
+    static Compiled compileLoop(Stmt.Function declaration, List<Stmt> body, Object[] frame,
+                                Stmt.While loop, Environment globals)
+    {
+        if (declaration.upvalues.length > 0 || declaration.cells.length > 0)
+            return null;
+
+        boolean[] intParams = new boolean[declaration.params.size()];
+        for (int i = 0; i < intParams.length; ++i)
+            intParams[i] = frame[i] instanceof Integer;
+
+        return compile(declaration, body, intParams, loop, globals);
+    }
+
+    private static Compiled compile(Stmt.Function declaration, List<Stmt> body, boolean[] intParams,
+                                    Stmt.While loop, Environment globals)
+    {
+        JitCompiler compiler = new JitCompiler(declaration.locals, globals);
+        int arity = intParams.length;
+        compiler.entryLoop = loop;
+
+        try
+        {
+            for (Stmt stmt : body)
+                compiler.scan(stmt);
+
+            compiler.inferTypes(arity, intParams);
+            if (null == loop)
+                compiler.function(arity, body);
+            else
+                compiler.loopEntry(body);
+
+            byte[] bytes = compiler.asm.toClass("ru/beelang/JitCode", "ru/beelang/JitCompiler$Code", "run",
+                                                "([" + OBJECT + OBJECT + OBJECT + OBJECT + "[" + OBJECT
+                                                + "Lru/beelang/Interpreter;)" + OBJECT,
+                                                FIRST_LOCAL + declaration.locals);
+            MethodHandles.Lookup lookup = LOOKUP.defineHiddenClass(bytes, true);
+            Code code = (Code)lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+                                    .invoke();
+            boolean[] specialized = Arrays.copyOf(compiler.ints, arity);
+            return new Compiled(code, compiler.constants.toArray(), specialized);
+        }catch (Unsupported | IllegalStateException e)
+        {
+            return null;
+        }catch (RuntimeException | Error e)
+        {
+            throw e;
+        }catch (Throwable e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ========================================================= //
+    // ==================== Type inference ===================== //
+    // ========================================================= //
+
+    /**
+     * Checks the body can be compiled and collects the assignments to the locals.
+     */
+    private void scan(Stmt stmt)
+    {
+        if (null == stmt)
+            return;
+
+        if (stmt instanceof Stmt.Block)
+        {
+            for (Stmt statement : ((Stmt.Block)stmt).statements)
+                scan(statement);
+        }else if (stmt instanceof Stmt.Expression)
+        {
+            scan(((Stmt.Expression)stmt).expression);
+        }else if (stmt instanceof Stmt.If)
+        {
+            Stmt.If branch = (Stmt.If)stmt;
+            scan(branch.condition);
+            scan(branch.thenBranch);
+            scan(branch.elseBranch);
+        }else if (stmt instanceof Stmt.While)
+        {
+            scan(((Stmt.While)stmt).condition);
+            scan(((Stmt.While)stmt).body);
+            if (null != ((Stmt.While)stmt).increment)
+                scan(((Stmt.While)stmt).increment);
+        }else if (stmt instanceof Stmt.Break || stmt instanceof Stmt.Continue)
+        {
+            // nothing is assigned.
+        }else if (stmt instanceof Stmt.Return)
+        {
+            if (null != ((Stmt.Return)stmt).value)
+                scan(((Stmt.Return)stmt).value);
+        }else if (stmt instanceof Stmt.Var && ((Stmt.Var)stmt).kind == Resolver.LOCAL)
+        {
+            Stmt.Var var = (Stmt.Var)stmt;
+            if (null != var.initializer)
+                scan(var.initializer);
+            assignedSlots.add(var.slot);
+            assignedValues.add(var.initializer);
+        }else
+        {
+            // nested functions and redeclarations.
+            throw new Unsupported();
+        }
+    }
+
+    private void scan(Expr expr)
+    {
+        if (expr instanceof Expr.Literal || expr instanceof Expr.ArrayIndex)
+            return;
+
+        if (expr instanceof Expr.Variable)
+        {
+            access(((Expr.Variable)expr).kind);
+        }else if (expr instanceof Expr.Assign)
+        {
+            Expr.Assign assign = (Expr.Assign)expr;
+            access(assign.kind);
+            scan(assign.value);
+            if (assign.kind == Resolver.LOCAL)
+            {
+                assignedSlots.add(assign.slot);
+                assignedValues.add(assign.value);
+            }
+        }else if (expr instanceof Expr.Increment)
+        {
+            access(((Expr.Increment)expr).kind);
+        }else if (expr instanceof Expr.Binary)
+        {
+            scan(((Expr.Binary)expr).left);
+            scan(((Expr.Binary)expr).right);
+        }else if (expr instanceof Expr.Logical)
+        {
+            scan(((Expr.Logical)expr).left);
+            scan(((Expr.Logical)expr).right);
+        }else if (expr instanceof Expr.Unary)
+        {
+            scan(((Expr.Unary)expr).right);
+        }else if (expr instanceof Expr.Grouping)
+        {
+            scan(((Expr.Grouping)expr).expression);
+        }else if (expr instanceof Expr.Call)
+        {
+            scan(((Expr.Call)expr).callee);
+            for (Expr argument : ((Expr.Call)expr).arguments)
+                scan(argument);
+        }else
+        {
+            throw new Unsupported();
+        }
+    }
+
+    private static void access(int kind)
+    {
+        if (kind != Resolver.LOCAL && kind != Resolver.GLOBAL && kind != Resolver.GLOBAL_SLOT)
+            throw new Unsupported();
+    }
+
+    /**
+     * Makes int locals of the slots which get nothing but ints: starts with all of them
+     * (but the generic parameters) and drops the ones assigned a value of another type,
+     * until no more get dropped, since dropping a slot may change the type of the values
+     * computed from it.
+     */
+    private void inferTypes(int arity, boolean[] intParams)
+    {
+        Arrays.fill(ints, true);
+        System.arraycopy(intParams, 0, ints, 0, arity);
+
+        boolean changed = true;
+        while (changed)
+        {
+            changed = false;
+            for (int i = 0; i < assignedSlots.size(); ++i)
+            {
+                int slot = assignedSlots.get(i);
+                Expr value = assignedValues.get(i);
+                if (ints[slot] && (null == value || type(value) != INT))
+                {
+                    ints[slot] = false;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private boolean isIntLocal(int kind, int slot)
+    {
+        return kind == Resolver.LOCAL && ints[slot];
+    }
+
+    private int type(Expr expr)
+    {
+        if (expr instanceof Expr.Literal)
+            return (((Expr.Literal)expr).value instanceof Integer) ? INT : OBJ;
+
+        if (expr instanceof Expr.Grouping)
+            return type(((Expr.Grouping)expr).expression);
+
+        if (expr instanceof Expr.Variable)
+            return isIntLocal(((Expr.Variable)expr).kind, ((Expr.Variable)expr).slot) ? INT : OBJ;
+
+        if (expr instanceof Expr.Assign)
+            return isIntLocal(((Expr.Assign)expr).kind, ((Expr.Assign)expr).slot) ? INT : OBJ;
+
+        if (expr instanceof Expr.Increment)
+            return isIntLocal(((Expr.Increment)expr).kind, ((Expr.Increment)expr).slot) ? INT : OBJ;
+
+        if (expr instanceof Expr.Binary)
+        {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if (type(binary.left) != INT || type(binary.right) != INT)
+                return OBJ;
+
+            switch (binary.operator.type)
+            {
+                case PLUS: case MINUS: case STAR: case SLASH:
+                    return INT;
+                default:
+                    return BOOL;
+            }
+        }
+
+        if (expr instanceof Expr.Unary)
+        {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (unary.operator.type == TokenType.BANG)
+                return BOOL;
+
+            return (type(unary.right) == INT) ? INT : OBJ;
+        }
+
+        return OBJ;
+    }
+
+    // ========================================================= //
+    // ===================== Code generation =================== //
+    // ========================================================= //
+
+    private void function(int arity, List<Stmt> body)
+    {
+        // the arguments are checked and unboxed before anything else is done.
+        Label deopt = new Label();
+        for (int slot = 0; slot < arity; ++slot)
+        {
+            if (slot < 3)
+            {
+                asm.local(ALOAD, FIRST_ARGUMENT + slot);
+            }else
+            {
+                asm.local(ALOAD, ARGUMENTS);
+                asm.push(slot);
+                asm.op(AALOAD);
+            }
+
+            if (ints[slot])
+            {
+                asm.op(DUP);
+                asm.type(INSTANCEOF, "java/lang/Integer");
+                asm.jump(IFEQ, deopt);
+                asm.type(CHECKCAST, "java/lang/Integer");
+                asm.invoke(INVOKEVIRTUAL, "java/lang/Integer", "intValue", "()I");
+                asm.local(ISTORE, FIRST_LOCAL + slot);
+            }else
+            {
+                asm.local(ASTORE, FIRST_LOCAL + slot);
+            }
+        }
+
+        // the verifier needs every local set before it's read on any path.
+        for (int slot = arity; slot < ints.length; ++slot)
+        {
+            if (ints[slot])
+            {
+                asm.push(0);
+                asm.local(ISTORE, FIRST_LOCAL + slot);
+            }else
+            {
+                asm.op(ACONST_NULL);
+                asm.local(ASTORE, FIRST_LOCAL + slot);
+            }
+        }
+
+        for (Stmt stmt : body)
+            statement(stmt);
+
+        asm.op(ACONST_NULL);
+        asm.op(ARETURN);
+
+        boolean guarded = false;
+        for (int slot = 0; slot < arity; ++slot)
+            guarded |= ints[slot];
+
+        if (guarded)
+        {
+            asm.mark(deopt);
+            asm.op(POP);
+            asm.getStatic(SELF, "DEOPT", OBJECT);
+            asm.op(ARETURN);
+        }
+    }
+
+    /**
+     * The entry of <code>compileLoop()</code>: takes all the locals from the frame and
+     * jumps to the loop, the code of the body before the loop is never run.
+     */
+    private void loopEntry(List<Stmt> body)
+    {
+        for (int slot = 0; slot < ints.length; ++slot)
+        {
+            asm.local(ALOAD, ARGUMENTS);
+            asm.push(slot);
+            asm.op(AALOAD);
+            if (ints[slot])
+            {
+                asm.invoke(INVOKESTATIC, SELF, "intOf", "(" + OBJECT + ")I");
+                asm.local(ISTORE, FIRST_LOCAL + slot);
+            }else
+            {
+                asm.local(ASTORE, FIRST_LOCAL + slot);
+            }
+        }
+        asm.jump(GOTO, entry);
+
+        for (Stmt stmt : body)
+            statement(stmt);
+
+        asm.op(ACONST_NULL);
+        asm.op(ARETURN);
+    }
+
+    private void constant(Object value)
+    {
+        int index = -1;
+        for (int i = 0; i < constants.size(); ++i)
+        {
+            if (constants.get(i) == value)
+                index = i;
+        }
+
+        if (index < 0)
+        {
+            index = constants.size();
+            constants.add(value);
+        }
+
+        asm.local(ALOAD, CONSTANTS);
+        asm.push(index);
+        asm.op(AALOAD);
+    }
+
+    private void token(Token token)
+    {
+        constant(token);
+        asm.type(CHECKCAST, "ru/beelang/Token");
+    }
+
+    private void global(int symbol, Token name)
+    {
+        constant(new Global(symbol, name, globals));
+        asm.type(CHECKCAST, GLOBAL);
+    }
+
+    private void statement(Stmt stmt)
+    {
+        if (null == stmt)
+            return;
+
+        if (stmt instanceof Stmt.Block)
+        {
+            for (Stmt statement : ((Stmt.Block)stmt).statements)
+                statement(statement);
+        }else if (stmt instanceof Stmt.Expression)
+        {
+            discard(((Stmt.Expression)stmt).expression);
+        }else if (stmt instanceof Stmt.If)
+        {
+            Stmt.If branch = (Stmt.If)stmt;
+            Label elseBranch = new Label();
+            branchFalse(branch.condition, elseBranch);
+            statement(branch.thenBranch);
+            if (null == branch.elseBranch)
+            {
+                asm.mark(elseBranch);
+            }else
+            {
+                Label end = new Label();
+                asm.jump(GOTO, end);
+                asm.mark(elseBranch);
+                statement(branch.elseBranch);
+                asm.mark(end);
+            }
+        }else if (stmt instanceof Stmt.While)
+        {
+            Stmt.While loop = (Stmt.While)stmt;
+            Label enclosingBreak = breakLabel;
+            Label enclosingContinue = continueLabel;
+            Label start = (loop == entryLoop) ? entry : new Label();
+            breakLabel = new Label();
+            continueLabel = new Label();
+
+            asm.mark(start);
+            branchFalse(loop.condition, breakLabel);
+            statement(loop.body);
+            asm.mark(continueLabel);
+            if (null != loop.increment)
+                discard(loop.increment);
+            asm.jump(GOTO, start);
+            asm.mark(breakLabel);
+
+            breakLabel = enclosingBreak;
+            continueLabel = enclosingContinue;
+        }else if (stmt instanceof Stmt.Break)
+        {
+            asm.jump(GOTO, breakLabel);
+        }else if (stmt instanceof Stmt.Continue)
+        {
+            asm.jump(GOTO, continueLabel);
+        }else if (stmt instanceof Stmt.Return)
+        {
+            Expr value = ((Stmt.Return)stmt).value;
+            if (null == value)
+                asm.op(ACONST_NULL);
+            else if (((Stmt.Return)stmt).tail)
+                call((Expr.Call)value, "tail");
+            else
+                expression(value, OBJ);
+            asm.op(ARETURN);
+        }else
+        {
+            Stmt.Var var = (Stmt.Var)stmt;
+            if (null == var.initializer)
+                asm.op(ACONST_NULL);
+            else
+                expression(var.initializer, ints[var.slot] ? INT : OBJ);
+            asm.local(ints[var.slot] ? ISTORE : ASTORE, FIRST_LOCAL + var.slot);
+        }
+    }
+
+    /**
+     * Evaluates the expression of a statement, the value is dropped.
+     */
+    private void discard(Expr expression)
+    {
+        expression(expression, type(expression));
+        asm.op(POP);
+    }
+
+    /**
+     * Jumps to the label if the condition is falsey. An int comparison is a single
+     * JVM compare-and-branch.
+     */
+    private void branchFalse(Expr condition, Label target)
+    {
+        while (condition instanceof Expr.Grouping)
+            condition = ((Expr.Grouping)condition).expression;
+
+        if (condition instanceof Expr.Binary && type(condition) == BOOL)
+        {
+            Expr.Binary binary = (Expr.Binary)condition;
+            expression(binary.left, INT);
+            expression(binary.right, INT);
+            asm.jump(inverse(compare(binary.operator.type)), target);
+            return;
+        }
+
+        if (condition instanceof Expr.Logical && ((Expr.Logical)condition).operator.type == TokenType.AND)
+        {
+            branchFalse(((Expr.Logical)condition).left, target);
+            branchFalse(((Expr.Logical)condition).right, target);
+            return;
+        }
+
+        expression(condition, BOOL);
+        asm.jump(IFEQ, target);
+    }
+
+    private static int compare(TokenType type)
+    {
+        switch (type)
+        {
+            case LESS:          return IF_ICMPLT;
+            case LESS_EQUAL:    return IF_ICMPLE;
+            case GREATER:       return IF_ICMPGT;
+            case GREATER_EQUAL: return IF_ICMPGE;
+            case EQUAL_EQUAL:   return IF_ICMPEQ;
+            default:            return IF_ICMPNE;
+        }
+    }
+
+    private static int inverse(int compare)
+    {
+        switch (compare)
+        {
+            case IF_ICMPLT: return IF_ICMPGE;
+            case IF_ICMPLE: return IF_ICMPGT;
+            case IF_ICMPGT: return IF_ICMPLE;
+            case IF_ICMPGE: return IF_ICMPLT;
+            case IF_ICMPEQ: return IF_ICMPNE;
+            default:        return IF_ICMPEQ;
+        }
+    }
+
+    /**
+     * Emits the expression and converts its value to the requested type.
+     * @param want <code>OBJ</code>, <code>BOOL</code> for a truthiness, or <code>INT</code>
+     * if the expression is an int one.
+     */
+    private void expression(Expr expr, int want)
+    {
+        int type = type(expr);
+        emit(expr);
+
+        if (type == want)
+            return;
+
+        if (want == OBJ)
+        {
+            if (type == INT)
+                asm.invoke(INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;");
+            else
+                asm.invoke(INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+        }else if (want == BOOL)
+        {
+            if (type == INT)
+            {
+                // an int is always truthy.
+                asm.op(POP);
+                asm.push(1);
+            }else
+            {
+                asm.invoke(INVOKESTATIC, "ru/beelang/Interpreter", "isTruthy", "(" + OBJECT + ")Z");
+            }
+        }else
+        {
+            throw new IllegalStateException("Not an int expression.");
+        }
+    }
+
+    /** Emits the expression leaving the value of its own <code>type()</code>. */
+    private void emit(Expr expr)
+    {
+        if (expr instanceof Expr.Literal)
+        {
+            Object value = ((Expr.Literal)expr).value;
+            if (value instanceof Integer)
+                asm.push((int)value);
+            else if (null == value)
+                asm.op(ACONST_NULL);
+            else
+                constant(value);
+        }else if (expr instanceof Expr.ArrayIndex)
+        {
+            // not implemented by the interpreter either.
+            asm.op(ACONST_NULL);
+        }else if (expr instanceof Expr.Grouping)
+        {
+            emit(((Expr.Grouping)expr).expression);
+        }else if (expr instanceof Expr.Variable)
+        {
+            Expr.Variable variable = (Expr.Variable)expr;
+            if (variable.kind == Resolver.LOCAL)
+            {
+                asm.local(ints[variable.slot] ? ILOAD : ALOAD, FIRST_LOCAL + variable.slot);
+            }else
+            {
+                global(variable.symbol, variable.name);
+                asm.invoke(INVOKEVIRTUAL, GLOBAL, "get", "()" + OBJECT);
+            }
+        }else if (expr instanceof Expr.Assign)
+        {
+            assign((Expr.Assign)expr);
+        }else if (expr instanceof Expr.Increment)
+        {
+            increment((Expr.Increment)expr);
+        }else if (expr instanceof Expr.Binary)
+        {
+            binary((Expr.Binary)expr);
+        }else if (expr instanceof Expr.Logical)
+        {
+            Expr.Logical logical = (Expr.Logical)expr;
+            Label end = new Label();
+            // the left operand is the result if it decides the outcome, otherwise it's dropped.
+            expression(logical.left, OBJ);
+            asm.op(DUP);
+            asm.invoke(INVOKESTATIC, "ru/beelang/Interpreter", "isTruthy", "(" + OBJECT + ")Z");
+            asm.jump((logical.operator.type == TokenType.OR) ? IFNE : IFEQ, end);
+            asm.op(POP);
+            expression(logical.right, OBJ);
+            asm.mark(end);
+        }else if (expr instanceof Expr.Unary)
+        {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (unary.operator.type == TokenType.BANG)
+            {
+                expression(unary.right, BOOL);
+                asm.push(1);
+                asm.op(IXOR);
+            }else if (type(unary.right) == INT)
+            {
+                emit(unary.right);
+                asm.op(INEG);
+            }else
+            {
+                token(unary.operator);
+                expression(unary.right, OBJ);
+                asm.invoke(INVOKESTATIC, "ru/beelang/Interpreter", "unary", "(" + TOKEN + OBJECT + ")" + OBJECT);
+            }
+        }else
+        {
+            call((Expr.Call)expr, "call");
+        }
+    }
+
+    /**
+     * @param helper prefix of the static helpers making the call: <code>"call"</code>,
+     * or <code>"tail"</code> for the call in tail position.
+     */
+    private void call(Expr.Call call, String helper)
+    {
+        int count = call.arguments.size();
+        expression(call.callee, OBJ);
+
+        // up to three arguments are passed as they are, see the call helpers.
+        String descriptor;
+        if (count <= 3)
+        {
+            for (Expr argument : call.arguments)
+                expression(argument, OBJ);
+            descriptor = "(" + OBJECT + OBJECT.repeat(count);
+        }else
+        {
+            asm.push(count);
+            asm.type(ANEWARRAY, "java/lang/Object");
+            for (int i = 0; i < count; ++i)
+            {
+                asm.op(DUP);
+                asm.push(i);
+                expression(call.arguments.get(i), OBJ);
+                asm.op(AASTORE);
+            }
+            descriptor = "(" + OBJECT + "[" + OBJECT;
+        }
+
+        constant(call.site);
+        asm.type(CHECKCAST, SITE);
+        asm.local(ALOAD, INTERPRETER);
+        asm.invoke(INVOKESTATIC, SELF, (count <= 3) ? helper + count : helper,
+                   descriptor + "L" + SITE + ";Lru/beelang/Interpreter;)" + OBJECT);
+    }
+
+    private void assign(Expr.Assign expr)
+    {
+        if (expr.kind == Resolver.LOCAL)
+        {
+            boolean isInt = ints[expr.slot];
+            expression(expr.value, isInt ? INT : OBJ);
+            asm.op(DUP);
+            asm.local(isInt ? ISTORE : ASTORE, FIRST_LOCAL + expr.slot);
+            return;
+        }
+
+        global(expr.symbol, expr.name);
+        expression(expr.value, OBJ);
+        asm.invoke(INVOKEVIRTUAL, GLOBAL, "set", "(" + OBJECT + ")" + OBJECT);
+    }
+
+    private void increment(Expr.Increment expr)
+    {
+        int delta = (expr.sign.type == TokenType.INCREMENT) ? 1 : -1;
+        String helper = "(" + OBJECT + "I" + TOKEN + ")" + OBJECT;
+        if (expr.kind == Resolver.LOCAL)
+        {
+            int local = FIRST_LOCAL + expr.slot;
+            if (ints[expr.slot])
+            {
+                asm.iinc(local, delta);
+                asm.local(ILOAD, local);
+            }else
+            {
+                asm.local(ALOAD, local);
+                asm.push(delta);
+                token(expr.name);
+                asm.invoke(INVOKESTATIC, SELF, "increment", helper);
+                asm.op(DUP);
+                asm.local(ASTORE, local);
+            }
+            return;
+        }
+
+        global(expr.symbol, expr.name);
+        asm.op(DUP);
+        asm.invoke(INVOKEVIRTUAL, GLOBAL, "get", "()" + OBJECT);
+        asm.push(delta);
+        token(expr.name);
+        asm.invoke(INVOKESTATIC, SELF, "increment", helper);
+        asm.invoke(INVOKEVIRTUAL, GLOBAL, "set", "(" + OBJECT + ")" + OBJECT);
+    }
+
+    private void binary(Expr.Binary expr)
+    {
+        int type = type(expr);
+        if (type == OBJ)
+        {
+            token(expr.operator);
+            expression(expr.left, OBJ);
+            expression(expr.right, OBJ);
+            asm.invoke(INVOKESTATIC, "ru/beelang/Interpreter", "binary", "(" + TOKEN + OBJECT + OBJECT + ")" + OBJECT);
+            return;
+        }
+
+        emit(expr.left);
+        emit(expr.right);
+        switch (expr.operator.type)
+        {
+            case PLUS:
+                asm.op(IADD);
+                return;
+            case MINUS:
+                asm.op(ISUB);
+                return;
+            case STAR:
+                asm.op(IMUL);
+                return;
+            case SLASH:
+                token(expr.operator);
+                asm.invoke(INVOKESTATIC, SELF, "divide", "(II" + TOKEN + ")I");
+                return;
+            default:
+            {
+                Label holds = new Label();
+                Label end = new Label();
+                asm.jump(compare(expr.operator.type), holds);
+                asm.push(0);
+                asm.jump(GOTO, end);
+                asm.mark(holds);
+                asm.push(1);
+                asm.mark(end);
+            }
+        }
+    }
+
+    // ========================================================= //
+    // ======================== Runtime ======================== //
+    // ========================================================= //
+
+    /** Reference to a global, which looks the slot up on the first access and keeps it. */
+    static final class Global
+    {
+        private final int symbol;
+        private final Token name;
+        private final Environment globals;
+        private int slot = -1;
+
+        Global(int symbol, Token name, Environment globals)
+        {
+            this.symbol = symbol;
+            this.name = name;
+            this.globals = globals;
+        }
+
+        Object get()
+        {
+            if (slot < 0)
+                slot = globals.slot(symbol, name);
+
+            return globals.get(slot);
+        }
+
+        Object set(Object value)
+        {
+            if (slot < 0)
+                slot = globals.slot(symbol, name);
+
+            globals.set(slot, value);
+            return value;
+        }
+    }
+
+    static int divide(int left, int right, Token operator)
+    {
+        if (right == 0)
+            Interpreter.binary(operator, left, right);    // reports the division by zero
+
+        return left / right;
+    }
+
+    /**
+     * @return the value of the slot the code keeps in an int local. The slot which doesn't
+     * hold an int yet belongs to a variable which isn't defined at the entry, so the
+     * local is just set, as <code>function()</code> sets it.
+     */
+    static int intOf(Object value)
+    {
+        return (value instanceof Integer) ? (int)value : 0;
+    }
+
+    static Object increment(Object value, int delta, Token name)
+    {
+        if (!(value instanceof Integer))
+            throw new RuntimeError(name, "Operand must be of type int.");
+
+        return (int)value + delta;
+    }
+
+    static Object call0(Object callee, CallSite site, Interpreter interpreter)
+    {
+        return site.check(callee).call0(interpreter, site.paren);
+    }
+
+    static Object call1(Object callee, Object a, CallSite site, Interpreter interpreter)
+    {
+        return site.check(callee).call1(interpreter, a, site.paren);
+    }
+
+    static Object call2(Object callee, Object a, Object b, CallSite site, Interpreter interpreter)
+    {
+        return site.check(callee).call2(interpreter, a, b, site.paren);
+    }
+
+    static Object call3(Object callee, Object a, Object b, Object c, CallSite site, Interpreter interpreter)
+    {
+        return site.check(callee).call3(interpreter, a, b, c, site.paren);
+    }
+
+    static Object call(Object callee, Object[] arguments, CallSite site, Interpreter interpreter)
+    {
+        return site.check(callee).callArray(interpreter, arguments, site.paren);
+    }
+
+    /** Calls in tail position, see <code>BeeFunction.tailCall()</code>. */
+    static Object tail0(Object callee, CallSite site, Interpreter interpreter)
+    {
+        return BeeFunction.tailCall(interpreter, site, callee, null, null, null, null);
+    }
+
+    static Object tail1(Object callee, Object a, CallSite site, Interpreter interpreter)
+    {
+        return BeeFunction.tailCall(interpreter, site, callee, a, null, null, null);
+    }
+
+    static Object tail2(Object callee, Object a, Object b, CallSite site, Interpreter interpreter)
+    {
+        return BeeFunction.tailCall(interpreter, site, callee, a, b, null, null);
+    }
+
+    static Object tail3(Object callee, Object a, Object b, Object c, CallSite site, Interpreter interpreter)
+    {
+        return BeeFunction.tailCall(interpreter, site, callee, a, b, c, null);
+    }
+
+    static Object tail(Object callee, Object[] arguments, CallSite site, Interpreter interpreter)
+    {
+        return BeeFunction.tailCall(interpreter, site, callee, null, null, null, arguments);
+    }
+}
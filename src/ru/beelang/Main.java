@@ -4,32 +4,97 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.nio.file.Files;
 
+import ru.beelang.nodes.Nodes;
+import ru.beelang.nodes.StmtNode;
+
 
 public class Main
 {
     private static final Interpreter interpreter = new Interpreter();
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
+    /** Set by '-mmap' option: scripts are memory-mapped and scanned as bytes, see <code>Source.map()</code>. */
+    private static boolean mapSources = false;
+    /** Set by '-pipeline' option: next scripts are prepared on background threads while the current one runs. */
+    private static boolean pipelined = false;
+    /** Set by '-cache[=dir]' option: syntax trees of the scripts are cached on disk. */
+    private static AstCache astCache = null;
+    /** Selected by '-engine=name' option: the way the syntax tree gets executed. */
+    private static String engine = "tree";
+    /** Set by '-lazy' option: function bodies are parsed on the first call. */
+    private static boolean lazyBodies = false;
+    /** Set by '-parallel' option: large scripts are scanned in chunks on several threads. */
+    private static boolean parallelScan = false;
+    /** Set by '-stream' option: the parser pulls tokens from the scanner instead of taking a complete buffer. */
+    private static boolean streamTokens = false;
+
+    /**
+     * Syntax errors of the script being prepared on a background thread.<p/>
+     * The errors are held back until the interpreter gets to that script, so they are
+     * reported in the same order and at the same moment as if the scripts were processed
+     * strictly one after another.
+     */
+    private static final ThreadLocal<StringBuilder> deferredErrors = new ThreadLocal<>();
 
     public static void main(String[] args) throws IOException
     {
-        if (args.length > 1)
+        int argIdx = 0;
+        for (; argIdx < args.length && args[argIdx].startsWith("-"); ++argIdx)
+        {
+            if (args[argIdx].equals("-mmap"))
+                mapSources = true;
+            else if (args[argIdx].equals("-pipeline"))
+                pipelined = true;
+            else if (args[argIdx].equals("-cache"))
+                astCache = new AstCache(Paths.get(System.getProperty("user.home"), ".beelang", "cache"),
+                                        interpreter.symbols);
+            else if (args[argIdx].startsWith("-cache="))
+                astCache = new AstCache(Paths.get(args[argIdx].substring("-cache=".length())),
+                                        interpreter.symbols);
+            else if (args[argIdx].equals("-lazy"))
+                lazyBodies = true;
+            else if (args[argIdx].equals("-jit"))
+                interpreter.jit = true;
+            else if (args[argIdx].equals("-parallel"))
+                parallelScan = true;
+            else if (args[argIdx].equals("-stream"))
+                streamTokens = true;
+            else if (args[argIdx].equals("-engine=tree") || args[argIdx].equals("-engine=arena")
+                                                         || args[argIdx].equals("-engine=nodes")
+                                                         || args[argIdx].equals("-engine=closures"))
+                engine = args[argIdx].substring("-engine=".length());
+            else
+                usage();
+        }
+
+        if (args.length - argIdx > 1)
         {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64); 
-        } else if (args.length == 1)
+            usage();
+        } else if (args.length - argIdx == 1)
         {
-            runFile(args[0]);
+            runFile(args[argIdx]);
         } else
         {
             runPrompt();
         }
     }
 
+    private static void usage()
+    {
+        System.out.println("Usage: jlox [-mmap] [-pipeline] [-cache[=dir]] [-engine=tree|arena|nodes|closures] [-lazy] [-jit] [-parallel] [-stream] [script[;script...]]");
+        System.exit(64);
+    }
+
     static void error(int line, String message)
     {
         report(line, "", message);
@@ -55,11 +120,15 @@ public class Main
     private static void runFile(String pathsStr) throws IOException
     {
         String[] paths = pathsStr.split(";");
-        byte[] bytes;
+        if (pipelined && paths.length > 1)
+        {
+            runPipelined(paths);
+            return;
+        }
+
         for(String path : paths)
         {
-            bytes = Files.readAllBytes(Paths.get(path));
-            run(new String(bytes, Charset.defaultCharset()));
+            run(Paths.get(path));
             
             if (hadError)
                 System.exit(65);
@@ -69,42 +138,286 @@ public class Main
         }
     }
 
+    /**
+     * Runs the scripts in the given order, while the front-end work (reading, scanning
+     * and parsing) for the next few of them is done on background threads.<p/>
+     * All the scripts share the same global <code>Interpreter</code>, and only the main
+     * thread ever executes them, so the execution semantics doesn't change.
+     * @param paths
+     * @throws IOException
+     */
+    private static void runPipelined(String[] paths) throws IOException
+    {
+        int ahead = Math.min(paths.length - 1, Runtime.getRuntime().availableProcessors());
+        ExecutorService frontEnd = Executors.newFixedThreadPool(ahead, task -> {
+            Thread thread = new Thread(task, "bee-front-end");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        List<Future<Script>> scripts = new ArrayList<>(paths.length);
+        try
+        {
+            for (int i = 0; i < paths.length; ++i)
+            {
+                // keep up to 'ahead' scripts in preparation besides the current one.
+                while (scripts.size() < paths.length && scripts.size() <= i + ahead)
+                {
+                    String path = paths[scripts.size()];
+                    scripts.add(frontEnd.submit(() -> prepare(path)));
+                }
+
+                Script script = await(scripts.get(i));
+                scripts.set(i, null);
+
+                if (!script.errors.isEmpty())
+                {
+                    System.err.print(script.errors);
+                    hadError = true;
+                }else
+                {
+                    execute(script.statements);
+                }
+
+                if (hadError)
+                    System.exit(65);
+                
+                if (hadRuntimeError)
+                    System.exit(70);
+            }
+        }finally
+        {
+            frontEnd.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads, scans and parses the script on a background thread.
+     * Syntax errors are collected into the <code>Script</code> instead of being printed.
+     */
+    private static Script prepare(String path) throws IOException
+    {
+        StringBuilder errors = new StringBuilder();
+        deferredErrors.set(errors);
+        try
+        {
+            List<Stmt> statements = compile(Paths.get(path));
+            return new Script(statements, errors.toString());
+        }finally
+        {
+            deferredErrors.remove();
+        }
+    }
+
+    private static Script await(Future<Script> script) throws IOException
+    {
+        try
+        {
+            return script.get();
+        }catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while preparing the script.", e);
+        }catch(ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if (cause instanceof Error)
+                throw (Error)cause;
+            throw new IOException(cause);
+        }
+    }
+
     private static void runPrompt() throws IOException
     {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
+        ReplSession session = new ReplSession(interpreter.symbols);
 
         for (;;)
         { 
-            System.out.print(">> ");
+            System.out.print(session.isPending() ? ".. " : ">> ");
             String line = reader.readLine();
 
             if (line == null)
+            {
+                // what's left of the last statement gets reported, or run if it's complete.
+                List<Stmt> rest = session.close();
+                if (null != rest && !hadError)
+                    execute(rest);
                 break;
+            }
             
-            run(line);
+            List<Stmt> statements = session.feed(line);
+            // the statement continues on the next line.
+            if (null == statements)
+                continue;
+
+            if (!hadError)
+                execute(statements);
             hadError = false;
         }
     }
 
-    private static void run(String source)
+    /**
+     * Reads the script into memory.<p/>
+     * By default the file is read at once and decoded with the platform charset.
+     * In '-mmap' mode the file is mapped instead, so that the scanner reads the bytes
+     * straight from the page cache and only the lexemes it needs are ever decoded.
+     * Either way the text is decoded with the same charset.
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    private static Source load(Path path) throws IOException
     {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        
-        Parser parser = new Parser(tokens);
-        //Expr expression = parser.parse();
-        List<Stmt> statements = parser.parse();
+        if (mapSources)
+            return Source.map(path, Charset.defaultCharset());
+
+        byte[] bytes = Files.readAllBytes(path);
+        return Source.of(new String(bytes, Charset.defaultCharset()));
+    }
+
+    private static void run(Path path) throws IOException
+    {
+        List<Stmt> statements = compile(path);
         // Stop if there was a syntax error.
         if (hadError)
             return;
 
-        interpreter.interpret(statements);
+        execute(statements);
+    }
+
+    /**
+     * Runs the statements with the selected engine:
+     * <ul>
+     * <li>tree  - <code>Interpreter</code> walks the syntax tree;</li>
+     * <li>arena - the tree is flattened into an <code>Arena</code> first,
+     * and <code>ArenaInterpreter</code> walks that;</li>
+     * <li>nodes - the tree is translated by the <code>NodeBuilder</code> into the tree of
+     * executable nodes, which specialize themselves to the types they see at run time;</li>
+     * <li>closures - the tree is compiled by the <code>ClosureCompiler</code> into
+     * pre-linked lambdas run over the interpreter's stack.</li>
+     * </ul>
+     * Whatever the engine is, all the scripts share the same globals.
+     * @param statements
+     */
+    private static void execute(List<Stmt> statements)
+    {
+        statements = ConstantFolder.fold(statements);
+        int locals = Resolver.resolve(statements);
+
+        if (engine.equals("arena"))
+            new ArenaInterpreter(Arena.of(statements), interpreter).interpret(locals);
+        else if (engine.equals("nodes"))
+            runNodes(NodeBuilder.build(statements, interpreter), locals);
+        else if (engine.equals("closures"))
+            interpreter.interpret(ClosureCompiler.compile(statements, interpreter), locals);
+        else
+            interpreter.interpret(statements, locals);
+    }
+
+    private static void runNodes(StmtNode script, int locals)
+    {
+        try
+        {
+            Nodes.run(script, locals);
+        }catch(RuntimeError error)
+        {
+            runtimeError(error);
+        }
+    }
+
+    /**
+     * Produces the syntax tree of the script.<p/>
+     * If the AST cache is enabled and holds an entry for the script's current content,
+     * the tree is loaded from there and the script isn't even read as text. Otherwise the
+     * script goes through the front end, and the tree is stored in the cache unless
+     * there were syntax errors.
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    private static List<Stmt> compile(Path path) throws IOException
+    {
+        // the arena gets built for the whole tree at once, so the laziness would gain nothing.
+        if (null == astCache)
+            return parse(load(path), lazyBodies && engine.equals("tree"));
+
+        String key = astCache.key(path, Charset.defaultCharset().name());
+        List<Stmt> statements = astCache.load(key);
+
+        if (null != statements)
+            return statements;
+
+        // the cache entry needs the whole tree, no point in parsing lazily.
+        statements = parse(load(path), false);
+        if (!hadSyntaxError())
+            astCache.store(key, statements);
+
+        return statements;
+    }
+
+    /**
+     * @return true if syntax error has been reported by the current thread's front end.
+     */
+    private static boolean hadSyntaxError()
+    {
+        StringBuilder deferred = deferredErrors.get();
+        if (null != deferred)
+            return deferred.length() > 0;
+
+        return hadError;
+    }
+
+    private static List<Stmt> parse(Source source, boolean lazy)
+    {
+        // lazy bodies need their tokens retained, parallel scanning produces them all at once.
+        if (streamTokens && !lazy && !parallelScan)
+        {
+            TokenBuffer ring = TokenBuffer.ring(source, interpreter.symbols, Parser.RING);
+            return new Parser(new Scanner(source, interpreter.symbols, ring, 1)).parse();
+        }
+
+        TokenBuffer tokens = parallelScan ? ParallelScanner.scan(source, interpreter.symbols)
+                                          : new Scanner(source, interpreter.symbols).scanTokens();
+        
+        Parser parser = new Parser(tokens, lazy);
+        //Expr expression = parser.parse();
+        return parser.parse();
     }
 
     private static void report(int line, String where, String message)
     {
-        System.err.println("[line " + line + "] Error" + where + ": " + message);
+        String error = "[line " + line + "] Error" + where + ": " + message;
+        StringBuilder deferred = deferredErrors.get();
+
+        if (null != deferred)
+        {
+            deferred.append(error).append(System.lineSeparator());
+            return;
+        }
+
+        System.err.println(error);
         hadError = true;
     }
+
+    /**
+     * Front-end output for a single script in '-pipeline' mode.
+     */
+    private static class Script
+    {
+        final List<Stmt> statements;
+        /** Syntax errors reported while the script was prepared, empty if there were none. */
+        final String errors;
+
+        Script(List<Stmt> statements, String errors)
+        {
+            this.statements = statements;
+            this.errors = errors;
+        }
+    }
 }
@@ -0,0 +1,435 @@
+package ru.beelang;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ru.beelang.nativeFuncs.BeeCallable;
+
+/**
+ * Native <code>memo(fn)</code>: returns the function which remembers the results of
+ * the calls of <code>fn</code> by the values of their arguments, so a call repeated
+ * with the same arguments returns the result with no computation at all.<p/>
+ * Only the result of a pure function may be reused, so the function is checked when
+ * it's memoized: it must neither assign a global or a variable captured from outside
+ * of it, nor refer to a global which holds anything but a pure function, since it
+ * would read the state which may change between the calls, or call a native, which
+ * prints or reads the clock. See <code>Purity</code>. Once a global function is replaced
+ * (see <code>Environment.version()</code>), the results are dropped and the function is
+ * checked again. If it fails, the function is just called from then on, until a global
+ * function is replaced once more.
+ * <p>The results are kept in a bounded cache of <code>CAPACITY</code> entries, the one
+ * used least recently is dropped first. Arrays are keyed by their content. The call
+ * passing a function as an argument isn't cached, since that function isn't checked.</p>
+ * <p>Unlike the rest of the natives, lives in this package, since it needs the
+ * declaration of the function.</p>
+ */
+final class Memo implements BeeCallable
+{
+    /** Number of the results kept by a memoized function. */
+    static final int CAPACITY = 4096;
+
+    @Override
+    public int arity()
+    {
+        return 1;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments, Token token)
+    {
+        return call1(interpreter, arguments.get(0), token);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object function, Token token)
+    {
+        if (function instanceof Memoized)
+            return function;
+
+        // the functions of the arena and nodes engines don't keep the declaration.
+        if (!(function instanceof BeeFunction))
+            throw new RuntimeError(token, "Only a function run by the tree or the closures engine can be memoized.");
+
+        new Purity(interpreter.globals, token).check((BeeFunction)function);
+        return new Memoized((BeeFunction)function, interpreter.globals);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "<native memo>";
+    }
+
+    /**
+     * The memoized function.
+     */
+    private static final class Memoized implements BeeCallable
+    {
+        /** Stored in place of nil, which the map can't tell from a missing result. */
+        private static final Object NIL = new Object();
+
+        private final BeeFunction function;
+        private final Environment globals;
+        /** Version of the globals the function has been checked against. */
+        private int version;
+        /** Whether the function has passed that check, its results are kept only if it has. */
+        private boolean pure = true;
+        /** Results by the keys of the arguments, in the order of use. */
+        private final Map<Object, Object> results = new LinkedHashMap<Object, Object>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest)
+            {
+                return size() > CAPACITY;
+            }
+        };
+
+        Memoized(BeeFunction function, Environment globals)
+        {
+            this.function = function;
+            this.globals = globals;
+            this.version = globals.version();
+        }
+
+        @Override
+        public int arity()
+        {
+            return function.arity();
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments, Token token)
+        {
+            return callArray(interpreter, arguments.toArray(), token);
+        }
+
+        @Override
+        public Object call0(Interpreter interpreter, Token token)
+        {
+            if (!pure(token))
+                return function.call0(interpreter, token);
+
+            Object result = results.get(NIL);
+            if (null == result)
+            {
+                result = box(function.call0(interpreter, token));
+                results.put(NIL, result);
+            }
+
+            return unbox(result);
+        }
+
+        /**
+         * A single argument is the key itself, but an array or a function.
+         */
+        @Override
+        public Object call1(Interpreter interpreter, Object a, Token token)
+        {
+            if (a instanceof BeeCallable || !pure(token))
+                return function.call1(interpreter, a, token);
+
+            Object key = (a instanceof byte[]) ? new Key(new Object[] {a}) : box(a);
+            Object result = results.get(key);
+            if (null == result)
+            {
+                result = box(function.call1(interpreter, a, token));
+                results.put(key, result);
+            }
+
+            return unbox(result);
+        }
+
+        @Override
+        public Object callArray(Interpreter interpreter, Object[] arguments, Token token)
+        {
+            for (Object argument : arguments)
+            {
+                if (argument instanceof BeeCallable)
+                    return function.callArray(interpreter, arguments, token);
+            }
+
+            if (!pure(token))
+                return function.callArray(interpreter, arguments, token);
+
+            // the function doesn't change the array, so it's the key as well.
+            Key key = new Key(arguments);
+            Object result = results.get(key);
+            if (null == result)
+            {
+                result = box(function.callArray(interpreter, arguments, token));
+                results.put(key, result);
+            }
+
+            return unbox(result);
+        }
+
+        /**
+         * Checks the function again if a global function has been replaced since the last
+         * check: the results computed with the replaced one are dropped either way.
+         * @return true if the results may be kept.
+         */
+        private boolean pure(Token token)
+        {
+            if (version == globals.version())
+                return pure;
+
+            version = globals.version();
+            results.clear();
+            try {
+                new Purity(globals, token).check(function);
+                pure = true;
+            }catch (RuntimeError e) {
+                pure = false;
+            }
+
+            return pure;
+        }
+
+        private static Object box(Object value)
+        {
+            return (null == value) ? NIL : value;
+        }
+
+        private static Object unbox(Object value)
+        {
+            return (value == NIL) ? null : value;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "<memo " + function + ">";
+        }
+    }
+
+    /**
+     * Arguments compared by their content: the arrays (Bee has no way to change
+     * an array, so the one kept by the key stays the same) and the values in them.
+     */
+    private static final class Key
+    {
+        private final Object[] values;
+        private final int hash;
+
+        Key(Object[] values)
+        {
+            this.values = values;
+            this.hash = Arrays.deepHashCode(values);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof Key && hash == ((Key)other).hash && Arrays.deepEquals(values, ((Key)other).values);
+        }
+    }
+
+    /**
+     * Walks the resolved body of the function, along with the functions declared in it
+     * and the global functions it refers to.
+     */
+    private static final class Purity
+    {
+        private final Environment globals;
+        private final Token token;
+        /** Functions checked already or being checked, so a recursion is checked once. */
+        private final Map<BeeFunction, Boolean> checked = new IdentityHashMap<>();
+        /** Declarations enclosing the statement being checked, the checked function comes first. */
+        private Stmt.Function[] nesting = new Stmt.Function[4];
+        private int depth = 0;
+        /** Function being memoized, and the one whose body is being checked. */
+        private BeeFunction root = null;
+        private BeeFunction current = null;
+
+        Purity(Environment globals, Token token)
+        {
+            this.globals = globals;
+            this.token = token;
+        }
+
+        /**
+         * @throws RuntimeError if the function isn't pure.
+         */
+        void check(BeeFunction function)
+        {
+            if (null != checked.put(function, Boolean.TRUE))
+                return;
+
+            if (null == root)
+                root = function;
+
+            BeeFunction enclosing = current;
+            Stmt.Function[] outer = nesting;
+            int outerDepth = depth;
+
+            current = function;
+            nesting = new Stmt.Function[4];
+            depth = 0;
+            function(function.declaration(), function.statements());
+
+            current = enclosing;
+            nesting = outer;
+            depth = outerDepth;
+        }
+
+        private void function(Stmt.Function declaration, List<Stmt> body)
+        {
+            if (depth == nesting.length)
+                nesting = Arrays.copyOf(nesting, depth * 2);
+
+            nesting[depth++] = declaration;
+            for (Stmt statement : body)
+                check(statement);
+            --depth;
+        }
+
+        private void check(Stmt stmt)
+        {
+            if (null == stmt)
+                return;
+
+            if (stmt instanceof Stmt.Block)
+            {
+                for (Stmt statement : ((Stmt.Block)stmt).statements)
+                    check(statement);
+            }else if (stmt instanceof Stmt.Expression)
+            {
+                check(((Stmt.Expression)stmt).expression);
+            }else if (stmt instanceof Stmt.If)
+            {
+                Stmt.If branch = (Stmt.If)stmt;
+                check(branch.condition);
+                check(branch.thenBranch);
+                check(branch.elseBranch);
+            }else if (stmt instanceof Stmt.While)
+            {
+                check(((Stmt.While)stmt).condition);
+                check(((Stmt.While)stmt).body);
+                check(((Stmt.While)stmt).increment);
+            }else if (stmt instanceof Stmt.Return)
+            {
+                check(((Stmt.Return)stmt).value);
+            }else if (stmt instanceof Stmt.Var)
+            {
+                // declares a local of the function.
+                check(((Stmt.Var)stmt).initializer);
+            }else if (stmt instanceof Stmt.Function)
+            {
+                // nested functions are never parsed lazily.
+                Stmt.Function nested = (Stmt.Function)stmt;
+                function(nested, nested.body);
+            }
+            // break and continue have nothing to check.
+        }
+
+        private void check(Expr expr)
+        {
+            if (null == expr || expr instanceof Expr.Literal || expr instanceof Expr.ArrayIndex)
+                return;
+
+            if (expr instanceof Expr.Variable)
+            {
+                Expr.Variable variable = (Expr.Variable)expr;
+                read(variable.kind, variable.slot, variable.symbol, variable.name);
+            }else if (expr instanceof Expr.Assign)
+            {
+                Expr.Assign assign = (Expr.Assign)expr;
+                write(assign.kind, assign.slot, assign.name);
+                check(assign.value);
+            }else if (expr instanceof Expr.Increment)
+            {
+                Expr.Increment increment = (Expr.Increment)expr;
+                write(increment.kind, increment.slot, increment.name);
+            }else if (expr instanceof Expr.Binary)
+            {
+                check(((Expr.Binary)expr).left);
+                check(((Expr.Binary)expr).right);
+            }else if (expr instanceof Expr.Logical)
+            {
+                check(((Expr.Logical)expr).left);
+                check(((Expr.Logical)expr).right);
+            }else if (expr instanceof Expr.Unary)
+            {
+                check(((Expr.Unary)expr).right);
+            }else if (expr instanceof Expr.Grouping)
+            {
+                check(((Expr.Grouping)expr).expression);
+            }else if (expr instanceof Expr.Call)
+            {
+                // what's called is either checked where it's read, or is an argument.
+                check(((Expr.Call)expr).callee);
+                for (Expr argument : ((Expr.Call)expr).arguments)
+                    check(argument);
+            }
+        }
+
+        private void read(int kind, int slot, int symbol, Token name)
+        {
+            if (kind == Resolver.UPVALUE && !inside(slot))
+                refuse(name, "reads variable '" + name.lexeme + "' captured from outside of it");
+
+            if (kind != Resolver.GLOBAL && kind != Resolver.GLOBAL_SLOT)
+                return;
+
+            Object value;
+            try {
+                value = (kind == Resolver.GLOBAL_SLOT) ? globals.get(slot) : globals.getGlobal(symbol, name);
+            }catch (RuntimeError e) {
+                refuse(name, "refers to '" + name.lexeme + "', which isn't defined yet");
+                return;
+            }
+
+            if (value instanceof BeeFunction)
+                check((BeeFunction)value);
+            else if (value instanceof Memoized)
+                return;
+            else if (value instanceof BeeCallable)
+                refuse(name, "calls native '" + name.lexeme + "'");
+            else
+                refuse(name, "reads global '" + name.lexeme + "'");
+        }
+
+        private void write(int kind, int slot, Token name)
+        {
+            if (kind == Resolver.GLOBAL || kind == Resolver.GLOBAL_SLOT)
+                refuse(name, "assigns global '" + name.lexeme + "'");
+            else if (kind == Resolver.UPVALUE && !inside(slot))
+                refuse(name, "assigns variable '" + name.lexeme + "' captured from outside of it");
+        }
+
+        /**
+         * Follows the upvalue of the innermost function out to the frame it's captured from.
+         * @return true if that frame belongs to the function being checked or to a function
+         * declared in it.
+         */
+        private boolean inside(int upvalue)
+        {
+            for (int level = depth - 1; level > 0; --level)
+            {
+                int descriptor = nesting[level].upvalues[upvalue];
+                if (descriptor >= 0)
+                    return true;
+
+                upvalue = -descriptor - 1;
+            }
+
+            return false;
+        }
+
+        private void refuse(Token name, String reason)
+        {
+            String culprit = (current == root) ? "it" : current.toString();
+            throw new RuntimeError(token, "Can't memoize " + root + ": " + culprit + " " + reason
+                                          + " (line " + name.line + ").");
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package ru.beelang;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ru.beelang.nodes.ExprNode;
+import ru.beelang.nodes.Nodes;
+import ru.beelang.nodes.StmtNode;
+
+/**
+ * Translates the resolved syntax tree into the executable tree of <code>ru.beelang.nodes</code>.<p/>
+ * Each syntax node becomes the executable node for the kind of access the
+ * <code>Resolver</code> has given it, so the executable tree knows the frame layout
+ * and does no lookups by name. The operators are created unspecialized: which types
+ * they work with is learned only when they run, see <code>ru.beelang.nodes.Nodes</code>.
+ */
+class NodeBuilder implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode>
+{
+    private final Interpreter interpreter;
+    private final Environment globals;
+
+    private NodeBuilder(Interpreter interpreter)
+    {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+    }
+
+    /**
+     * Builds the executable tree of a script.
+     * @param statements resolved by the <code>Resolver</code>.
+     * @param interpreter its globals are shared, and it's passed to the native functions.
+     * @return
+     */
+    static StmtNode build(List<Stmt> statements, Interpreter interpreter)
+    {
+        return new NodeBuilder(interpreter).block(statements);
+    }
+
+    private StmtNode block(List<Stmt> statements)
+    {
+        List<StmtNode> nodes = new ArrayList<>(statements.size());
+        for (Stmt statement : statements)
+        {
+            if (null != statement)
+                nodes.add(build(statement));
+        }
+        return Nodes.block(nodes.toArray(new StmtNode[0]));
+    }
+
+    private StmtNode build(Stmt stmt)
+    {
+        if (null == stmt)
+            return Nodes.block(new StmtNode[0]);
+
+        return stmt.accept(this);
+    }
+
+    private ExprNode build(Expr expr)
+    {
+        return (null == expr) ? null : expr.accept(this);
+    }
+
+    private ExprNode read(int kind, int slot, int symbol, Token name)
+    {
+        switch (kind)
+        {
+            case Resolver.LOCAL:
+                return Nodes.readLocal(slot);
+            case Resolver.CELL:
+                return Nodes.readCell(slot);
+            case Resolver.UPVALUE:
+                return Nodes.readUpvalue(slot);
+            default:
+                return Nodes.readGlobal(symbol, name, globals);
+        }
+    }
+
+    private ExprNode write(int kind, int slot, int symbol, Token name, ExprNode value)
+    {
+        switch (kind)
+        {
+            case Resolver.LOCAL:
+                return Nodes.writeLocal(slot, value);
+            case Resolver.CELL:
+                return Nodes.writeCell(slot, value);
+            case Resolver.UPVALUE:
+                return Nodes.writeUpvalue(slot, value);
+            default:
+                return Nodes.writeGlobal(symbol, name, globals, value);
+        }
+    }
+
+    private StmtNode define(int kind, int slot, int symbol, Token name, ExprNode value)
+    {
+        switch (kind)
+        {
+            case Resolver.LOCAL:
+                return Nodes.defineLocal(slot, value);
+            case Resolver.CELL:
+                return Nodes.defineCell(slot, value);
+            case Resolver.DUPLICATE:
+                return Nodes.duplicate(name, value);
+            default:
+                return Nodes.defineGlobal(symbol, name, globals, value);
+        }
+    }
+
+    private static int binaryOp(TokenType type)
+    {
+        switch (type)
+        {
+            case PLUS:          return Nodes.ADD;
+            case MINUS:         return Nodes.SUBTRACT;
+            case STAR:          return Nodes.MULTIPLY;
+            case SLASH:         return Nodes.DIVIDE;
+            case LESS:          return Nodes.LESS;
+            case LESS_EQUAL:    return Nodes.LESS_EQUAL;
+            case GREATER:       return Nodes.GREATER;
+            case GREATER_EQUAL: return Nodes.GREATER_EQUAL;
+            case EQUAL_EQUAL:   return Nodes.EQUAL;
+            case BANG_EQUAL:    return Nodes.NOT_EQUAL;
+            default:
+                throw new IllegalStateException("Unexpected binary operator " + type);
+        }
+    }
+
+    // ======================================================= //
+    // ============== Expr.Visitor implementation ============ //
+    // ======================================================= //
+
+    @Override
+    public ExprNode visitArrayIndexExpr(Expr.ArrayIndex expr)
+    {
+        // not implemented by the interpreter either.
+        return Nodes.literal(null);
+    }
+
+    @Override
+    public ExprNode visitIncrementExpr(Expr.Increment expr)
+    {
+        int delta = (expr.sign.type == TokenType.INCREMENT) ? 1 : -1;
+        if (expr.kind == Resolver.LOCAL)
+            return Nodes.incrementLocal(expr.slot, delta, expr.name);
+
+        ExprNode value = Nodes.increment(read(expr.kind, expr.slot, expr.symbol, expr.name), delta, expr.name);
+        return write(expr.kind, expr.slot, expr.symbol, expr.name, value);
+    }
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.Assign expr)
+    {
+        return write(expr.kind, expr.slot, expr.symbol, expr.name, build(expr.value));
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Expr.Binary expr)
+    {
+        return Nodes.binary(binaryOp(expr.operator.type), expr.operator, build(expr.left), build(expr.right));
+    }
+
+    @Override
+    public ExprNode visitCallExpr(Expr.Call expr)
+    {
+        ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; ++i)
+            arguments[i] = build(expr.arguments.get(i));
+
+        return Nodes.call(build(expr.callee), arguments, expr.paren, interpreter);
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(Expr.Grouping expr)
+    {
+        return build(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.Literal expr)
+    {
+        return Nodes.literal(expr.value);
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Expr.Logical expr)
+    {
+        return Nodes.logical(expr.operator.type == TokenType.OR, build(expr.left), build(expr.right));
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.Unary expr)
+    {
+        if (expr.operator.type == TokenType.BANG)
+            return Nodes.not(build(expr.right));
+
+        return Nodes.negate(expr.operator, build(expr.right));
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(Expr.Variable expr)
+    {
+        return read(expr.kind, expr.slot, expr.symbol, expr.name);
+    }
+
+    // ======================================================= //
+    // ============== Stmt.Visitor implementation ============ //
+    // ======================================================= //
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt)
+    {
+        return block(stmt.statements);
+    }
+
+    @Override
+    public StmtNode visitBreakStmt(Stmt.Break stmt)
+    {
+        return Nodes.breakLoop();
+    }
+
+    @Override
+    public StmtNode visitContinueStmt(Stmt.Continue stmt)
+    {
+        return Nodes.continueLoop();
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt)
+    {
+        return Nodes.expression(build(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitFunctionStmt(Stmt.Function stmt)
+    {
+        ExprNode closure = Nodes.closure(stmt.name.lexeme, stmt.params.size(), stmt.locals, stmt.cells,
+                                         block(stmt.body), stmt.upvalues);
+
+        if (stmt.kind == Resolver.CELL)
+            return Nodes.defineRecursive(stmt.slot, closure);
+
+        return define(stmt.kind, stmt.slot, stmt.symbol, stmt.name, closure);
+    }
+
+    @Override
+    public StmtNode visitIfStmt(Stmt.If stmt)
+    {
+        StmtNode elseBranch = (null == stmt.elseBranch) ? null : build(stmt.elseBranch);
+        return Nodes.ifThen(build(stmt.condition), build(stmt.thenBranch), elseBranch);
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(Stmt.Return stmt)
+    {
+        return Nodes.ret(build(stmt.value));
+    }
+
+    @Override
+    public StmtNode visitVarStmt(Stmt.Var stmt)
+    {
+        return define(stmt.kind, stmt.slot, stmt.symbol, stmt.name, build(stmt.initializer));
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(Stmt.While stmt)
+    {
+        return Nodes.loop(build(stmt.condition), build(stmt.body), build(stmt.increment));
+    }
+}
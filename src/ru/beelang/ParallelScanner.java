@@ -0,0 +1,154 @@
+package ru.beelang;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Scans a single large source on several threads.<p/>
+ * The source is cut into chunks at line breaks which are guaranteed to lie between
+ * tokens, i.e. not inside a string or a byte string. Finding such places only needs
+ * to track quotes and comments, which is much cheaper than the scanning itself.
+ * The chunks are then scanned as <code>ForkJoinPool</code> tasks, each one by its own
+ * <code>Scanner</code> into its own <code>TokenBuffer</code> and with its own
+ * <code>SymbolTable</code>, so the workers don't contend for the shared table.
+ * <p>Finally the buffers are stitched together: the identifiers are interned into the
+ * shared table once per distinct name of each chunk, and the errors held back by the
+ * chunks are reported in the order they appear in the source.</p>
+ */
+class ParallelScanner
+{
+    /** Sources shorter than two chunks of this size are scanned on the calling thread. */
+    static final int MIN_CHUNK = 256 * 1024;
+
+    static TokenBuffer scan(Source source, SymbolTable symbols)
+    {
+        int chunks = Math.min(ForkJoinPool.getCommonPoolParallelism() * 4, source.length() / MIN_CHUNK);
+        if (chunks < 2)
+            return new Scanner(source, symbols).scanTokens();
+
+        return scan(source, symbols, source.length() / chunks);
+    }
+
+    /**
+     * @param source
+     * @param symbols
+     * @param chunkSize minimal number of characters in a chunk.
+     * @return
+     */
+    static TokenBuffer scan(Source source, SymbolTable symbols, int chunkSize)
+    {
+        int length = source.length();
+        int[] bounds = new int[length / chunkSize + 2];
+        int[] lines = new int[bounds.length];
+        int count = split(source, chunkSize, bounds, lines);
+
+        List<Chunk> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i)
+            chunks.add(new Chunk(source, bounds[i], bounds[i + 1], lines[i]));
+
+        ForkJoinTask.invokeAll(chunks);
+
+        TokenBuffer[] parts = new TokenBuffer[count];
+        int[][] symbolMaps = new int[count][];
+
+        for (int i = 0; i < count; ++i)
+        {
+            Chunk chunk = chunks.get(i);
+            int[] map = new int[chunk.symbols.size()];
+
+            for (int id = 0; id < map.length; ++id)
+                map[id] = symbols.intern(chunk.symbols.name(id));
+
+            chunk.scanner.reportErrors();
+            parts[i] = chunk.tokens;
+            symbolMaps[i] = map;
+        }
+
+        return TokenBuffer.concat(source, symbols, parts, symbolMaps);
+    }
+
+    /**
+     * Finds the places to cut the source at.<p/>
+     * Walks the source tracking only what may hide a line break from the scanner:
+     * strings and byte strings (both may span several lines and have no escapes),
+     * and comments, which could contain an unpaired quote.
+     * @param source
+     * @param chunkSize
+     * @param bounds receives the start of each chunk followed by the length of the source.
+     * @param lines receives the number of the line each chunk starts at.
+     * @return number of chunks.
+     */
+    private static int split(Source source, int chunkSize, int[] bounds, int[] lines)
+    {
+        int length = source.length();
+        int count = 1;
+        int line = 1;
+        int next = chunkSize;
+
+        bounds[0] = 0;
+        lines[0] = 1;
+
+        for (int i = 0; i < length; ++i)
+        {
+            char c = source.charAt(i);
+            switch (c)
+            {
+                case '\n':
+                    line++;
+                    if (i + 1 >= next && i + 1 < length)
+                    {
+                        bounds[count] = i + 1;
+                        lines[count] = line;
+                        count++;
+                        next = i + 1 + chunkSize;
+                    }
+                    break;
+                case '"':
+                case '\'':
+                    // an unterminated literal runs to the end of the source.
+                    for (++i; i < length && source.charAt(i) != c; ++i)
+                    {
+                        if (source.charAt(i) == '\n')
+                            line++;
+                    }
+                    break;
+                case '/':
+                    if (i + 1 < length && source.charAt(i + 1) == '/')
+                    {
+                        // stop before the line break, so it's considered as a cut point.
+                        while (i + 1 < length && source.charAt(i + 1) != '\n')
+                            ++i;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        bounds[count] = length;
+        return count;
+    }
+
+    private static class Chunk extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        final SymbolTable symbols = new SymbolTable();
+        final Scanner scanner;
+        TokenBuffer tokens;
+
+        Chunk(Source source, int from, int to, int line)
+        {
+            this.scanner = new Scanner(source, symbols, from, to, line);
+        }
+
+        @Override
+        protected void compute()
+        {
+            tokens = scanner.scanTokens();
+        }
+    }
+}
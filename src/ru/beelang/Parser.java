@@ -1,5 +1,6 @@
 package ru.beelang;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -60,6 +61,10 @@ import static ru.beelang.TokenType.*;
  * <li>primary        -> <code>"true" | "false" | "nil" | "this" | NUMBER | STRING | IDENTIFIER | "(" expression ")" | "super" "." IDENTIFIER ;</code></li>
  * 
  * </ul>
+ * The binary levels, <code>logic_or</code> through <code>factor</code>, aren't parsed by
+ * a method per rule: <code>binary()</code> climbs them in a single loop driven by the
+ * <code>BINDING_POWER</code> table, so adding an operator is a matter of a table entry.
+ * <p/>
  * 
  * Utility rules:<p/>
  * Reusable helper rules.
@@ -73,14 +78,101 @@ public class Parser
 {
     private static class ParseError extends RuntimeException {}
 
+    /**
+     * Capacity of the ring buffer a streaming parser reads from. When the parser runs out
+     * of tokens, the scanner is asked to run <code>BATCH</code> tokens ahead, so it's
+     * called once per batch rather than per token. The rest of the ring covers the token
+     * looked back at and the extra tokens a single lexeme may produce (QUOTE + ARR).
+     */
+    static final int RING = 16;
+    private static final int BATCH = 8;
+
+    /** Binding powers of the binary operators, from the loosest to the tightest. */
+    private static final int LOGIC_OR   = 1;
+    private static final int LOGIC_AND  = 2;
+    private static final int EQUALITY   = 3;
+    private static final int COMPARISON = 4;
+    private static final int TERM       = 5;
+    private static final int FACTOR     = 6;
+
+    /** Binding power of the binary operators indexed by <code>TokenType</code> ordinal, 0 for other tokens. */
+    private static final int[] BINDING_POWER = new int[TokenType.values().length];
+
+    static {
+        BINDING_POWER[OR.ordinal()]            = LOGIC_OR;
+        BINDING_POWER[AND.ordinal()]           = LOGIC_AND;
+        BINDING_POWER[BANG_EQUAL.ordinal()]    = EQUALITY;
+        BINDING_POWER[EQUAL_EQUAL.ordinal()]   = EQUALITY;
+        BINDING_POWER[GREATER.ordinal()]       = COMPARISON;
+        BINDING_POWER[GREATER_EQUAL.ordinal()] = COMPARISON;
+        BINDING_POWER[LESS.ordinal()]          = COMPARISON;
+        BINDING_POWER[LESS_EQUAL.ordinal()]    = COMPARISON;
+        BINDING_POWER[MINUS.ordinal()]         = TERM;
+        BINDING_POWER[PLUS.ordinal()]          = TERM;
+        BINDING_POWER[SLASH.ordinal()]         = FACTOR;
+        BINDING_POWER[STAR.ordinal()]          = FACTOR;
+    }
+
     /** Stores the tokens */
-    private final List<Token> tokens;
+    private final TokenBuffer tokens;
     /** Points to the next token to be parsed */
     private int current = 0;
+    /** Index of the token past the last one this parser may consume. */
+    private final int limit;
+    /** If set, the bodies of the global functions are parsed only when called for the first time. */
+    private final boolean lazy;
+    /** Number of the blocks (function bodies included) being parsed. */
+    private int blocks = 0;
+    /** Number of the loops enclosing the statement being parsed, within the current function. */
+    private int loops = 0;
+    /** Set once a syntax error has been reported by this parser. */
+    private boolean hadError = false;
+    /** In streaming mode, the scanner filling <code>tokens</code> on demand, otherwise null. */
+    private final Scanner scanner;
+
+    Parser(TokenBuffer tokens)
+    {
+        this(tokens, false);
+    }
 
-    Parser(List<Token> tokens)
+    /**
+     * @param tokens
+     * @param lazy if set, the parser only finds the range of tokens each body of a function
+     * declared at the global scope spans, and the body is parsed on the first call of the
+     * function. See <code>LazyBody</code>. Nested functions may capture the variables of
+     * the enclosing ones, so they're parsed along with them, to be resolved at once.
+     */
+    Parser(TokenBuffer tokens, boolean lazy)
+    {
+        this(tokens, lazy, 0, tokens.size());
+    }
+
+    /**
+     * Creates a parser which pulls the tokens from the scanner as it goes.<p/>
+     * The scanner is expected to fill a <code>TokenBuffer.ring()</code> of <code>RING</code>
+     * tokens, so the memory
+     * held by the tokens doesn't depend on the size of the script. The parser never
+     * refers to a token more than one position behind the current one, except for
+     * <code>Token</code> objects it has already materialized. Function bodies are
+     * always parsed eagerly, since <code>LazyBody</code> needs all of its tokens retained.
+     * @param scanner
+     */
+    Parser(Scanner scanner)
     {
+        this.tokens = scanner.tokens();
+        this.lazy = false;
+        this.current = 0;
+        this.limit = Integer.MAX_VALUE;
+        this.scanner = scanner;
+    }
+
+    private Parser(TokenBuffer tokens, boolean lazy, int start, int limit)
+    {
+        this.scanner = null;
         this.tokens = tokens;
+        this.lazy = lazy;
+        this.current = start;
+        this.limit = limit;
     }
 
     List<Stmt> parse()
@@ -113,7 +205,8 @@ public class Parser
 
     private Stmt.Function function(String kind)
     {
-        Token name = consume(IDENTIFIER, "Expect " + kind + " name");
+        consume(IDENTIFIER, "Expect " + kind + " name");
+        Token name = previous();
         consume(LEFT_PAREN, "Expect '(' after " + kind + " name");
         List<Token> parameters = new ArrayList<>();
 
@@ -122,23 +215,79 @@ public class Parser
         {
             // parses parameters as long as we find commas to separate them.
             do {
-                parameters.add(consume(IDENTIFIER, "Expect parameter name."));
+                consume(IDENTIFIER, "Expect parameter name.");
+                Token param = previous();
+
+                // parameters take the first slots of the function's environment, one each.
+                for (Token other : parameters)
+                {
+                    if (other.symbol == param.symbol)
+                        error(param, "identifier '" + param.lexeme + "' is already in use.");
+                }
+                parameters.add(param);
             }while(match(COMMA));
 
             if(parameters.size() >= 255)
-                error(peek(), "Can't have more that 255 parameters.");
+                error(current, "Can't have more that 255 parameters.");
         }
         consume(RIGHT_PAREN, "Expect ')' after parameters.");
         consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
+
+        if (lazy && blocks == 0)
+        {
+            int end = closingBrace();
+            // unbalanced braces are left to the eager path, to be reported right away.
+            if (end >= 0)
+            {
+                LazyBody body = new LazyBody(tokens, name, current, end + 1);
+                current = end + 1;
+                return new Stmt.Function(name, name.symbol, parameters, body);
+            }
+        }
         
-        List<Stmt> body = block();
-        return new Stmt.Function(name, parameters, body);
+        // a loop around the declaration doesn't enclose the body.
+        int enclosing = loops;
+        loops = 0;
+
+        List<Stmt> body;
+        try
+        {
+            body = block();
+        }finally
+        {
+            loops = enclosing;
+        }
+
+        return new Stmt.Function(name, name.symbol, parameters, body);
+    }
+
+    /**
+     * Finds the brace which closes the block whose opening brace has just been consumed.
+     * Only the types of the tokens are examined, nothing gets parsed.
+     * @return index of the closing brace, or -1 if the braces are unbalanced.
+     */
+    private int closingBrace()
+    {
+        int depth = 1;
+        for (int i = current; i < limit; ++i)
+        {
+            TokenType type = tokens.type(i);
+            if (type == LEFT_BRACE)
+                depth++;
+            else if (type == RIGHT_BRACE && --depth == 0)
+                return i;
+            else if (type == EOF)
+                break;
+        }
+
+        return -1;
     }
 
     private Stmt varDeclaration()
     {
         // retrieve current token and move to subsequent one
-        Token name = consume(IDENTIFIER, "Expect variable name.");
+        consume(IDENTIFIER, "Expect variable name.");
+        Token name = previous();
         
         Expr initializer = null;
 
@@ -149,7 +298,7 @@ public class Parser
         
         // declaration without initialization.
         consume(SEMICOLON, "Expect ';' after variable declaration.");
-        return new Stmt.Var(name, initializer);
+        return new Stmt.Var(name, name.symbol, initializer);
     }
 
     // private Stmt arrDeclaration()
@@ -167,6 +316,12 @@ public class Parser
      */
     private Stmt statement()
     {
+        if (match(BREAK))
+            return breakStatement();
+        
+        if (match(CONTINUE))
+            return continueStatement();
+        
         if (match(FOR))
             return forStatement();
         
@@ -217,10 +372,11 @@ public class Parser
      */
     private Expr assignment()
     {
-        Expr expr = or();
+        Expr expr = binary(LOGIC_OR);
         if(match(EQUAL))
         {               
-            Token equals = previous();
+            // the '=' token may be gone from the ring buffer by the time the value is parsed.
+            int equalsLine = tokens.line(current - 1);
             // Since assignment is right-associative, we recursively call
             // assignment() to parse the right-hand side.
             Expr value = assignment();
@@ -235,233 +391,159 @@ public class Parser
                 // newPoint(x + 2, 0).y = 3;
                 // newPoint(x + 2, 0).y;
                 Token name = ((Expr.Variable)expr).name;
-                return new Expr.Assign(name, value);
+                return new Expr.Assign(name, name.symbol, value);
             }
 
             //report an error if left-hand side isn't a valid assignment target.
-            error(equals, "Invalid assignment target");
+            error(new Token(EQUAL, "=", null, equalsLine), "Invalid assignment target");
         }
         return expr;
     }
 
-    private Expr or()
-    {
-        Expr expr = and();
-        while(match(OR))
-        {
-            Token operator = previous();
-            Expr right = and();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-        return expr;
-    }
-
-    private Expr and()
-    {
-        Expr expr = equality();
-        while(match(AND))
-        {
-            Token operator = previous();
-            Expr right = equality();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-
-        return expr;
-    }
-
     /**
-     * Equality grammar<p/>
-     * The rule for equality is as follow:<p/>
-     * <code>equality -> comparison (( "!=" | "==" ) comparison)* ;</code>
-     * <p>Note: if the parser never encounters an equality operator, then it never
-     * enters the <code>while</code> loop, In that case, this method effectively calls
-     *  and returns <code>comparison()</code> method. In this way, this method matches
-     * an equality operator <i>or anything of higher procedure</i>.</p>
+     * Parses a chain of binary operators by precedence climbing.<p/>
+     * Instead of a method per precedence level (<code>logic_or</code> down to <code>factor</code>),
+     * a single loop consults the <code>BINDING_POWER</code> table: an operator whose power is
+     * below <code>minPower</code> belongs to one of the callers, otherwise it's consumed and
+     * its right operand is parsed with <code>power + 1</code>, which makes all the binary
+     * operators left-associative. The resulting trees are the same the recursive descent
+     * through the levels produced, but an operand costs a couple of calls instead of a dozen.
+     * @param minPower lowest binding power of the operator this call may consume.
      * @return
      */
-    private Expr equality()
+    private Expr binary(int minPower)
     {
-        //take result of the first comparison nonterminal and store it in a local variable.
-        Expr expr = comparison();
-
-        //Map the ( ... )* loop in the rule to a while loop.
-        //Iterate until encounter either != or == token
-        //As we zip through a sequence of equality expression, that
-        //creates a left-associative nested tree of binary operator nodes.
-        while(match(BANG_EQUAL, EQUAL_EQUAL))
-        {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        //if execution flow bypassed while() loop meaning there is no right-hand operand, then
-        //we must be done with the sequence of equality operators
-        return expr;
-    }
-
-    /**
-     * The rule for comparison is as follow:<p/>
-     * <code>comparison -> term (( ">" | ">=" | "<" | "<=" ) term)* ;</code><p/>
-     * The grammar rule is virtually identical to
-     * equality and so is the corresponding code.
-     * @return
-     */
-    private Expr comparison()
-    {
-        //Expr expr = term();
-        Expr expr = arrIdx();
+        Expr expr = unary();
+        // array indexing isn't implemented yet: the bracket following the left operand
+        // of a comparison is just skipped, as 'arrIdx' rule of the grammar does.
+        boolean comparison = minPower <= COMPARISON;
+        boolean bracket = comparison;
 
-        while(match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL))
+        while (true)
         {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
-        }
+            TokenType type = peek();
+            int power = BINDING_POWER[type.ordinal()];
 
-        return expr;
-    }
+            if (bracket && power < TERM)
+            {
+                bracket = false;
+                if (match(LEFT_BRACKET))
+                {
+                    type = peek();
+                    power = BINDING_POWER[type.ordinal()];
+                }
+            }
 
-    private Expr arrIdx()
-    {
-        Expr expr = term();
-        if (match(LEFT_BRACKET))
-        {
+            if (power == 0 || power < minPower)
+                break;
 
-        }
+            // once the left operand of a comparison is complete, a tighter operator may only
+            // follow a skipped bracket, and it ends the expression.
+            if (comparison && !bracket && power >= TERM)
+                break;
 
-        return expr;
-    }
-    /**
-     * The rule for term is as follow:<p/>
-     * <code>term -> factor (( "-" | "+" ) factor)*;</code><p/>
-     * @return
-     */
-    private Expr term()
-    {
-        Expr expr = factor();
-        
-        while(match(MINUS, PLUS))
-        {
+            advance();
             Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
-        }
+            Expr right = binary(power + 1);
 
-        return expr;
-    }
-
-    /**
-     * The rule for factor is as follow:<p/>
-     * <code>factor -> unary (( "/" | "*" ) unary)*;</code><p/>
-     * @return
-     */
-    private Expr factor()
-    {
-        Expr expr = unary();
-    
-        while (match(SLASH, STAR))
-        {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
+            if (type == OR || type == AND)
+                expr = new Expr.Logical(expr, operator, right);
+            else
+                expr = new Expr.Binary(expr, operator, right);
         }
-    
+
         return expr;
     }
 
     /**
      * The rule for unary is as follow:<p/>
-     * <code>unary -> ( "!" | "-" | "--" | "++" ) unary | primary;</code><p/>
-     * 
+     * <code>unary -> ( "!" | "-" ) unary | call;</code><p/>
+     * The postfix rules <code>call</code> and <code>increment</code> are handled right here:
+     * an operand may be followed by a single increment (decrement) and then by any
+     * number of argument lists.
      * @return
      */
     private Expr unary()
     {
-        if (match(BANG, MINUS))
+        TokenType type = peek();
+        if (type == BANG || type == MINUS)
         {
+            advance();
             Token operator = previous();
             Expr right = unary();
             return new Expr.Unary(operator, right);
         }
 
-        return call();
-    }
-
-    private Expr call()
-    {
-        Expr expr = increment();
-        while(true)
-        {
-            if (match(LEFT_PAREN))
-                expr = finishCall(expr);
-            else
-                break;
-        }
-
-        return expr;
-    }
-
-    private Expr increment()
-    {
-        Expr expr = array();
+        Expr expr = primary();
 
-        if (match(INCREMENT, DECREMENT))
+        type = peek();
+        if (type == INCREMENT || type == DECREMENT)
         {
+            advance();
             Token sign = previous();
 
-            if (!(expr instanceof Expr.Variable))
+            if (expr instanceof Expr.Variable)
+            {
+                // extract Token obj from Expr.Variable obj
+                Token name = ((Expr.Variable)expr).name;
+                expr = new Expr.Increment(name, name.symbol, sign);
+            }else
+            {
                 error(sign, "Invalid increment target");
-            // extract Token obj from Expr.Variable obj
-            Token name = ((Expr.Variable)expr).name;
-            return new Expr.Increment(name, sign);
+            }
         }
 
+        while (match(LEFT_PAREN))
+            expr = finishCall(expr);
+
         return expr;
     }
 
-    private Expr array()
-    {
-        if (match(QUOTE))
-        {
-            // advance ARR token containing byte[] array literal.
-            // This step is enforced by an overal logic of the Parser.
-            advance();
-            // Retrieve ARR's value
-            return new Expr.Literal(previous().literal);
-        }
-
-        return primary();
-    }
     /**
      * The rule for primary is as follow:<p/>
-     * <code>primary -> NUMBER | STRING | "true" | "false" | "nil" | "(" expression ")";</code><p/>
+     * <code>primary -> NUMBER | STRING | ARR | "true" | "false" | "nil" | IDENTIFIER | "(" expression ")";</code><p/>
      * @return
      */
     private Expr primary()
     {
-        if (match(FALSE))
-            return new Expr.Literal(false);
-
-        if (match(TRUE))
-            return new Expr.Literal(true);
-
-        if (match(NIL))
-            return new Expr.Literal(null);
-    
-        if (match(NUMBER, STRING))
-            return new Expr.Literal(previous().literal);
-
-        if (match(IDENTIFIER))
-            return new Expr.Variable(previous());
-
-        if (match(LEFT_PAREN))
+        switch (peek())
         {
-            Expr expr = expression();
-            consume(RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
+            case FALSE:
+                advance();
+                return new Expr.Literal(false);
+            case TRUE:
+                advance();
+                return new Expr.Literal(true);
+            case NIL:
+                advance();
+                return new Expr.Literal(null);
+            case NUMBER:
+            case STRING:
+                advance();
+                return new Expr.Literal(tokens.literal(current - 1));
+            case QUOTE:
+                // advance ARR token containing byte[] array literal.
+                // This step is enforced by an overal logic of the Parser.
+                advance();
+                advance();
+                // Retrieve ARR's value
+                return new Expr.Literal(tokens.literal(current - 1));
+            case IDENTIFIER:
+            {
+                advance();
+                Token name = previous();
+                return new Expr.Variable(name, name.symbol);
+            }
+            case LEFT_PAREN:
+            {
+                advance();
+                Expr expr = expression();
+                consume(RIGHT_PAREN, "Expect ')' after expression.");
+                return new Expr.Grouping(expr);
+            }
+            default:
+                throw error(current, "Expect expression.");
         }
-
-        throw error(peek(), "Expect expression.");
     }
 
     // ============================================================ //
@@ -502,17 +584,15 @@ public class Parser
         consume(RIGHT_PAREN, "Expect ')' after for clause.");
 
         // body
-        Stmt body = statement();
-
-        // The increment executes after the body in each iteration of the loop.
-        if (null != increment)
-            body = new Stmt.Block(Arrays.asList(body, new Stmt.Expression(increment)));
+        Stmt body = loopBody();
 
-        // take the condition and the body and build the loop using a primitive while loop
+        // take the condition and the body and build the loop using a primitive while loop.
+        // The increment executes after the body in each iteration of the loop, including
+        // the ones left by 'continue', so it's kept apart from the body.
         if (null == condition)
             condition = new Expr.Literal(true); // true for infinite loop
 
-        body = new Stmt.While(condition, body);
+        body = new Stmt.While(condition, body, increment);
         
         // if there is an initializer, it runs once before the entire loop
         if (null != initializer)
@@ -526,8 +606,40 @@ public class Parser
         consume(LEFT_PAREN, "Expect '(' after 'while'");
         Expr condition = expression();
         consume(RIGHT_PAREN, "Expect ')' after condition");
-        Stmt body = statement();
-        return new Stmt.While(condition, body);
+        Stmt body = loopBody();
+        return new Stmt.While(condition, body, null);
+    }
+
+    private Stmt loopBody()
+    {
+        loops++;
+        try
+        {
+            return statement();
+        }finally
+        {
+            loops--;
+        }
+    }
+
+    private Stmt breakStatement()
+    {
+        Token keyword = previous();
+        if (loops == 0)
+            error(keyword, "Can't use 'break' outside of a loop.");
+
+        consume(SEMICOLON, "Expect ';' after 'break'.");
+        return new Stmt.Break(keyword);
+    }
+
+    private Stmt continueStatement()
+    {
+        Token keyword = previous();
+        if (loops == 0)
+            error(keyword, "Can't use 'continue' outside of a loop.");
+
+        consume(SEMICOLON, "Expect ';' after 'continue'.");
+        return new Stmt.Continue(keyword);
     }
 
     private Stmt ifStatement()
@@ -567,10 +679,17 @@ public class Parser
     private List<Stmt> block()
     {
         List<Stmt> statements = new ArrayList<>();
+        blocks++;
+
+        try
+        {
+            while(!check(RIGHT_BRACE) && !isAtEnd())
+                statements.add(declaration());
+        }finally
+        {
+            blocks--;
+        }
 
-        while(!check(RIGHT_BRACE) && !isAtEnd())
-            statements.add(declaration());
-        
         consume(RIGHT_BRACE, "Expect '}' after block");
         return statements;
     }
@@ -588,35 +707,50 @@ public class Parser
             }while(match(COMMA));
 
             if (arguments.size() >= 255)
-                    error(peek(), "Can't have more than 255 arguments.");
+                    error(current, "Can't have more than 255 arguments.");
         }
 
-        Token paren = consume(RIGHT_PAREN, "Expect ')' after arguments list.");
+        consume(RIGHT_PAREN, "Expect ')' after arguments list.");
+        Token paren = previous();
         return new Expr.Call(callee, paren, arguments);
     }
 
     /**
      * Helper method which examines that the current token matches
      * the given <code>type</code>.<p/>
-     * If that's true, the current token will be consumed.
+     * If that's true, the current token will be consumed, otherwise
+     * the error is reported.<p/>
+     * Use <code>previous()</code> to retrieve the consumed token, when needed.
      * @param type
      * @param message
-     * @return Token
      */
-    private Token consume(TokenType type, String message)
+    private void consume(TokenType type, String message)
     {
         if (check(type))
-            return advance();
+        {
+            advance();
+            return;
+        }
     
-        throw error(peek(), message);
+        throw error(current, message);
     }
 
     private ParseError error(Token token, String message)
     {
         Main.error(token, message);
+        hadError = true;
         return new ParseError();
     }
 
+    /**
+     * Reports an error at the token with the given index.
+     * The token itself is materialized only here.
+     */
+    private ParseError error(int token, String message)
+    {
+        return error(tokens.token(token), message);
+    }
+
     /**
      * Synchronization - a process when a parser gets back to parsing
      * from the last leaved position in the sequence of forthcoming tokens
@@ -630,12 +764,12 @@ public class Parser
 
         while (!isAtEnd())
         {
-            if (previous().type == SEMICOLON)
+            if (tokens.type(current - 1) == SEMICOLON)
                 return;
             
             //if current token is one of the case, then we're at the beginning of the new statement.
             //That means that parser went right through a statement with syntax error.
-            switch (peek().type)
+            switch (peek())
             {
                 case CLASS:
                 case FUN:
@@ -644,6 +778,8 @@ public class Parser
                 case IF:
                 case WHILE:
                 case RETURN:
+                case BREAK:
+                case CONTINUE:
                     return;
             }
             advance();
@@ -651,20 +787,19 @@ public class Parser
     }
 
     /**
-     * Checks to see if the current token has any of the given types.
+     * Checks to see if the current token has the given type.
      * If so, it consumes the token and returns true.<p/>
-     * @param types
-     * @return
+     * The operators of a precedence level are matched by <code>binary()</code> with
+     * a single lookup, so there's no overload taking several types.
+     * @param type
+     * @return true if the token has been consumed.
      */
-    private boolean match(TokenType... types)
+    private boolean match(TokenType type)
     {
-        for (TokenType type : types)
+        if (check(type))
         {
-            if(check(type))
-            {
-                advance();
-                return true;
-            }
+            advance();
+            return true;
         }
 
         return false;
@@ -682,21 +817,18 @@ public class Parser
         if (isAtEnd())
             return false;
         
-        return peek().type == type;
+        return peek() == type;
     }
 
     /**
-     * This method consumes the current token and returns it,
+     * This method consumes the current token,
      * similar to how our scanner's corresponding method
      * crawled through characters.
-     * @return
      */
-    private Token advance()
+    private void advance()
     {
         if (!isAtEnd())
             current++;
-        
-        return previous();
     }
 
     /**
@@ -705,27 +837,119 @@ public class Parser
      */
     private boolean isAtEnd()
     {
-        return peek().type == EOF;
+        return peek() == EOF;
     }
 
     /**
-     * Returns the current token under examination.
+     * Returns the type of the current token under examination.
      * @return
      */
-    private Token peek() {
-        return tokens.get(current);
+    private TokenType peek() {
+        if (current >= limit)
+            return EOF;
+
+        if (null != scanner && current >= tokens.size())
+            scanner.scanTo(current + BATCH);
+
+        return tokens.type(current);
     }
 
-    private Token peekNext()
+    private TokenType peekNext()
     {
-        return tokens.get(current + 1);
+        if (isAtEnd())
+            return EOF;
+
+        if (null != scanner && current + 1 >= tokens.size())
+            scanner.scanTo(current + BATCH);
+
+        return tokens.type(current + 1);
     }
 
     /**
-     * Returns the most recently consumed token.
+     * Returns the most recently consumed token.<p/>
+     * The <code>Token</code> object is materialized from the buffer, so call it only
+     * when the token is going to be stored in the syntax tree.
      * @return
      */
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
+    }
+
+    /**
+     * Body of the function whose parsing is deferred until the first call.<p/>
+     * At parse time only the range of the body's tokens is recorded, so the cost of
+     * the startup and the memory held by the syntax tree depend on the functions
+     * actually called rather than on the functions declared. The token buffer is
+     * retained until the body gets parsed; tokens keep their lines, so the syntax
+     * errors found later are reported exactly as they would be by the eager parser.
+     * <p>Being a <code>List</code>, the body can be walked by any code that expects
+     * an ordinary one (it's parsed on the first access then). <code>BeeFunction</code>
+     * calls <code>statements()</code> once and keeps the result.</p>
+     */
+    static class LazyBody extends AbstractList<Stmt>
+    {
+        private TokenBuffer tokens;
+        private final Token name;
+        /** Index of the first token after the opening brace. */
+        private final int start;
+        /** Index past the closing brace. */
+        private final int limit;
+        private List<Stmt> statements = null;
+        private boolean failed = false;
+
+        LazyBody(TokenBuffer tokens, Token name, int start, int limit)
+        {
+            this.tokens = tokens;
+            this.name = name;
+            this.start = start;
+            this.limit = limit;
+        }
+
+        /**
+         * Parses the body if it hasn't been parsed yet.
+         * @return statements of the body
+         * @throws RuntimeError if the body contains syntax errors. The errors themselves
+         * are reported the usual way, on the first attempt only.
+         */
+        List<Stmt> statements()
+        {
+            if (null == statements && !failed)
+            {
+                Parser parser = new Parser(tokens, false, start, limit);
+                List<Stmt> body = null;
+                try
+                {
+                    body = parser.block();
+                }catch(ParseError error)
+                {
+                    // missing closing brace, already reported.
+                }
+
+                if (parser.hadError)
+                    failed = true;
+                else
+                    statements = body;
+
+                // every token of the body is in the tree now
+                tokens = null;
+            }
+
+            if (failed)
+                throw new RuntimeError(name, "Function '" + name.lexeme + "' has syntax errors.");
+
+            return statements;
+        }
+
+        @Override
+        public Stmt get(int index)
+        {
+            return statements().get(index);
+        }
+
+        @Override
+        public int size()
+        {
+            return statements().size();
+        }
     }
 }
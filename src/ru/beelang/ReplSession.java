@@ -0,0 +1,120 @@
+package ru.beelang;
+
+import java.util.Collections;
+import java.util.List;
+
+import static ru.beelang.TokenType.*;
+
+/**
+ * Front-end state of the interactive prompt kept between the lines.<p/>
+ * A statement may span several lines (e.g. a function declaration), so the input
+ * is accumulated until it looks complete: all the braces and parentheses are closed
+ * and the last token is ';' or '}', and no string or byte string is left open (a literal
+ * may span lines as well). An empty line forces the accumulated input to be parsed as is,
+ * which lets the scanner and the parser report what's missing.
+ * <p>The scanner is resumed on every line, so each line is scanned only once and pays
+ * only for its own tokens. The text and the token buffer are recycled once the
+ * statement has been parsed. Line numbers run through the whole session, and the
+ * identifiers are interned in the interpreter's symbol table, so the globals defined
+ * by previous statements are bound to the same symbols.</p>
+ */
+class ReplSession
+{
+    private final SymbolTable symbols;
+    private final StringBuilder text = new StringBuilder();
+    private final Source source = Source.of(text);
+    private final TokenBuffer tokens;
+
+    /** Scanner of the statement being accumulated, null if there is none. */
+    private Scanner scanner = null;
+    /** Nesting depth of the braces and parentheses opened so far. */
+    private int depth = 0;
+    /** Line number the next statement starts at. */
+    private int line = 1;
+
+    ReplSession(SymbolTable symbols)
+    {
+        this.symbols = symbols;
+        this.tokens = new TokenBuffer(source, symbols);
+    }
+
+    /**
+     * @return true if the statement entered so far is incomplete.
+     */
+    boolean isPending()
+    {
+        return null != scanner;
+    }
+
+    /**
+     * Scans the next line of input.
+     * @param input
+     * @return parsed statements if the input is complete, or null if more lines are expected.
+     */
+    List<Stmt> feed(String input)
+    {
+        boolean literal = null != scanner && scanner.isSuspended() && input.isBlank();
+        if (null == scanner)
+        {
+            text.setLength(0);
+            tokens.clear();
+            depth = 0;
+            scanner = new Scanner(source, symbols, tokens, line);
+            scanner.setResumable(true);
+        }else
+        {
+            // drop the EOF token appended by the previous scan.
+            tokens.truncate(tokens.size() - 1);
+        }
+
+        int from = tokens.size();
+        text.append(input).append('\n');
+        scanner.setResumable(!input.isBlank());
+        scanner.scanTokens();
+
+        int end = tokens.size() - 1;    // exclude EOF
+        for (int i = from; i < end; ++i)
+        {
+            switch (tokens.type(i))
+            {
+                case LEFT_BRACE: case LEFT_PAREN:   depth++; break;
+                case RIGHT_BRACE: case RIGHT_PAREN: depth--; break;
+                default:                                     break;
+            }
+        }
+
+        if (!input.isBlank() && (scanner.isSuspended() || !isComplete(end)))
+            return null;
+
+        line = scanner.line();
+        scanner = null;
+
+        // the literal left open is reported by the scanner, the parser would only
+        // add the errors of the statement cut short by it.
+        if (literal)
+            return Collections.emptyList();
+
+        return new Parser(tokens).parse();
+    }
+
+    /**
+     * Parses the statement left incomplete when the input is over, as an empty line would.
+     * @return parsed statements, or null if there's nothing pending.
+     */
+    List<Stmt> close()
+    {
+        return isPending() ? feed("") : null;
+    }
+
+    private boolean isComplete(int end)
+    {
+        if (end == 0)
+            return true;
+
+        if (depth > 0)
+            return false;
+
+        TokenType last = tokens.type(end - 1);
+        return depth < 0 || last == SEMICOLON || last == RIGHT_BRACE;
+    }
+}
@@ -0,0 +1,483 @@
+package ru.beelang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Static pass which binds every use of a variable to its storage.<p/>
+ * Each function (and the top level of a program) gets a single frame on the
+ * <code>ValueStack</code>: its parameters take the first slots, the locals declared in the
+ * body and in its nested blocks take the following ones. A block releases its slots when
+ * it ends, so sibling blocks share them, and the frame is as large as the deepest nesting
+ * needs (<code>Stmt.Function.locals</code>).
+ * <p>The pass also performs escape analysis: a local which is used by a nested function
+ * is <i>captured</i>. Such a local is kept in a heap <code>Cell</code> rather than right in
+ * the slot, and every function between the declaration and the use gets an upvalue which
+ * refers either to the slot of the enclosing frame or to the enclosing function's own
+ * upvalue (<code>Stmt.Function.upvalues</code>). Locals which aren't captured never leave
+ * the stack. Every variable access is marked with its kind:</p>
+ * <ul>
+ * <li><code>LOCAL</code>   - value in the slot of the current frame;</li>
+ * <li><code>CELL</code>    - captured local, the slot holds its cell;</li>
+ * <li><code>UPVALUE</code> - variable of an enclosing function, slot is the upvalue index;</li>
+ * <li><code>GLOBAL</code>  - not declared in any enclosing local scope, looked up by symbol.
+ * The first successful lookup switches the node to <code>GLOBAL_SLOT</code> and stores the
+ * slot of the global in it, see <code>Environment</code>.</li>
+ * </ul>
+ * Like the interpreter without a resolver, the initializer of a variable is resolved before
+ * the variable is declared, so <code>var a = a;</code> in a block reads the outer
+ * <code>a</code>. A name declared twice in the same scope is marked as
+ * <code>DUPLICATE</code> and fails at runtime when the second declaration is reached.
+ * The global scope isn't tracked at all, so the REPL has no resolver state to carry
+ * over between the lines.
+ */
+class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
+{
+    static final int GLOBAL    = -1;
+    static final int LOCAL     = 0;
+    static final int CELL      = 1;
+    static final int UPVALUE   = 2;
+    static final int DUPLICATE = 3;
+    /** Set by the execution engine in place of <code>GLOBAL</code> once the global's slot is known. */
+    static final int GLOBAL_SLOT = 4;
+
+    private static final int[] NONE = new int[0];
+
+    /** Local variable in scope. */
+    private static class Local
+    {
+        final int symbol;
+        /** Nesting depth of the block which declares the variable. */
+        final int depth;
+        boolean captured = false;
+        /** Declaration and the uses from the same function, to be switched to CELL if captured. */
+        final List<Object> nodes = new ArrayList<>();
+
+        Local(int symbol, int depth)
+        {
+            this.symbol = symbol;
+            this.depth = depth;
+        }
+    }
+
+    /** Function being resolved, or the top level of the program. */
+    private static class Context
+    {
+        final Context enclosing;
+        /** Locals in scope, indexed by slot. */
+        final List<Local> locals = new ArrayList<>();
+        /** Upvalue descriptors, see <code>ValueStack.capture()</code>. */
+        int[] upvalues = NONE;
+        int upvalueCount = 0;
+        /** Nesting depth of the current block, 0 is the global scope. */
+        int depth;
+        /** Largest number of locals in scope at once, i.e. size of the frame. */
+        int max = 0;
+
+        Context(Context enclosing, int depth)
+        {
+            this.enclosing = enclosing;
+            this.depth = depth;
+        }
+
+        int upvalue(int descriptor)
+        {
+            for (int i = 0; i < upvalueCount; ++i)
+            {
+                if (upvalues[i] == descriptor)
+                    return i;
+            }
+
+            if (upvalueCount == upvalues.length)
+                upvalues = Arrays.copyOf(upvalues, Math.max(4, upvalueCount * 2));
+
+            upvalues[upvalueCount] = descriptor;
+            return upvalueCount++;
+        }
+    }
+
+    private Context context = new Context(null, 0);
+
+    private Resolver() {}
+
+    /**
+     * Resolves the statements of a program (a REPL line) run at the global scope.
+     * @param statements
+     * @return number of slots the top-level blocks need.
+     */
+    static int resolve(List<Stmt> statements)
+    {
+        Resolver resolver = new Resolver();
+        resolver.statements(statements);
+        return resolver.context.max;
+    }
+
+    /**
+     * Resolves the lazily parsed body of the function once it's available.
+     * Only functions declared at the global scope are parsed lazily, so they capture nothing.
+     * @param function declaration of the function.
+     * @param body statements of the body.
+     */
+    static void resolveBody(Stmt.Function function, List<Stmt> body)
+    {
+        new Resolver().function(function, body);
+    }
+
+    private void statements(List<Stmt> statements)
+    {
+        for (Stmt statement : statements)
+            resolve(statement);
+    }
+
+    private void resolve(Stmt stmt)
+    {
+        if (null != stmt)
+            stmt.accept(this);
+    }
+
+    private void resolve(Expr expr)
+    {
+        if (null != expr)
+            expr.accept(this);
+    }
+
+    private void beginScope()
+    {
+        context.depth++;
+    }
+
+    private void endScope()
+    {
+        List<Local> locals = context.locals;
+        context.depth--;
+
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > context.depth)
+        {
+            Local local = locals.remove(locals.size() - 1);
+            if (local.captured)
+            {
+                for (Object node : local.nodes)
+                    markCell(node);
+            }
+        }
+    }
+
+    private static void markCell(Object node)
+    {
+        if (node instanceof Expr.Variable)
+            ((Expr.Variable)node).kind = CELL;
+        else if (node instanceof Expr.Assign)
+            ((Expr.Assign)node).kind = CELL;
+        else if (node instanceof Expr.Increment)
+            ((Expr.Increment)node).kind = CELL;
+        else if (node instanceof Stmt.Var)
+            ((Stmt.Var)node).kind = CELL;
+        else if (node instanceof Stmt.Function)
+            ((Stmt.Function)node).kind = CELL;
+    }
+
+    /**
+     * Declares the variable in the current scope.
+     * @param symbol
+     * @param node declaration, its kind is set here and its slot is returned.
+     * @return slot of the variable, -1 at the global scope.
+     */
+    private int declare(int symbol, Object node)
+    {
+        if (context.depth == 0)
+            return GLOBAL;
+
+        List<Local> locals = context.locals;
+        for (int slot = locals.size() - 1; slot >= 0 && locals.get(slot).depth == context.depth; --slot)
+        {
+            if (locals.get(slot).symbol == symbol)
+            {
+                setKind(node, DUPLICATE);
+                return slot;
+            }
+        }
+
+        Local local = new Local(symbol, context.depth);
+        if (null != node)
+            local.nodes.add(node);
+
+        locals.add(local);
+        context.max = Math.max(context.max, locals.size());
+        setKind(node, LOCAL);
+        return locals.size() - 1;
+    }
+
+    private static void setKind(Object node, int kind)
+    {
+        if (node instanceof Stmt.Var)
+            ((Stmt.Var)node).kind = kind;
+        else if (node instanceof Stmt.Function)
+            ((Stmt.Function)node).kind = kind;
+    }
+
+    /**
+     * @return slot of the local declared in the given function, or -1.
+     */
+    private static int findLocal(Context context, int symbol)
+    {
+        List<Local> locals = context.locals;
+        for (int slot = locals.size() - 1; slot >= 0; --slot)
+        {
+            if (locals.get(slot).symbol == symbol)
+                return slot;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Finds the upvalue of the given function referring to the variable, adding the
+     * upvalues to it and to the functions in between as needed.
+     * @return index of the upvalue, or -1 if the variable is a global.
+     */
+    private static int findUpvalue(Context context, int symbol)
+    {
+        Context enclosing = context.enclosing;
+        if (null == enclosing)
+            return -1;
+
+        int slot = findLocal(enclosing, symbol);
+        if (slot >= 0)
+        {
+            enclosing.locals.get(slot).captured = true;
+            return context.upvalue(slot);
+        }
+
+        int upvalue = findUpvalue(enclosing, symbol);
+        if (upvalue >= 0)
+            return context.upvalue(-upvalue - 1);
+
+        return -1;
+    }
+
+    /**
+     * Resolves the use of a variable.
+     * @param symbol
+     * @param node the use, receives the kind.
+     * @return slot or upvalue index.
+     */
+    private int use(int symbol, Object node)
+    {
+        int slot = findLocal(context, symbol);
+        if (slot >= 0)
+        {
+            Local local = context.locals.get(slot);
+            local.nodes.add(node);
+            setUseKind(node, local.captured ? CELL : LOCAL);
+            return slot;
+        }
+
+        int upvalue = findUpvalue(context, symbol);
+        setUseKind(node, (upvalue >= 0) ? UPVALUE : GLOBAL);
+        return upvalue;
+    }
+
+    private static void setUseKind(Object node, int kind)
+    {
+        if (node instanceof Expr.Variable)
+            ((Expr.Variable)node).kind = kind;
+        else if (node instanceof Expr.Assign)
+            ((Expr.Assign)node).kind = kind;
+        else
+            ((Expr.Increment)node).kind = kind;
+    }
+
+    private void function(Stmt.Function function, List<Stmt> body)
+    {
+        context = new Context(context, 1);
+
+        // the parser rejects duplicate names, so parameter i gets slot i.
+        for (Token param : function.params)
+            declare(param.symbol, null);
+
+        statements(body);
+
+        int[] cells = NONE;
+        for (int slot = 0; slot < function.params.size(); ++slot)
+        {
+            if (context.locals.get(slot).captured)
+            {
+                cells = Arrays.copyOf(cells, cells.length + 1);
+                cells[cells.length - 1] = slot;
+            }
+        }
+
+        endScope();
+        function.locals = context.max;
+        function.upvalues = Arrays.copyOf(context.upvalues, context.upvalueCount);
+        function.cells = cells;
+        context = context.enclosing;
+    }
+
+    // ======================================================= //
+    // ============== Expr.Visitor implementation ============ //
+    // ======================================================= //
+
+    @Override
+    public Void visitArrayIndexExpr(Expr.ArrayIndex expr)
+    {
+        resolve(expr.index);
+        return null;
+    }
+
+    @Override
+    public Void visitIncrementExpr(Expr.Increment expr)
+    {
+        expr.slot = use(expr.symbol, expr);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr)
+    {
+        resolve(expr.value);
+        expr.slot = use(expr.symbol, expr);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr)
+    {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr)
+    {
+        resolve(expr.callee);
+        for (Expr argument : expr.arguments)
+            resolve(argument);
+
+        expr.site = new CallSite(expr.paren, expr.arguments.size());
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr)
+    {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr)
+    {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr)
+    {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr)
+    {
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr)
+    {
+        expr.slot = use(expr.symbol, expr);
+        return null;
+    }
+
+    // ======================================================= //
+    // ============== Stmt.Visitor implementation ============ //
+    // ======================================================= //
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt)
+    {
+        beginScope();
+        statements(stmt.statements);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt)
+    {
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt)
+    {
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt)
+    {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt)
+    {
+        // declared before the body is resolved, so the function can refer to itself.
+        stmt.slot = declare(stmt.symbol, stmt);
+        if (stmt.slot == GLOBAL)
+            stmt.kind = GLOBAL;
+
+        if (stmt.body instanceof Parser.LazyBody)
+            stmt.upvalues = NONE;
+        else
+            function(stmt, stmt.body);
+
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt)
+    {
+        resolve(stmt.condition);
+        resolve(stmt.thenBranch);
+        resolve(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt)
+    {
+        // the call a function returns the value of can reuse its frame, see BeeFunction.tailCall().
+        stmt.tail = null != context.enclosing && stmt.value instanceof Expr.Call;
+        resolve(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt)
+    {
+        resolve(stmt.initializer);
+        stmt.slot = declare(stmt.symbol, stmt);
+        if (stmt.slot == GLOBAL)
+            stmt.kind = GLOBAL;
+
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt)
+    {
+        resolve(stmt.condition);
+        resolve(stmt.body);
+        resolve(stmt.increment);
+        return null;
+    }
+}
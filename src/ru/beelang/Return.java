@@ -1,12 +0,0 @@
-package ru.beelang;
-
-class Return extends RuntimeException
-{
-    final Object value;
-    
-    Return(Object value)
-    {
-        super(null, null, false, false);
-        this.value = value;
-    }    
-}
@@ -1,11 +1,8 @@
 package ru.beelang;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-
-import ru.beelang.utils.Hlp;
 
 import static ru.beelang.TokenType.*;
 
@@ -18,55 +15,185 @@ import static ru.beelang.TokenType.*;
  */
 public class Scanner
 {
-    private static final Map<String, TokenType> keywords;
+    /** Values of the hexadecimal digits indexed by ASCII code, -1 for any other character. */
+    private static final byte[] HEX_DIGITS = new byte[128];
 
     static {
-        keywords = new HashMap<>();
-        //keywords.put("arr",    QUOTE);
-        keywords.put("var",    VAR);
-        keywords.put("return", RETURN);
-        keywords.put("fun",    FUN);
-        keywords.put("class",  CLASS);
-        keywords.put("super",  SUPER);
-        keywords.put("this",   THIS);
-        keywords.put("nil",    NIL);
-
-        keywords.put("or",     OR);
-        keywords.put("and",    AND);
-        
-        keywords.put("if",     IF);
-        keywords.put("else",   ELSE);
-        keywords.put("true",   TRUE);
-        keywords.put("false",  FALSE);
-
-        keywords.put("for",    FOR);
-        keywords.put("while",  WHILE);
+        Arrays.fill(HEX_DIGITS, (byte)-1);
+        for (int i = 0; i < 10; ++i)
+            HEX_DIGITS['0' + i] = (byte)i;
+        for (int i = 0; i < 6; ++i)
+        {
+            HEX_DIGITS['A' + i] = (byte)(10 + i);
+            HEX_DIGITS['a' + i] = (byte)(10 + i);
+        }
     }
 
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final Source source;
+    private final SymbolTable symbols;
+    private final TokenBuffer tokens;
     private int start = 0;      // points to the first character in the lexeme being scanned
     private int current = 0;    // points at the character currently being considered
     private int line = 1;       // tracks what source line 'current' is on, so we can produce tokens that know their location.
+    private final int end;      // position the scanning stops at
+    private boolean finished = false;   // set once EOF token has been added by scanTo()
+    /**
+     * Set by the REPL: a literal left unterminated at the end of the text isn't an error
+     * yet, the scanner stops in front of it and scans it again once more text is appended.
+     */
+    private boolean resumable = false;
+    /** Set if the last <code>scanTokens()</code> has stopped in front of an unterminated literal. */
+    private boolean suspended = false;
+    /** Lines and messages of the errors held back until <code>reportErrors()</code>, or null if reported right away. */
+    private final List<Integer> errorLines;
+    private final List<String> errorMessages;
+
+    /**
+     * @param source
+     * @param symbols table where the identifiers met in the source get interned.
+     */
+    Scanner(Source source, SymbolTable symbols)
+    {
+        this(source, symbols, new TokenBuffer(source, symbols), 1);
+    }
+
+    /**
+     * Creates a scanner which appends tokens to the existing buffer.<p/>
+     * Used by the REPL: the scanner is kept between the lines of the same statement
+     * and each <code>scanTokens()</code> call scans only the newly appended text.
+     * @param source
+     * @param symbols
+     * @param tokens buffer to append tokens to.
+     * @param line number of the first line of the source.
+     */
+    Scanner(Source source, SymbolTable symbols, TokenBuffer tokens, int line)
+    {
+        this.source = source;
+        this.symbols = symbols;
+        this.tokens = tokens;
+        this.line = line;
+        this.end = -1;
+        this.errorLines = null;
+        this.errorMessages = null;
+    }
 
-    Scanner(String source)
+    /**
+     * Creates a scanner for the part of the source between <code>from</code> (inclusive)
+     * and <code>to</code> (exclusive).<p/>
+     * Used by the <code>ParallelScanner</code>: the chunks of the same file are scanned
+     * concurrently, so the errors are not reported right away but held back until
+     * <code>reportErrors()</code> is called, in the order of the chunks.
+     * @param source
+     * @param symbols
+     * @param from
+     * @param to
+     * @param line number of the line the chunk starts at.
+     */
+    Scanner(Source source, SymbolTable symbols, int from, int to, int line)
     {
         this.source = source;
+        this.symbols = symbols;
+        this.tokens = new TokenBuffer(source, symbols, Math.max(64, (to - from) / 8));
+        this.start = from;
+        this.current = from;
+        this.line = line;
+        this.end = to;
+        this.errorLines = new ArrayList<>();
+        this.errorMessages = new ArrayList<>();
     }
 
-    List<Token> scanTokens()
+    TokenBuffer scanTokens()
     {
-        while (!isAtEnd())
+        suspended = false;
+        while (!isAtEnd() && !suspended)
         {
             // We are at the beginning of the next lexeme.
             start = current;
             scanToken();
         }
         
-        tokens.add(new Token(EOF, "", null, line));
+        tokens.add(EOF, current, current, line);
+        return tokens;
+    }
+
+    /**
+     * Scans on demand, until the buffer holds the token with the given index or
+     * the EOF token has been added.<p/>
+     * Used by the <code>Parser</code> pulling the tokens one by one, so the scanner
+     * runs only slightly ahead of it and a ring buffer is enough to hold the tokens.
+     * @param index
+     */
+    void scanTo(int index)
+    {
+        while (tokens.size() <= index && !finished)
+        {
+            if (isAtEnd())
+            {
+                tokens.add(EOF, current, current, line);
+                finished = true;
+            }else
+            {
+                // We are at the beginning of the next lexeme.
+                start = current;
+                scanToken();
+            }
+        }
+    }
+
+    TokenBuffer tokens()
+    {
         return tokens;
     }
 
+    /**
+     * Reports the errors held back by the scanner of a chunk.
+     */
+    void reportErrors()
+    {
+        for (int i = 0; i < errorLines.size(); ++i)
+            Main.error(errorLines.get(i), errorMessages.get(i));
+
+        errorLines.clear();
+        errorMessages.clear();
+    }
+
+    /**
+     * @return the line the scanner stopped at.
+     */
+    int line()
+    {
+        return line;
+    }
+
+    /**
+     * @param resumable if set, an unterminated literal waits for the rest of its text,
+     * see <code>isSuspended()</code>. Otherwise it's reported.
+     */
+    void setResumable(boolean resumable)
+    {
+        this.resumable = resumable;
+    }
+
+    /**
+     * @return true if the text ends inside a string or a byte string, the literal
+     * is left unscanned.
+     */
+    boolean isSuspended()
+    {
+        return suspended;
+    }
+
+    /**
+     * Rewinds to the opening quote of the unterminated literal.
+     * @param firstLine the literal starts at.
+     */
+    private void suspend(int firstLine)
+    {
+        current = start;
+        line = firstLine;
+        suspended = true;
+    }
+
     /**
      * The 'heart' of the scanner.
      * <p>The scanner figures out what lexeme the character belongs to, and consumes it and any following
@@ -127,58 +254,160 @@ public class Scanner
         {
             identifier();
         }else {
-            Main.error(line, "Unexpected character.");
+            error(line, "Unexpected character.");
         }
     }
 
     /**
      * <p>Assgins current token which represents an idnetifier (reserved or user defined)
      * with associated keyword.</p>
-     * If scanned token is not one from the list defined in <code>Map<String, TokenType> keywords</code>
+     * If scanned token is not one of the keywords recognized by <code>identifierType()</code>
      * e.g. it isn't 'keyword', then it is tacitly assumed as user defined identifier (myVar, etc.)
+     * <p>User defined identifiers are interned in the symbol table, the token carries the symbol id.</p>
      */
     private void identifier()
     {
         while (isAlphaNumeric(peek()))
             advance();
         
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        
-        if (type == null)
-            type = IDENTIFIER;
-        
-        addToken(type);
+        TokenType type = identifierType();
+        if (type == IDENTIFIER)
+            addToken(IDENTIFIER, symbols.intern(source, start, current));
+        else
+            addToken(type);
+    }
+
+    /**
+     * Recognizes keywords right in the source, without slicing the lexeme out of it.<p/>
+     * The first (and sometimes the second) character selects the only keyword the
+     * lexeme can be, then the rest of the lexeme is compared with it in place.
+     * @return keyword type or IDENTIFIER
+     */
+    private TokenType identifierType()
+    {
+        switch (source.charAt(start))
+        {
+            case 'a': return checkKeyword(1, "nd", AND);
+            case 'b': return checkKeyword(1, "reak", BREAK);
+            case 'c':
+                if (current - start > 1)
+                {
+                    switch (source.charAt(start + 1))
+                    {
+                        case 'l': return checkKeyword(2, "ass", CLASS);
+                        case 'o': return checkKeyword(2, "ntinue", CONTINUE);
+                    }
+                }
+                break;
+            case 'e': return checkKeyword(1, "lse", ELSE);
+            case 'f':
+                if (current - start > 1)
+                {
+                    switch (source.charAt(start + 1))
+                    {
+                        case 'a': return checkKeyword(2, "lse", FALSE);
+                        case 'o': return checkKeyword(2, "r", FOR);
+                        case 'u': return checkKeyword(2, "n", FUN);
+                    }
+                }
+                break;
+            case 'i': return checkKeyword(1, "f", IF);
+            case 'n': return checkKeyword(1, "il", NIL);
+            case 'o': return checkKeyword(1, "r", OR);
+            case 'r': return checkKeyword(1, "eturn", RETURN);
+            case 's': return checkKeyword(1, "uper", SUPER);
+            case 't':
+                if (current - start > 1)
+                {
+                    switch (source.charAt(start + 1))
+                    {
+                        case 'h': return checkKeyword(2, "is", THIS);
+                        case 'r': return checkKeyword(2, "ue", TRUE);
+                    }
+                }
+                break;
+            case 'v': return checkKeyword(1, "ar", VAR);
+            case 'w': return checkKeyword(1, "hile", WHILE);
+        }
+
+        return IDENTIFIER;
+    }
+
+    /**
+     * Compares the tail of the current lexeme, starting at <code>offset</code>,
+     * with the <code>rest</code> of the keyword.
+     * @return <code>type</code> if they are equal, IDENTIFIER otherwise.
+     */
+    private TokenType checkKeyword(int offset, String rest, TokenType type)
+    {
+        if (current - start != offset + rest.length())
+            return IDENTIFIER;
+
+        for (int i = 0; i < rest.length(); ++i)
+        {
+            if (source.charAt(start + offset + i) != rest.charAt(i))
+                return IDENTIFIER;
+        }
+
+        return type;
     }
 
+    /**
+     * Accumulates the value digit by digit while advancing, so neither the
+     * lexeme nor the boxed value is ever allocated.
+     */
     private void decimal()
     {
+        // the first digit has already been consumed.
+        long value = peekPrevious() - '0';
+        boolean overflow = false;
+
         while (isDecimal(peek()))
-            advance();
+        {
+            value = value * 10 + (advance() - '0');
+            if (value > Integer.MAX_VALUE)
+            {
+                // keep consuming digits, but don't let the accumulator wrap around.
+                overflow = true;
+                value = 0;
+            }
+        }
 
-        try {
-            addToken(NUMBER, Integer.parseInt(source.substring(start, current), 10));
-        }catch(NumberFormatException e)
+        if (overflow)
         {
-            Main.error(line, "Interpreter accepts positive values only." + '\n' +
+            error(line, "Interpreter accepts positive values only." + '\n' +
                               "Note: 2147483648 and above implicitly converts to negative int." + '\n');
+            return;
         }
+
+        addToken(NUMBER, (int)value);
     }
 
     private void hexadecimal()
     {
+        // 'current' points right past the preceding 0x
+        long value = 0;
+        boolean overflow = !isHex(peek());   // bare 0x
+
         while (isHex(peek()))
-            advance();
-        
-        // trim preceding 0x
-        String value = source.substring(start + 2, current);
-        try {
-            addToken(NUMBER, Integer.parseInt(value, 16));
-        }catch(NumberFormatException e)
         {
-            Main.error(line, "Interpreter accepts positive values only."
+            value = (value << 4) | Character.digit(advance(), 16);
+            if (value > Integer.MAX_VALUE)
+            {
+                // keep consuming digits, but don't let the accumulator wrap around.
+                overflow = true;
+                value = 0;
+            }
+        }
+
+        if (overflow)
+        {
+            error(line, "Interpreter accepts positive values only."
                             + '\n' + "Note: 0x80000000 and above implicitly converts to int." + '\n');
+            return;
         }
+
+        addToken(NUMBER, (int)value);
     }
 
     /**
@@ -194,28 +423,94 @@ public class Scanner
                (c >= '0' && c <= '9');
     }
 
+    /**
+     * <p>Handles byte string, i.e. hexadecimal digits enclosed in single quotes.</p>
+     * The literal is decoded in two passes right over the source: the first one finds the
+     * closing quote and counts the digits, so the array is allocated of the exact size;
+     * the second one converts the digits using <code>HEX_DIGITS</code> table.
+     * Whitespaces (including line breaks) between the digits are skipped. If the number
+     * of digits is odd, the first digit is treated as the low nibble of the first byte,
+     * as if it had a leading zero.
+     */
     private void byteArray()
     {
         addToken(QUOTE);
+
+        int firstLine = line;
+        int digits = 0;
         
         while ((peek() != '\'') && !isAtEnd())
         {
-            if (peek() == '\n')
+            char c = advance();
+            if (c == '\n')
                 line++;
-            advance();
+            else if (!isWhitespace(c))
+                digits++;
         }
 
         if (isAtEnd())
         {
-            Main.error(line, "Unterminated byte string.");
+            if (resumable)
+            {
+                // drop the QUOTE token, it's added again along with the literal.
+                tokens.truncate(tokens.size() - 1);
+                suspend(firstLine);
+                return;
+            }
+
+            error(firstLine, "Unterminated byte string.");
             return;
         }
 
         // consume the closing '.
         advance();
-        
-        // Trim the surrounding square brackets.
-        addToken(ARR, Hlp.toByteArray(source.substring(start + 1, current - 1)));
+
+        byte[] array = new byte[(digits + 1) / 2];
+        int idx = 0;
+        boolean high = (digits % 2 == 0);
+        int digitLine = firstLine;
+
+        // Skip the surrounding quotes.
+        for (int i = start + 1; i < current - 1; ++i)
+        {
+            char c = source.charAt(i);
+            if (c == '\n')
+            {
+                digitLine++;
+                continue;
+            }
+
+            if (isWhitespace(c))
+                continue;
+
+            int nibble = (c < HEX_DIGITS.length) ? HEX_DIGITS[c] : -1;
+            if (nibble < 0)
+            {
+                // the token is still added to keep the parser in step with the stream.
+                error(digitLine, "Invalid hexadecimal digit '" + c + "' in byte string.");
+                break;
+            }
+
+            if (high)
+                array[idx] = (byte)(nibble << 4);
+            else
+                array[idx++] |= (byte)nibble;
+
+            high = !high;
+        }
+
+        addToken(ARR, array);
+    }
+
+    /**
+     * Returns <code>true</code> for the whitespace characters allowed between
+     * the digits of the byte string.
+     * @param c
+     * @return
+     */
+    private boolean isWhitespace(char c)
+    {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\f' || c == 0x0B;
     }
 
     /**
@@ -227,6 +522,7 @@ public class Scanner
      */
     private void string()
     {
+        int firstLine = line;
         while ((peek() != '"') && !isAtEnd())
         {
             if (peek() == '\n')
@@ -236,7 +532,13 @@ public class Scanner
 
         if (isAtEnd())
         {
-            Main.error(line, "Unterminated string.");
+            if (resumable)
+            {
+                suspend(firstLine);
+                return;
+            }
+
+            error(firstLine, "Unterminated string.");
             return;
         }
 
@@ -285,7 +587,7 @@ public class Scanner
      */
     private char peekNext()
     {
-        if (current + 1 >= source.length())
+        if (current + 1 >= limit())
             return '\0';
         
         return source.charAt(current + 1);
@@ -298,7 +600,28 @@ public class Scanner
 
     private boolean isAtEnd()
     {
-        return current >= source.length();
+        return current >= limit();
+    }
+
+    /**
+     * The REPL's source grows between the calls, so unless the scanner is bound
+     * to a chunk, the limit is the current length of the source.
+     */
+    private int limit()
+    {
+        return (end < 0) ? source.length() : end;
+    }
+
+    private void error(int line, String message)
+    {
+        if (null == errorLines)
+        {
+            Main.error(line, message);
+            return;
+        }
+
+        errorLines.add(line);
+        errorMessages.add(message);
     }
         
     /**
@@ -359,12 +682,16 @@ public class Scanner
 
     private void addToken(TokenType type)
     {
-        addToken(type, null);
+        tokens.add(type, start, current, line);
     }
 
     private void addToken(TokenType type, Object literal)
     {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        tokens.add(type, start, current, line, literal);
+    }
+
+    private void addToken(TokenType type, int value)
+    {
+        tokens.add(type, start, current, line, value);
     }
 }
@@ -0,0 +1,216 @@
+package ru.beelang;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only view of the program text consumed by the <code>Scanner</code>.<p/>
+ * The scanner only ever needs three things from the input: its length, the character
+ * at a given position and the text of a lexeme. Hiding the input behind this class lets
+ * the scanner walk either an ordinary <code>String</code> (REPL lines, small scripts)
+ * or a file mapped straight into memory, without decoding the whole file up front.
+ */
+abstract class Source
+{
+    /**
+     * @return number of positions the scanner can address.
+     */
+    abstract int length();
+
+    /**
+     * Returns the character at the given position.<p/>
+     * For the mapped UTF-8 source this is the raw byte widened to <code>char</code>. All the
+     * characters the grammar cares about are ASCII, and in UTF-8 every byte of a multi-byte
+     * sequence is >= 0x80, so a multi-byte character can never be mistaken for a quote,
+     * a newline or any other significant symbol. A single-byte charset maps each byte
+     * to its character.
+     * @param index
+     * @return
+     */
+    abstract char charAt(int index);
+
+    /**
+     * Returns the text between <code>start</code> (inclusive) and <code>end</code> (exclusive).
+     * @param start
+     * @param end
+     * @return
+     */
+    abstract String substring(int start, int end);
+
+    static Source of(String text)
+    {
+        return new StringSource(text);
+    }
+
+    /**
+     * Returns a live view of the given buffer: the text appended to the buffer later
+     * becomes visible to the scanner, which lets it resume where it has stopped.
+     * @param text
+     * @return
+     */
+    static Source of(StringBuilder text)
+    {
+        return new BuilderSource(text);
+    }
+
+    /**
+     * Maps the whole file into memory through a <code>FileChannel</code>.<p/>
+     * The channel is closed right away: the mapping stays valid until the buffer
+     * itself becomes unreachable, i.e. once the scanner is done with it.
+     * Positions can be byte offsets only in UTF-8 and in the single-byte charsets
+     * (windows-1251 the scripts are written in, for one), a file in any other
+     * charset is read and decoded at once.
+     * @param path
+     * @param charset the file is encoded in, the same the file is read with otherwise.
+     * @return
+     * @throws IOException if file can't be read or is too large to be mapped.
+     */
+    static Source map(Path path, Charset charset) throws IOException
+    {
+        char[] table = null;
+        if (!charset.equals(StandardCharsets.UTF_8))
+        {
+            if (!charset.canEncode() || charset.newEncoder().maxBytesPerChar() != 1.0f)
+                return of(new String(Files.readAllBytes(path), charset));
+
+            table = decodingTable(charset);
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("File '" + path + "' is too large to be mapped.");
+
+            return new MappedSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), charset, table);
+        }
+    }
+
+    /**
+     * @return character of each byte value in the single-byte charset.
+     */
+    private static char[] decodingTable(Charset charset)
+    {
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < bytes.length; ++i)
+            bytes[i] = (byte)i;
+
+        return new String(bytes, charset).toCharArray();
+    }
+
+    private static class StringSource extends Source
+    {
+        private final String text;
+
+        StringSource(String text)
+        {
+            this.text = text;
+        }
+
+        @Override
+        int length()
+        {
+            return text.length();
+        }
+
+        @Override
+        char charAt(int index)
+        {
+            return text.charAt(index);
+        }
+
+        @Override
+        String substring(int start, int end)
+        {
+            return text.substring(start, end);
+        }
+    }
+
+    private static class BuilderSource extends Source
+    {
+        private final StringBuilder text;
+
+        BuilderSource(StringBuilder text)
+        {
+            this.text = text;
+        }
+
+        @Override
+        int length()
+        {
+            return text.length();
+        }
+
+        @Override
+        char charAt(int index)
+        {
+            return text.charAt(index);
+        }
+
+        @Override
+        String substring(int start, int end)
+        {
+            return text.substring(start, end);
+        }
+    }
+
+    /**
+     * Memory-mapped file, encoded in UTF-8 or in a single-byte charset.<p/>
+     * Positions are byte offsets (with the optional UTF-8 byte order mark skipped),
+     * only the lexemes requested by the scanner are ever decoded.
+     */
+    private static class MappedSource extends Source
+    {
+        private final MappedByteBuffer buffer;
+        private final Charset charset;
+        /** Characters of the byte values in a single-byte charset, null for UTF-8. */
+        private final char[] table;
+        /** Number of leading bytes to skip, i.e. the length of UTF-8 BOM if present. */
+        private final int base;
+        private final int length;
+
+        MappedSource(MappedByteBuffer buffer, Charset charset, char[] table)
+        {
+            this.buffer = buffer;
+            this.charset = charset;
+            this.table = table;
+            int limit = buffer.limit();
+
+            if (null == table && limit >= 3 && (buffer.get(0) & 0xFF) == 0xEF
+                           && (buffer.get(1) & 0xFF) == 0xBB
+                           && (buffer.get(2) & 0xFF) == 0xBF)
+                base = 3;
+            else
+                base = 0;
+
+            length = limit - base;
+        }
+
+        @Override
+        int length()
+        {
+            return length;
+        }
+
+        @Override
+        char charAt(int index)
+        {
+            int value = buffer.get(base + index) & 0xFF;
+            return (null == table) ? (char)value : table[value];
+        }
+
+        @Override
+        String substring(int start, int end)
+        {
+            byte[] bytes = new byte[end - start];
+            buffer.get(base + start, bytes);
+            return new String(bytes, charset);
+        }
+    }
+}
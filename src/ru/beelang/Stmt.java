@@ -5,6 +5,8 @@ import java.util.List;
 abstract class Stmt {
     interface Visitor<R> {
         R visitBlockStmt(Block stmt);
+        R visitBreakStmt(Break stmt);
+        R visitContinueStmt(Continue stmt);
         R visitExpressionStmt(Expression stmt);
         R visitFunctionStmt(Function stmt);
         R visitIfStmt(If stmt);
@@ -26,6 +28,32 @@ abstract class Stmt {
         final List<Stmt> statements;
     }
 
+    static class Break extends Stmt {
+        Break(Token keyword) {
+            this.keyword = keyword;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitBreakStmt(this);
+        }
+
+        final Token keyword;
+    }
+
+    static class Continue extends Stmt {
+        Continue(Token keyword) {
+            this.keyword = keyword;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitContinueStmt(this);
+        }
+
+        final Token keyword;
+    }
+
     static class Expression extends Stmt {
         Expression(Expr expression) {
             this.expression = expression;
@@ -40,8 +68,9 @@ abstract class Stmt {
     }
 
     static class Function extends Stmt {
-        Function(Token name, List<Token> params, List<Stmt> body) {
+        Function(Token name, int symbol, List<Token> params, List<Stmt> body) {
             this.name = name;
+            this.symbol = symbol;
             this.params = params;
             this.body = body;
         }
@@ -52,8 +81,15 @@ abstract class Stmt {
         }
 
         final Token name;
+        final int symbol;
         final List<Token> params;
         final List<Stmt> body;
+        /** Filled in by the Resolver. */
+        int kind = -1;
+        int slot = -1;
+        int locals = -1;
+        int[] upvalues = null;
+        int[] cells = null;
     }
 
     static class If extends Stmt {
@@ -86,11 +122,14 @@ abstract class Stmt {
 
         final Token keyword;
         final Expr value;
+        /** Filled in by the Resolver. */
+        boolean tail = false;
     }
 
     static class Var extends Stmt {
-        Var(Token name, Expr initializer) {
+        Var(Token name, int symbol, Expr initializer) {
             this.name = name;
+            this.symbol = symbol;
             this.initializer = initializer;
         }
 
@@ -100,13 +139,18 @@ abstract class Stmt {
         }
 
         final Token name;
+        final int symbol;
         final Expr initializer;
+        /** Filled in by the Resolver. */
+        int kind = -1;
+        int slot = -1;
     }
 
     static class While extends Stmt {
-        While(Expr condition, Stmt body) {
+        While(Expr condition, Stmt body, Expr increment) {
             this.condition = condition;
             this.body = body;
+            this.increment = increment;
         }
 
         @Override
@@ -116,6 +160,7 @@ abstract class Stmt {
 
         final Expr condition;
         final Stmt body;
+        final Expr increment;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
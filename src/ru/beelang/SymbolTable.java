@@ -0,0 +1,117 @@
+package ru.beelang;
+
+import java.util.Arrays;
+
+/**
+ * Interpreter-wide table of identifier names.<p/>
+ * Each distinct identifier is interned once, when the <code>Scanner</code> meets it
+ * for the first time, and gets a dense integer id. Starting from there the rest of the
+ * pipeline (syntax tree, environments) refers to the identifier by that id, so that
+ * variable lookups don't have to hash and compare strings.
+ * <p>Access is synchronized, since in '-pipeline' mode scripts are scanned
+ * on background threads while the interpreter runs.</p>
+ */
+class SymbolTable
+{
+    /** Symbol names indexed by id. */
+    private String[] names = new String[64];
+    private int count = 0;
+
+    /** Open-addressing hash table, holds (id + 1) of the symbol, 0 marks an empty bucket. */
+    private int[] buckets = new int[128];
+    /** Hash codes of the symbols indexed by id, to avoid recalculation while rehashing. */
+    private int[] hashes = new int[64];
+
+    /**
+     * Interns the identifier located in <code>source</code> between <code>start</code>
+     * and <code>end</code>.<p/>
+     * The identifier is hashed and compared right in the source, the name is sliced out
+     * of it only when the symbol is seen for the first time.
+     * @return id of the symbol.
+     */
+    synchronized int intern(Source source, int start, int end)
+    {
+        int hash = 0;
+        for (int i = start; i < end; ++i)
+            hash = 31 * hash + source.charAt(i);
+
+        int mask = buckets.length - 1;
+        for (int idx = hash & mask; ; idx = (idx + 1) & mask)
+        {
+            int id = buckets[idx] - 1;
+            if (id < 0)
+                return add(source.substring(start, end), hash, idx);
+
+            if (hashes[id] == hash && equals(names[id], source, start, end))
+                return id;
+        }
+    }
+
+    /**
+     * Interns the given name, e.g. the name of a native function.
+     * @return id of the symbol.
+     */
+    int intern(String name)
+    {
+        return intern(Source.of(name), 0, name.length());
+    }
+
+    synchronized String name(int id)
+    {
+        return names[id];
+    }
+
+    synchronized int size()
+    {
+        return count;
+    }
+
+    private int add(String name, int hash, int bucket)
+    {
+        if (count == names.length)
+        {
+            names = Arrays.copyOf(names, count * 2);
+            hashes = Arrays.copyOf(hashes, count * 2);
+        }
+
+        int id = count++;
+        names[id] = name;
+        hashes[id] = hash;
+        buckets[bucket] = id + 1;
+
+        // keep the load factor under 1/2
+        if (count * 2 > buckets.length)
+            rehash();
+
+        return id;
+    }
+
+    private void rehash()
+    {
+        buckets = new int[buckets.length * 2];
+        int mask = buckets.length - 1;
+
+        for (int id = 0; id < count; ++id)
+        {
+            int idx = hashes[id] & mask;
+            while (buckets[idx] != 0)
+                idx = (idx + 1) & mask;
+
+            buckets[idx] = id + 1;
+        }
+    }
+
+    private static boolean equals(String name, Source source, int start, int end)
+    {
+        if (name.length() != end - start)
+            return false;
+
+        for (int i = 0; i < name.length(); ++i)
+        {
+            if (name.charAt(i) != source.charAt(start + i))
+                return false;
+        }
+
+        return true;
+    }
+}
@@ -36,12 +36,24 @@ public class Token
      */
     final int line; 
 
+    /**
+     * Id of the interned identifier in the interpreter's <code>SymbolTable</code>.
+     * Is -1 for any other type of token.
+     */
+    final int symbol;
+
     Token(TokenType type, String lexeme, Object literal, int line)
+    {
+        this(type, lexeme, literal, line, -1);
+    }
+
+    Token(TokenType type, String lexeme, Object literal, int line, int symbol)
     {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.symbol = symbol;
     }
 
     public String toString()
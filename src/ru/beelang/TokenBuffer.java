@@ -0,0 +1,332 @@
+package ru.beelang;
+
+import java.util.Arrays;
+
+/**
+ * Compact stream of tokens produced by the <code>Scanner</code>.<p/>
+ * Instead of allocating a <code>Token</code> object per lexeme, each token is stored
+ * as a row in a set of parallel primitive arrays:
+ * <ul>
+ * <li><code>types</code>    - ordinal of the <code>TokenType</code>;</li>
+ * <li><code>starts</code>, <code>ends</code> - bounds of the lexeme in the <code>Source</code>;</li>
+ * <li><code>lines</code>    - line number the token appeared at;</li>
+ * <li><code>literals</code> - either the value of a NUMBER token itself, or the symbol id
+ * of an IDENTIFIER, or an index into the <code>pool</code> of boxed literals
+ * (strings and byte arrays), or -1.</li>
+ * </ul>
+ * Lexemes are materialized only on request, i.e. when the <code>Parser</code> needs a
+ * <code>Token</code> to put in the syntax tree, or to report an error.
+ * <p>A buffer created by <code>ring()</code> has a fixed capacity and keeps only the most
+ * recent tokens: indices keep growing, but the rows are reused in a circle. That's
+ * enough for the parser pulling tokens from the scanner one by one, since it never looks
+ * further than one token back and a couple of tokens ahead.</p>
+ */
+class TokenBuffer
+{
+    private static final TokenType[] TYPES = TokenType.values();
+
+    /**
+     * Lexemes of the tokens whose text is fixed by the grammar.
+     * Those don't need to be sliced out of the source.
+     */
+    private static final String[] FIXED = new String[TYPES.length];
+
+    static {
+        FIXED[TokenType.LEFT_PAREN.ordinal()]    = "(";
+        FIXED[TokenType.RIGHT_PAREN.ordinal()]   = ")";
+        FIXED[TokenType.LEFT_BRACE.ordinal()]    = "{";
+        FIXED[TokenType.RIGHT_BRACE.ordinal()]   = "}";
+        FIXED[TokenType.LEFT_BRACKET.ordinal()]  = "[";
+        FIXED[TokenType.RIGHT_BRACKET.ordinal()] = "]";
+        FIXED[TokenType.COMMA.ordinal()]         = ",";
+        FIXED[TokenType.DOT.ordinal()]           = ".";
+        FIXED[TokenType.MINUS.ordinal()]         = "-";
+        FIXED[TokenType.PLUS.ordinal()]          = "+";
+        FIXED[TokenType.SEMICOLON.ordinal()]     = ";";
+        FIXED[TokenType.SLASH.ordinal()]         = "/";
+        FIXED[TokenType.STAR.ordinal()]          = "*";
+        FIXED[TokenType.INCREMENT.ordinal()]     = "++";
+        FIXED[TokenType.DECREMENT.ordinal()]     = "--";
+        FIXED[TokenType.BANG.ordinal()]          = "!";
+        FIXED[TokenType.BANG_EQUAL.ordinal()]    = "!=";
+        FIXED[TokenType.EQUAL.ordinal()]         = "=";
+        FIXED[TokenType.EQUAL_EQUAL.ordinal()]   = "==";
+        FIXED[TokenType.GREATER.ordinal()]       = ">";
+        FIXED[TokenType.GREATER_EQUAL.ordinal()] = ">=";
+        FIXED[TokenType.LESS.ordinal()]          = "<";
+        FIXED[TokenType.LESS_EQUAL.ordinal()]    = "<=";
+        FIXED[TokenType.AND.ordinal()]           = "and";
+        FIXED[TokenType.CLASS.ordinal()]         = "class";
+        FIXED[TokenType.ELSE.ordinal()]          = "else";
+        FIXED[TokenType.FALSE.ordinal()]         = "false";
+        FIXED[TokenType.FUN.ordinal()]           = "fun";
+        FIXED[TokenType.FOR.ordinal()]           = "for";
+        FIXED[TokenType.IF.ordinal()]            = "if";
+        FIXED[TokenType.NIL.ordinal()]           = "nil";
+        FIXED[TokenType.OR.ordinal()]            = "or";
+        FIXED[TokenType.RETURN.ordinal()]        = "return";
+        FIXED[TokenType.SUPER.ordinal()]         = "super";
+        FIXED[TokenType.THIS.ordinal()]          = "this";
+        FIXED[TokenType.TRUE.ordinal()]          = "true";
+        FIXED[TokenType.VAR.ordinal()]           = "var";
+        FIXED[TokenType.WHILE.ordinal()]         = "while";
+        FIXED[TokenType.BREAK.ordinal()]         = "break";
+        FIXED[TokenType.CONTINUE.ordinal()]      = "continue";
+        FIXED[TokenType.QUOTE.ordinal()]         = "'";
+        FIXED[TokenType.EOF.ordinal()]           = "";
+    }
+
+    /**
+     * @return lexeme of the token whose text is fixed by the grammar, or null
+     * for identifiers and literals.
+     */
+    static String fixedLexeme(TokenType type)
+    {
+        return FIXED[type.ordinal()];
+    }
+
+    private final Source source;
+    private final SymbolTable symbols;
+
+    private byte[] types;
+    private int[] starts;
+    private int[] ends;
+    private int[] lines;
+    private int[] literals;
+    private int size = 0;
+    /** Maps the token index to the row: -1 for a growable buffer, (capacity - 1) for a ring. */
+    private final int mask;
+
+    /** Boxed literals (strings, byte arrays) referenced from <code>literals</code>. */
+    private Object[] pool = new Object[16];
+    private int poolSize = 0;
+
+    TokenBuffer(Source source, SymbolTable symbols)
+    {
+        // a rough guess of one token per 8 characters keeps regrowth rare for big scripts.
+        this(source, symbols, Math.max(64, Math.min(source.length() / 8, 1 << 20)));
+    }
+
+    TokenBuffer(Source source, SymbolTable symbols, int capacity)
+    {
+        this(source, symbols, capacity, -1);
+    }
+
+    private TokenBuffer(Source source, SymbolTable symbols, int capacity, int mask)
+    {
+        this.source = source;
+        this.symbols = symbols;
+        this.mask = mask;
+
+        types    = new byte[capacity];
+        starts   = new int[capacity];
+        ends     = new int[capacity];
+        lines    = new int[capacity];
+        literals = new int[capacity];
+    }
+
+    /**
+     * Creates a buffer which retains only the last <code>capacity</code> tokens.
+     * @param source
+     * @param symbols
+     * @param capacity power of two.
+     * @return
+     */
+    static TokenBuffer ring(Source source, SymbolTable symbols, int capacity)
+    {
+        TokenBuffer buffer = new TokenBuffer(source, symbols, capacity, capacity - 1);
+        // the boxed literal of a token is kept at the token's own row.
+        buffer.pool = new Object[capacity];
+        return buffer;
+    }
+
+    void add(TokenType type, int start, int end, int line)
+    {
+        add(type, start, end, line, -1);
+    }
+
+    /**
+     * Appends a token whose literal is a boxed object (string or byte array).
+     */
+    void add(TokenType type, int start, int end, int line, Object literal)
+    {
+        if (mask != -1)
+        {
+            pool[size & mask] = literal;
+            add(type, start, end, line, size);
+            return;
+        }
+
+        if (poolSize == pool.length)
+            pool = Arrays.copyOf(pool, poolSize * 2);
+
+        pool[poolSize] = literal;
+        add(type, start, end, line, poolSize++);
+    }
+
+    /**
+     * Appends a token.
+     * @param literal for NUMBER token - its value, for IDENTIFIER - its symbol id,
+     * otherwise index in the pool or -1.
+     */
+    void add(TokenType type, int start, int end, int line, int literal)
+    {
+        if (size == types.length && mask == -1)
+            grow();
+
+        int row = size & mask;
+        types[row]    = (byte)type.ordinal();
+        starts[row]   = start;
+        ends[row]     = end;
+        lines[row]    = line;
+        literals[row] = literal;
+        size++;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Drops the tokens starting from the given index, e.g. the EOF token before
+     * the scanner resumes appending to this buffer.
+     * @param size
+     */
+    void truncate(int size)
+    {
+        this.size = size;
+    }
+
+    /**
+     * Empties the buffer, keeping the allocated arrays for reuse.
+     */
+    void clear()
+    {
+        Arrays.fill(pool, 0, poolSize, null);
+        poolSize = 0;
+        size = 0;
+    }
+
+    TokenType type(int index)
+    {
+        return TYPES[types[index & mask]];
+    }
+
+    int line(int index)
+    {
+        return lines[index & mask];
+    }
+
+    /**
+     * Returns the value of the literal token: boxes NUMBER value or retrieves
+     * a string (byte array) from the pool.
+     */
+    Object literal(int index)
+    {
+        int row = index & mask;
+        if (types[row] == TokenType.NUMBER.ordinal())
+            return literals[row];
+
+        if (types[row] == TokenType.IDENTIFIER.ordinal())
+            return null;
+
+        int idx = literals[row];
+        return (idx < 0) ? null : pool[idx & mask];
+    }
+
+    String lexeme(int index)
+    {
+        int row = index & mask;
+        String fixed = FIXED[types[row]];
+        if (null != fixed)
+            return fixed;
+
+        if (types[row] == TokenType.IDENTIFIER.ordinal())
+            return symbols.name(literals[row]);
+
+        return source.substring(starts[row], ends[row]);
+    }
+
+    /**
+     * Materializes the token at the given index.
+     */
+    Token token(int index)
+    {
+        int row = index & mask;
+        int symbol = (types[row] == TokenType.IDENTIFIER.ordinal()) ? literals[row] : -1;
+        return new Token(type(index), lexeme(index), literal(index), lines[row], symbol);
+    }
+
+    /**
+     * Stitches the buffers of consecutive chunks of the same source into a single one.<p/>
+     * The EOF tokens of all the chunks but the last one are dropped. Each chunk has been
+     * scanned with its own symbol table, so the symbol ids of the identifiers are
+     * translated through the chunk's map into the given table, and the pool indices
+     * are shifted by the size of the pools of the preceding chunks. Positions and
+     * line numbers are already absolute and are copied as is.
+     * @param source
+     * @param symbols table the identifiers of the resulting buffer refer to.
+     * @param parts buffers of the chunks, in the order they appear in the source.
+     * @param symbolMaps for each chunk, the id in <code>symbols</code> indexed by the chunk's own id.
+     * @return
+     */
+    static TokenBuffer concat(Source source, SymbolTable symbols, TokenBuffer[] parts, int[][] symbolMaps)
+    {
+        int total = 0;
+        int poolTotal = 0;
+        for (TokenBuffer part : parts)
+        {
+            total += part.size;
+            poolTotal += part.poolSize;
+        }
+
+        TokenBuffer result = new TokenBuffer(source, symbols, Math.max(64, total));
+        result.pool = new Object[Math.max(16, poolTotal)];
+
+        for (int p = 0; p < parts.length; ++p)
+        {
+            TokenBuffer part = parts[p];
+            int[] map = symbolMaps[p];
+            // the last token of every chunk is its EOF, only the last one is kept.
+            int count = (p == parts.length - 1) ? part.size : part.size - 1;
+            int base = result.size;
+            int poolBase = result.poolSize;
+
+            System.arraycopy(part.types, 0, result.types, base, count);
+            System.arraycopy(part.starts, 0, result.starts, base, count);
+            System.arraycopy(part.ends, 0, result.ends, base, count);
+            System.arraycopy(part.lines, 0, result.lines, base, count);
+            System.arraycopy(part.pool, 0, result.pool, poolBase, part.poolSize);
+
+            for (int i = 0; i < count; ++i)
+            {
+                int type = part.types[i];
+                int literal = part.literals[i];
+
+                if (type == TokenType.IDENTIFIER.ordinal())
+                    literal = map[literal];
+                else if (type != TokenType.NUMBER.ordinal() && literal >= 0)
+                    literal += poolBase;
+
+                result.literals[base + i] = literal;
+            }
+
+            result.size += count;
+            result.poolSize += part.poolSize;
+        }
+
+        return result;
+    }
+
+    private void grow()
+    {
+        int capacity = types.length * 2;
+
+        types    = Arrays.copyOf(types, capacity);
+        starts   = Arrays.copyOf(starts, capacity);
+        ends     = Arrays.copyOf(ends, capacity);
+        lines    = Arrays.copyOf(lines, capacity);
+        literals = Arrays.copyOf(literals, capacity);
+    }
+}
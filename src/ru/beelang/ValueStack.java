@@ -0,0 +1,292 @@
+package ru.beelang;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Storage of the local variables, shared by all the calls made by an execution engine.<p/>
+ * Each function call (and each top-level program) takes a frame of consecutive slots on a
+ * single growable array, sized by the <code>Resolver</code> to hold all the locals of the
+ * function, including those of its nested blocks. Entering a block or a loop iteration
+ * allocates nothing, and the frame is released by just moving the top back on return.
+ * <p>A local which is captured by a nested function has to outlive the frame, so its slot
+ * holds a <code>Cell</code> instead of the value, and the closure keeps references to the
+ * cells it has captured - its upvalues. The way every variable is accessed is decided by
+ * the <code>Resolver</code>, see its <code>LOCAL</code>, <code>CELL</code>,
+ * <code>UPVALUE</code>, <code>GLOBAL</code> and <code>GLOBAL_SLOT</code> kinds.</p>
+ * <p>An int stored through <code>setInt()</code> isn't boxed: the slot holds the
+ * <code>UNBOXED</code> marker and the value is kept in the parallel <code>ints</code>
+ * array. The int accessors read it as is, the generic <code>get()</code> boxes it, so
+ * a local which only ever holds ints costs no allocation until it's passed to something
+ * which takes objects.</p>
+ */
+class ValueStack
+{
+    /** Heap box of a captured variable. */
+    static final class Cell
+    {
+        Object value;
+
+        Cell(Object value)
+        {
+            this.value = value;
+        }
+    }
+
+    static final Cell[] NO_UPVALUES = new Cell[0];
+
+    /** Held by a slot whose value is the int in <code>ints</code>. */
+    private static final Object UNBOXED = new Object();
+
+    private final Environment globals;
+    private Object[] slots = new Object[256];
+    private int[] ints = new int[256];
+    /** Index of the first slot of the current frame. */
+    private int fp = 0;
+    /** Index past the last slot of the current frame. */
+    private int top = 0;
+    /** Upvalues of the function being executed. */
+    private Cell[] upvalues = NO_UPVALUES;
+
+    ValueStack(Environment globals)
+    {
+        this.globals = globals;
+    }
+
+    /**
+     * Pushes a new frame and makes it current.
+     * @param locals number of slots of the frame.
+     * @param upvalues upvalues of the function being called.
+     * @param arguments values of the parameters, which take the first slots.
+     * @param cells slots of the parameters captured by nested functions, or null.
+     * @return the frame pointer to be restored by <code>leave()</code>.
+     */
+    int enter(int locals, Cell[] upvalues, List<Object> arguments, int[] cells)
+    {
+        int previous = enter(locals, upvalues);
+        for (int i = 0; i < arguments.size(); ++i)
+            slots[fp + i] = arguments.get(i);
+
+        box(cells);
+        return previous;
+    }
+
+    /**
+     * Pushes a new frame, the caller puts the arguments into the first slots with
+     * <code>setLocal()</code> and then has the captured ones boxed by <code>box()</code>.
+     * That way the arguments needn't be collected into a list.
+     * @return the frame pointer to be restored by <code>leave()</code>.
+     */
+    int enter(int locals, Cell[] upvalues)
+    {
+        int base = top;
+        if (base + locals > slots.length)
+        {
+            slots = Arrays.copyOf(slots, Math.max(slots.length * 2, base + locals));
+            ints = Arrays.copyOf(ints, slots.length);
+        }
+
+        int previous = fp;
+        fp = base;
+        top = base + locals;
+        this.upvalues = upvalues;
+        return previous;
+    }
+
+    /**
+     * Puts the parameters captured by nested functions into cells.
+     * @param cells slots of the parameters, or null.
+     */
+    void box(int[] cells)
+    {
+        if (null != cells)
+        {
+            for (int slot : cells)
+                slots[fp + slot] = new Cell(slots[fp + slot]);
+        }
+    }
+
+    /**
+     * Pops the current frame. The slots are cleared, so the frame doesn't keep
+     * the values reachable.
+     * @param previous frame pointer returned by <code>enter()</code>.
+     * @param upvalues upvalues of the caller.
+     */
+    void leave(int previous, Cell[] upvalues)
+    {
+        Arrays.fill(slots, fp, top, null);
+        top = fp;
+        fp = previous;
+        this.upvalues = upvalues;
+    }
+
+    Cell[] upvalues()
+    {
+        return upvalues;
+    }
+
+    /**
+     * Direct accessors of the current frame, for the engines which decide
+     * the kind of the access beforehand, see <code>ClosureCompiler</code>.
+     */
+    Object local(int slot)
+    {
+        Object value = slots[fp + slot];
+        return (value == UNBOXED) ? (Integer)ints[fp + slot] : value;
+    }
+
+    void setLocal(int slot, Object value)
+    {
+        slots[fp + slot] = value;
+    }
+
+    Cell cell(int slot)
+    {
+        return (Cell)slots[fp + slot];
+    }
+
+    Cell upvalue(int index)
+    {
+        return upvalues[index];
+    }
+
+    /**
+     * @return true if the local holds an int, boxed or not.
+     */
+    boolean holdsInt(int slot)
+    {
+        Object value = slots[fp + slot];
+        return value == UNBOXED || value instanceof Integer;
+    }
+
+    /**
+     * @param slot of the local which holds an int, see <code>holdsInt()</code>.
+     */
+    int getInt(int slot)
+    {
+        Object value = slots[fp + slot];
+        return (value == UNBOXED) ? ints[fp + slot] : (int)value;
+    }
+
+    void setInt(int slot, int value)
+    {
+        slots[fp + slot] = UNBOXED;
+        ints[fp + slot] = value;
+    }
+
+    /**
+     * Adds the delta to the int in the local.
+     * @return the new value.
+     * @throws RuntimeError if the local doesn't hold an int.
+     */
+    int increment(int slot, int delta, Token name)
+    {
+        if (!holdsInt(slot))
+            throw new RuntimeError(name, "Operand must be of type int.");
+
+        int value = getInt(slot) + delta;
+        setInt(slot, value);
+        return value;
+    }
+
+    Object get(int kind, int slot, int symbol, Token name)
+    {
+        switch (kind)
+        {
+            case Resolver.LOCAL:
+                return local(slot);
+            case Resolver.CELL:
+                return ((Cell)slots[fp + slot]).value;
+            case Resolver.UPVALUE:
+                return upvalues[slot].value;
+            case Resolver.GLOBAL_SLOT:
+                return globals.get(slot);
+            default:
+                return globals.getGlobal(symbol, name);
+        }
+    }
+
+    void set(int kind, int slot, int symbol, Token name, Object value)
+    {
+        switch (kind)
+        {
+            case Resolver.LOCAL:
+                slots[fp + slot] = value;
+                break;
+            case Resolver.CELL:
+                ((Cell)slots[fp + slot]).value = value;
+                break;
+            case Resolver.UPVALUE:
+                upvalues[slot].value = value;
+                break;
+            case Resolver.GLOBAL_SLOT:
+                globals.set(slot, value);
+                break;
+            default:
+                globals.assignGlobal(symbol, name, value);
+                break;
+        }
+    }
+
+    /**
+     * Binds the declared variable.
+     * @throws RuntimeError if the name is already declared in the same scope.
+     */
+    void define(int kind, int slot, int symbol, Object value, Token name)
+    {
+        switch (kind)
+        {
+            case Resolver.LOCAL:
+                slots[fp + slot] = value;
+                break;
+            case Resolver.CELL:
+                slots[fp + slot] = new Cell(value);
+                break;
+            case Resolver.DUPLICATE:
+                throw new RuntimeError(name, "identifier '" + name.lexeme + "' is already in use.");
+            default:
+                globals.defineGlobal(symbol, value, name);
+                break;
+        }
+    }
+
+    /**
+     * Creates an empty cell for the function declared in a captured slot. The function
+     * has to capture the cell before it can be put into it, since it may refer to itself.
+     */
+    Cell defineCell(int slot)
+    {
+        Cell cell = new Cell(null);
+        slots[fp + slot] = cell;
+        return cell;
+    }
+
+    /**
+     * Collects the upvalues of the closure being created in the current frame.
+     * @param descriptors as computed by the <code>Resolver</code>: a slot of the current
+     * frame, or -(index + 1) of the current function's own upvalue.
+     * @return
+     */
+    Cell[] capture(int[] descriptors)
+    {
+        return capture(descriptors, 0, descriptors.length);
+    }
+
+    /**
+     * Same as <code>capture(int[])</code>, for the descriptors stored in a part of the array.
+     */
+    Cell[] capture(int[] descriptors, int from, int count)
+    {
+        if (count == 0)
+            return NO_UPVALUES;
+
+        Cell[] captured = new Cell[count];
+        for (int i = 0; i < count; ++i)
+        {
+            int descriptor = descriptors[from + i];
+            captured[i] = (descriptor >= 0) ? (Cell)slots[fp + descriptor] : upvalues[-descriptor - 1];
+        }
+
+        return captured;
+    }
+}
@@ -0,0 +1,433 @@
+package ru.beelang.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal writer of a JVM class file with a single method besides the constructor.<p/>
+ * The class is written in version 50 (Java 6) format: the verifier may infer the types
+ * of the locals and of the stack itself, so the code needs no stack map frames, and the
+ * generated code stays as simple as the one a compiler of the tree would emit.
+ * The instructions are appended one by one, the assembler keeps track of the stack
+ * depth to compute <code>max_stack</code> and patches the forward jumps once their
+ * labels are placed.
+ */
+public final class Assembler
+{
+    public static final int ACONST_NULL   = 0x01;
+    public static final int ICONST_0      = 0x03;
+    public static final int ILOAD         = 0x15;
+    public static final int ALOAD         = 0x19;
+    public static final int AALOAD        = 0x32;
+    public static final int ISTORE        = 0x36;
+    public static final int ASTORE        = 0x3a;
+    public static final int AASTORE       = 0x53;
+    public static final int POP           = 0x57;
+    public static final int DUP           = 0x59;
+    public static final int IADD          = 0x60;
+    public static final int ISUB          = 0x64;
+    public static final int IMUL          = 0x68;
+    public static final int INEG          = 0x74;
+    public static final int IXOR          = 0x82;
+    public static final int IFEQ          = 0x99;
+    public static final int IFNE          = 0x9a;
+    public static final int IF_ICMPEQ     = 0x9f;
+    public static final int IF_ICMPNE     = 0xa0;
+    public static final int IF_ICMPLT     = 0xa1;
+    public static final int IF_ICMPGE     = 0xa2;
+    public static final int IF_ICMPGT     = 0xa3;
+    public static final int IF_ICMPLE     = 0xa4;
+    public static final int GOTO          = 0xa7;
+    public static final int ARETURN       = 0xb0;
+    public static final int RETURN        = 0xb1;
+    public static final int GETSTATIC     = 0xb2;
+    public static final int INVOKEVIRTUAL = 0xb6;
+    public static final int INVOKESPECIAL = 0xb7;
+    public static final int INVOKESTATIC  = 0xb8;
+    public static final int INVOKEINTERFACE = 0xb9;
+    public static final int ANEWARRAY     = 0xbd;
+    public static final int CHECKCAST     = 0xc0;
+    public static final int INSTANCEOF    = 0xc1;
+
+    private static final int IINC = 0x84;
+    private static final int WIDE = 0xc4;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+
+    /** Largest method the jumps with 16-bit offsets can surely address. */
+    public static final int MAX_CODE = 32767;
+
+    /** Position in the code, jumped to before or after it's placed. */
+    public static final class Label
+    {
+        private int offset = -1;
+        /** Stack depth at the label, known once a jump to it is emitted or it's placed. */
+        private int depth = -1;
+        /** Positions of the jump instructions waiting for the label to be placed. */
+        private final List<Integer> jumps = new ArrayList<>();
+    }
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream constants = new DataOutputStream(pool);
+    private int poolCount = 1;
+    private final Map<String, Integer> entries = new HashMap<>();
+
+    private byte[] code = new byte[256];
+    private int size = 0;
+    private int depth = 0;
+    private int maxDepth = 0;
+
+    public int size()
+    {
+        return size;
+    }
+
+    /** Instruction with no operands, of the ones listed above. */
+    public void op(int opcode)
+    {
+        emit(opcode);
+        switch (opcode)
+        {
+            case ACONST_NULL: case DUP:
+                adjust(1);
+                break;
+            case POP: case AALOAD: case IADD: case ISUB: case IMUL: case IXOR: case ARETURN:
+                adjust(-1);
+                break;
+            case AASTORE:
+                adjust(-3);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /** Pushes the int constant. */
+    public void push(int value)
+    {
+        if (value >= -1 && value <= 5)
+        {
+            emit(ICONST_0 + value);
+        }else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+        {
+            emit(BIPUSH);
+            emit(value);
+        }else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+        {
+            emit(SIPUSH);
+            emit16(value);
+        }else
+        {
+            emit(LDC_W);
+            emit16(constant("I" + value, 3, value));
+        }
+        adjust(1);
+    }
+
+    /**
+     * Loads or stores a local.
+     * @param opcode <code>ILOAD</code>, <code>ALOAD</code>, <code>ISTORE</code> or <code>ASTORE</code>.
+     */
+    public void local(int opcode, int index)
+    {
+        if (index > 255)
+        {
+            emit(WIDE);
+            emit(opcode);
+            emit16(index);
+        }else
+        {
+            emit(opcode);
+            emit(index);
+        }
+        adjust((opcode == ILOAD || opcode == ALOAD) ? 1 : -1);
+    }
+
+    public void iinc(int index, int delta)
+    {
+        if (index > 255)
+        {
+            emit(WIDE);
+            emit(IINC);
+            emit16(index);
+            emit16(delta);
+        }else
+        {
+            emit(IINC);
+            emit(index);
+            emit(delta);
+        }
+    }
+
+    /**
+     * @param opcode <code>CHECKCAST</code>, <code>INSTANCEOF</code> or <code>ANEWARRAY</code>.
+     * @param type internal name of the class.
+     */
+    public void type(int opcode, String type)
+    {
+        emit(opcode);
+        emit16(classRef(type));
+    }
+
+    public void getStatic(String owner, String name, String descriptor)
+    {
+        emit(GETSTATIC);
+        emit16(memberRef(9, owner, name, descriptor));
+        adjust(1);
+    }
+
+    /**
+     * @param opcode one of the <code>INVOKE</code> instructions.
+     */
+    public void invoke(int opcode, String owner, String name, String descriptor)
+    {
+        int arguments = argumentCount(descriptor);
+        emit(opcode);
+        emit16(memberRef((opcode == INVOKEINTERFACE) ? 11 : 10, owner, name, descriptor));
+        if (opcode == INVOKEINTERFACE)
+        {
+            emit(arguments + 1);
+            emit(0);
+        }
+
+        adjust(-arguments - ((opcode == INVOKESTATIC) ? 0 : 1) + (descriptor.endsWith(")V") ? 0 : 1));
+    }
+
+    /**
+     * Conditional or unconditional jump, with the operands popped by the instruction.
+     */
+    public void jump(int opcode, Label label)
+    {
+        int at = size;
+        emit(opcode);
+        if (label.offset >= 0)
+        {
+            emit16(label.offset - at);
+        }else
+        {
+            label.jumps.add(at);
+            emit16(0);
+        }
+
+        if (opcode >= IF_ICMPEQ && opcode <= IF_ICMPLE)
+            adjust(-2);
+        else if (opcode != GOTO)
+            adjust(-1);
+
+        if (label.depth < 0)
+            label.depth = depth;
+    }
+
+    /** Places the label at the next instruction. */
+    public void mark(Label label)
+    {
+        // the code before may end with a jump, the depth is the one the jumps here have.
+        if (label.depth >= 0)
+            depth = label.depth;
+        else
+            label.depth = depth;
+
+        label.offset = size;
+        for (int at : label.jumps)
+        {
+            int offset = size - at;
+            code[at + 1] = (byte)(offset >> 8);
+            code[at + 2] = (byte)offset;
+        }
+        label.jumps.clear();
+    }
+
+    /**
+     * Writes the class: a public constructor with no arguments and the method
+     * made of the code assembled so far.
+     * @param name internal name of the class.
+     * @param implemented internal name of the interface the class implements.
+     * @param method name of the method, public and non-static.
+     * @param descriptor of the method.
+     * @param maxLocals number of the local slots of the method, <code>this</code> and the parameters included.
+     * @return
+     */
+    public byte[] toClass(String name, String implemented, String method, String descriptor, int maxLocals)
+    {
+        if (size > MAX_CODE)
+            throw new IllegalStateException("Method too large.");
+
+        int thisClass = classRef(name);
+        int superClass = classRef("java/lang/Object");
+        int iface = classRef(implemented);
+        int init = utf8("<init>");
+        int voidDescriptor = utf8("()V");
+        int superInit = memberRef(10, "java/lang/Object", "<init>", "()V");
+        int methodName = utf8(method);
+        int methodDescriptor = utf8(descriptor);
+        int codeName = utf8("Code");
+
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(50);
+            out.writeShort(poolCount);
+            constants.flush();
+            pool.writeTo(out);
+            out.writeShort(0x1031);     // public final super synthetic
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(iface);
+            out.writeShort(0);          // fields
+            out.writeShort(2);          // methods
+
+            out.writeShort(0x0001);
+            out.writeShort(init);
+            out.writeShort(voidDescriptor);
+            byte[] constructor = {0x2a, (byte)INVOKESPECIAL, (byte)(superInit >> 8), (byte)superInit, (byte)RETURN};
+            writeCode(out, codeName, 1, 1, constructor, constructor.length);
+
+            out.writeShort(0x0001);
+            out.writeShort(methodName);
+            out.writeShort(methodDescriptor);
+            writeCode(out, codeName, maxDepth + 2, maxLocals, code, size);
+
+            out.writeShort(0);          // attributes
+            out.flush();
+            return bytes.toByteArray();
+        }catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeCode(DataOutputStream out, int codeName, int maxStack, int maxLocals,
+                                  byte[] code, int length) throws IOException
+    {
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(length);
+        out.write(code, 0, length);
+        out.writeShort(0);      // exception table
+        out.writeShort(0);      // attributes
+    }
+
+    private void emit(int value)
+    {
+        if (size == code.length)
+            code = Arrays.copyOf(code, size * 2);
+
+        code[size++] = (byte)value;
+    }
+
+    private void emit16(int value)
+    {
+        emit(value >> 8);
+        emit(value);
+    }
+
+    private void adjust(int effect)
+    {
+        depth += effect;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    /** Number of the argument slots taken by the method descriptor, all the arguments are one slot wide. */
+    private static int argumentCount(String descriptor)
+    {
+        int count = 0;
+        for (int i = 1; descriptor.charAt(i) != ')'; ++i)
+        {
+            char c = descriptor.charAt(i);
+            while (c == '[')
+                c = descriptor.charAt(++i);
+            if (c == 'L')
+                i = descriptor.indexOf(';', i);
+            ++count;
+        }
+        return count;
+    }
+
+    // ========================================================= //
+    // ===================== Constant pool ===================== //
+    // ========================================================= //
+
+    private int utf8(String value)
+    {
+        Integer index = entries.get("U" + value);
+        if (null != index)
+            return index;
+
+        try
+        {
+            constants.writeByte(1);
+            constants.writeUTF(value);
+        }catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        entries.put("U" + value, poolCount);
+        return poolCount++;
+    }
+
+    private int classRef(String name)
+    {
+        return constant("C" + name, 7, utf8(name));
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor)
+    {
+        int nameAndType = constant2("N" + name + ' ' + descriptor, 12, utf8(name), utf8(descriptor));
+        return constant2("M" + tag + owner + '.' + name + descriptor, tag, classRef(owner), nameAndType);
+    }
+
+    /** Entry of a 4-byte value (an int), or of a single 2-byte index if <code>tag</code> is 7. */
+    private int constant(String key, int tag, int value)
+    {
+        Integer index = entries.get(key);
+        if (null != index)
+            return index;
+
+        try
+        {
+            constants.writeByte(tag);
+            if (tag == 3)
+                constants.writeInt(value);
+            else
+                constants.writeShort(value);
+        }catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        entries.put(key, poolCount);
+        return poolCount++;
+    }
+
+    private int constant2(String key, int tag, int first, int second)
+    {
+        Integer index = entries.get(key);
+        if (null != index)
+            return index;
+
+        try
+        {
+            constants.writeByte(tag);
+            constants.writeShort(first);
+            constants.writeShort(second);
+        }catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        entries.put(key, poolCount);
+        return poolCount++;
+    }
+}
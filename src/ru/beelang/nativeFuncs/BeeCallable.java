@@ -1,5 +1,6 @@
 package ru.beelang.nativeFuncs;
 
+import java.util.Arrays;
 import java.util.List;
 
 import ru.beelang.Interpreter;
@@ -10,4 +11,39 @@ public interface BeeCallable
     int arity();
     Object call(Interpreter interpreter, List<Object> arguments, Token token);
     //Object call(Interpreter interpreter, byte[] arguments, Token token);
+
+    /**
+     * Entry points for the call sites which know the number of their arguments, already
+     * checked against the arity.<p/>
+     * By default the arguments are collected into an array for <code>callArray()</code>,
+     * which wraps it into a list for <code>call()</code>. The functions override them to
+     * bind the arguments right away, so a call allocates neither the list nor the array.
+     */
+    default Object call0(Interpreter interpreter, Token token)
+    {
+        return callArray(interpreter, new Object[0], token);
+    }
+
+    default Object call1(Interpreter interpreter, Object a, Token token)
+    {
+        return callArray(interpreter, new Object[] {a}, token);
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b, Token token)
+    {
+        return callArray(interpreter, new Object[] {a, b}, token);
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c, Token token)
+    {
+        return callArray(interpreter, new Object[] {a, b, c}, token);
+    }
+
+    /**
+     * @param arguments owned by the callee from now on, the caller doesn't reuse the array.
+     */
+    default Object callArray(Interpreter interpreter, Object[] arguments, Token token)
+    {
+        return call(interpreter, Arrays.asList(arguments), token);
+    }
 }
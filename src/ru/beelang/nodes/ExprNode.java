@@ -0,0 +1,35 @@
+package ru.beelang.nodes;
+
+import ru.beelang.Interpreter;
+
+/**
+ * Node evaluating to a value.<p/>
+ * Besides the generic <code>execute()</code>, a node provides typed entry points. A node
+ * specialized for ints overrides <code>executeInt()</code> and hands its result to the
+ * parent with no boxing, a comparison overrides <code>executeCondition()</code>. The
+ * defaults go through <code>execute()</code>: when the value isn't of the requested
+ * type, it's passed back in <code>UnexpectedResultException</code>, and the caller
+ * is expected to generalize itself.
+ */
+public abstract class ExprNode extends Node
+{
+    public abstract Object execute(Frame frame);
+
+    public int executeInt(Frame frame) throws UnexpectedResultException
+    {
+        Object value = execute(frame);
+        if (value instanceof Integer)
+            return (int)value;
+
+        throw new UnexpectedResultException(value);
+    }
+
+    /**
+     * Evaluates the node as the condition of <code>if</code> or <code>while</code>.
+     * @return truthiness of the value.
+     */
+    public boolean executeCondition(Frame frame)
+    {
+        return Interpreter.isTruthy(execute(frame));
+    }
+}
@@ -0,0 +1,32 @@
+package ru.beelang.nodes;
+
+/**
+ * Locals of a function call, laid out by the <code>Resolver</code>.
+ */
+public final class Frame
+{
+    /** Heap box of a captured variable. */
+    static final class Cell
+    {
+        Object value;
+
+        Cell(Object value)
+        {
+            this.value = value;
+        }
+    }
+
+    static final Cell[] NO_UPVALUES = new Cell[0];
+
+    final Object[] locals;
+    /** Upvalues of the function being executed. */
+    final Cell[] upvalues;
+    /** Value of the <code>return</code> which has left the function. */
+    Object returned;
+
+    Frame(int locals, Cell[] upvalues)
+    {
+        this.locals = new Object[locals];
+        this.upvalues = upvalues;
+    }
+}
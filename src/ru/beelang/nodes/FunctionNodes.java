@@ -0,0 +1,245 @@
+package ru.beelang.nodes;
+
+import java.util.List;
+
+import ru.beelang.Completion;
+import ru.beelang.Interpreter;
+import ru.beelang.RuntimeError;
+import ru.beelang.Token;
+import ru.beelang.nativeFuncs.BeeCallable;
+
+/**
+ * Functions of the node tree and the nodes creating and calling them.
+ */
+final class FunctionNodes
+{
+    /** Body of a function and the layout of its frame, shared by all of its closures. */
+    static final class Root
+    {
+        final String name;
+        final int arity;
+        /** Number of the slots of the frame, parameters included. */
+        final int locals;
+        /** Slots of the parameters captured by nested functions. */
+        final int[] cells;
+        final StmtNode body;
+
+        Root(String name, int arity, int locals, int[] cells, StmtNode body)
+        {
+            this.name = name;
+            this.arity = arity;
+            this.locals = locals;
+            this.cells = cells;
+            this.body = body;
+        }
+    }
+
+    /** Function created by executing its declaration. */
+    static final class Function implements BeeCallable
+    {
+        private final Root root;
+        private final Frame.Cell[] upvalues;
+
+        Function(Root root, Frame.Cell[] upvalues)
+        {
+            this.root = root;
+            this.upvalues = upvalues;
+        }
+
+        @Override
+        public int arity()
+        {
+            return root.arity;
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments, Token token)
+        {
+            return callArray(interpreter, arguments.toArray(), token);
+        }
+
+        // the arguments are checked against the arity by the caller, and go right into
+        // the new frame, the parameters take the first slots.
+        @Override
+        public Object call0(Interpreter interpreter, Token token)
+        {
+            return run(new Frame(root.locals, upvalues), token);
+        }
+
+        @Override
+        public Object call1(Interpreter interpreter, Object a, Token token)
+        {
+            Frame frame = new Frame(root.locals, upvalues);
+            frame.locals[0] = a;
+            return run(frame, token);
+        }
+
+        @Override
+        public Object call2(Interpreter interpreter, Object a, Object b, Token token)
+        {
+            Frame frame = new Frame(root.locals, upvalues);
+            frame.locals[0] = a;
+            frame.locals[1] = b;
+            return run(frame, token);
+        }
+
+        @Override
+        public Object call3(Interpreter interpreter, Object a, Object b, Object c, Token token)
+        {
+            Frame frame = new Frame(root.locals, upvalues);
+            frame.locals[0] = a;
+            frame.locals[1] = b;
+            frame.locals[2] = c;
+            return run(frame, token);
+        }
+
+        @Override
+        public Object callArray(Interpreter interpreter, Object[] arguments, Token token)
+        {
+            Frame frame = new Frame(root.locals, upvalues);
+            System.arraycopy(arguments, 0, frame.locals, 0, arguments.length);
+            return run(frame, token);
+        }
+
+        /**
+         * Runs the body in the frame whose parameters have been set.
+         * @param token of the call, the overflow of the Java stack is reported at.
+         */
+        private Object run(Frame frame, Token token)
+        {
+            Object[] locals = frame.locals;
+            for (int slot : root.cells)
+                locals[slot] = new Frame.Cell(locals[slot]);
+
+            try {
+                return (root.body.execute(frame) == Completion.RETURN) ? frame.returned : null;
+            }catch (StackOverflowError e) {
+                // each call of the script takes Java frames, and a tail call isn't an exception.
+                throw new RuntimeError(token, "Stack overflow.");
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return "<fn " + root.name + ">";
+        }
+    }
+
+    /** Creates the function, capturing the cells of the variables it refers to. */
+    static final class Closure extends ExprNode
+    {
+        private final Root root;
+        /** Where the upvalues come from: a slot of the frame, or -(index + 1) of its upvalue. */
+        private final int[] upvalues;
+
+        Closure(Root root, int[] upvalues)
+        {
+            this.root = root;
+            this.upvalues = upvalues;
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            if (0 == upvalues.length)
+                return new Function(root, Frame.NO_UPVALUES);
+
+            Frame.Cell[] cells = new Frame.Cell[upvalues.length];
+            for (int i = 0; i < upvalues.length; ++i)
+            {
+                int from = upvalues[i];
+                cells[i] = (from >= 0) ? (Frame.Cell)frame.locals[from] : frame.upvalues[-from - 1];
+            }
+            return new Function(root, cells);
+        }
+    }
+
+    static final class Call extends ExprNode
+    {
+        private final Token paren;
+        private final Interpreter interpreter;
+        private ExprNode callee;
+        private final ExprNode[] arguments;
+        /** Function called last, already checked to take the arguments. */
+        private BeeCallable target = null;
+
+        Call(ExprNode callee, ExprNode[] arguments, Token paren, Interpreter interpreter)
+        {
+            this.callee = adopt(callee);
+            this.arguments = arguments;
+            this.paren = paren;
+            this.interpreter = interpreter;
+            for (ExprNode argument : arguments)
+                adopt(argument);
+        }
+
+        @Override
+        protected void replaceChild(Node child, Node node)
+        {
+            if (child == callee)
+            {
+                callee = (ExprNode)node;
+                return;
+            }
+
+            for (int i = 0; i < arguments.length; ++i)
+            {
+                if (arguments[i] == child)
+                    arguments[i] = (ExprNode)node;
+            }
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            Object function = callee.execute(frame);
+
+            // up to three arguments are passed as they are, with no array to hold them.
+            switch (arguments.length)
+            {
+                case 0:
+                    return check(function).call0(interpreter, paren);
+                case 1:
+                {
+                    Object a = arguments[0].execute(frame);
+                    return check(function).call1(interpreter, a, paren);
+                }
+                case 2:
+                {
+                    Object a = arguments[0].execute(frame);
+                    Object b = arguments[1].execute(frame);
+                    return check(function).call2(interpreter, a, b, paren);
+                }
+                case 3:
+                {
+                    Object a = arguments[0].execute(frame);
+                    Object b = arguments[1].execute(frame);
+                    Object c = arguments[2].execute(frame);
+                    return check(function).call3(interpreter, a, b, c, paren);
+                }
+                default:
+                {
+                    Object[] values = new Object[arguments.length];
+                    for (int i = 0; i < values.length; ++i)
+                        values[i] = arguments[i].execute(frame);
+
+                    return check(function).callArray(interpreter, values, paren);
+                }
+            }
+        }
+
+        /**
+         * Checks the callee, unless it's the one called here last time.
+         */
+        private BeeCallable check(Object function)
+        {
+            if (null == target || function != target)
+                target = Interpreter.checkCallable(function, arguments.length, paren);
+
+            return target;
+        }
+    }
+
+    private FunctionNodes() {}
+}
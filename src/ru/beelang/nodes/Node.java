@@ -0,0 +1,43 @@
+package ru.beelang.nodes;
+
+/**
+ * Node of the executable tree.<p/>
+ * Unlike the syntax tree, the executable tree isn't fixed: a node which has observed
+ * the values it works with may replace itself in its parent with a version specialized
+ * for them, and a specialized node whose assumption stops holding replaces itself with
+ * a more general one. Each node knows its parent for that purpose, the parents adopt
+ * their children when created and swap them in <code>replaceChild()</code>.
+ */
+abstract class Node
+{
+    Node parent;
+
+    protected final <T extends Node> T adopt(T child)
+    {
+        if (null != child)
+            child.parent = this;
+
+        return child;
+    }
+
+    /**
+     * Puts the given node in place of this one.
+     * @param node
+     * @return the node.
+     */
+    protected final <T extends Node> T replace(T node)
+    {
+        node.parent = parent;
+        parent.replaceChild(this, node);
+        return node;
+    }
+
+    /**
+     * Swaps the child of this node, called by the child being replaced.
+     * Nodes with children which may get replaced must override it.
+     */
+    protected void replaceChild(Node child, Node node)
+    {
+        throw new IllegalStateException(getClass().getSimpleName() + " has no replaceable children.");
+    }
+}
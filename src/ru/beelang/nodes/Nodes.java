@@ -0,0 +1,209 @@
+package ru.beelang.nodes;
+
+import ru.beelang.Environment;
+import ru.beelang.Interpreter;
+import ru.beelang.Token;
+
+/**
+ * Factory of the executable tree, used by the <code>NodeBuilder</code> to translate
+ * the resolved syntax tree, and the entry point running it.<p/>
+ * The nodes themselves are package-private: outside the package the tree is only
+ * built and executed, the specialization happens inside as it runs.
+ */
+public final class Nodes
+{
+    /** Binary operators, see <code>binary()</code>. */
+    public static final int ADD           = 0;
+    public static final int SUBTRACT      = 1;
+    public static final int MULTIPLY      = 2;
+    public static final int DIVIDE        = 3;
+    public static final int LESS          = 4;
+    public static final int LESS_EQUAL    = 5;
+    public static final int GREATER       = 6;
+    public static final int GREATER_EQUAL = 7;
+    public static final int EQUAL         = 8;
+    public static final int NOT_EQUAL     = 9;
+
+    /**
+     * Runs the body of a script in a frame of its own.
+     * @param script
+     * @param locals number of the slots of the script's frame.
+     */
+    public static void run(StmtNode script, int locals)
+    {
+        // 'return' at the top level ends the script, the same as its last statement does.
+        script.execute(new Frame(locals, Frame.NO_UPVALUES));
+    }
+
+    public static ExprNode literal(Object value)
+    {
+        if (value instanceof Integer)
+            return new OperatorNodes.IntLiteral((int)value);
+
+        return new OperatorNodes.Literal(value);
+    }
+
+    /**
+     * @param op one of the operator constants.
+     * @param operator the errors are reported at.
+     */
+    public static ExprNode binary(int op, Token operator, ExprNode left, ExprNode right)
+    {
+        return new OperatorNodes.Uninitialized(op, operator, left, right);
+    }
+
+    public static ExprNode logical(boolean or, ExprNode left, ExprNode right)
+    {
+        return new OperatorNodes.Logical(or, left, right);
+    }
+
+    public static ExprNode not(ExprNode right)
+    {
+        return new OperatorNodes.Not(right);
+    }
+
+    public static ExprNode negate(Token operator, ExprNode right)
+    {
+        return new OperatorNodes.Negate(operator, right);
+    }
+
+    public static ExprNode readLocal(int slot)
+    {
+        return new VariableNodes.ReadLocal(slot);
+    }
+
+    public static ExprNode readCell(int slot)
+    {
+        return new VariableNodes.ReadCell(slot);
+    }
+
+    public static ExprNode readUpvalue(int index)
+    {
+        return new VariableNodes.ReadUpvalue(index);
+    }
+
+    public static ExprNode readGlobal(int symbol, Token name, Environment globals)
+    {
+        return new VariableNodes.ReadGlobal(symbol, name, globals);
+    }
+
+    public static ExprNode writeLocal(int slot, ExprNode value)
+    {
+        return new VariableNodes.WriteLocal(slot, value);
+    }
+
+    public static ExprNode writeCell(int slot, ExprNode value)
+    {
+        return new VariableNodes.WriteCell(slot, value);
+    }
+
+    public static ExprNode writeUpvalue(int index, ExprNode value)
+    {
+        return new VariableNodes.WriteUpvalue(index, value);
+    }
+
+    public static ExprNode writeGlobal(int symbol, Token name, Environment globals, ExprNode value)
+    {
+        return new VariableNodes.WriteGlobal(symbol, name, globals, value);
+    }
+
+    public static ExprNode incrementLocal(int slot, int delta, Token name)
+    {
+        return new VariableNodes.IncrementLocal(slot, delta, name);
+    }
+
+    /**
+     * Value of the variable incremented by the delta, to be stored by a write node.
+     * @param read node reading the variable.
+     */
+    public static ExprNode increment(ExprNode read, int delta, Token name)
+    {
+        return new VariableNodes.Increment(read, delta, name);
+    }
+
+    /**
+     * @param paren the errors of the call are reported at.
+     * @param interpreter passed to the native functions.
+     */
+    public static ExprNode call(ExprNode callee, ExprNode[] arguments, Token paren, Interpreter interpreter)
+    {
+        return new FunctionNodes.Call(callee, arguments, paren, interpreter);
+    }
+
+    /**
+     * Node creating a function each time it's executed.
+     * @param locals number of the slots of the function's frame.
+     * @param cells slots of the parameters captured by nested functions.
+     * @param upvalues where the upvalues come from, as given by the <code>Resolver</code>.
+     */
+    public static ExprNode closure(String name, int arity, int locals, int[] cells, StmtNode body, int[] upvalues)
+    {
+        return new FunctionNodes.Closure(new FunctionNodes.Root(name, arity, locals, cells, body), upvalues);
+    }
+
+    public static StmtNode block(StmtNode[] statements)
+    {
+        return new StatementNodes.Block(statements);
+    }
+
+    public static StmtNode expression(ExprNode expression)
+    {
+        return new StatementNodes.Expression(expression);
+    }
+
+    public static StmtNode ifThen(ExprNode condition, StmtNode thenBranch, StmtNode elseBranch)
+    {
+        return new StatementNodes.If(condition, thenBranch, elseBranch);
+    }
+
+    /**
+     * @param increment evaluated after the body, even if it's left by <code>continue</code>, or null.
+     */
+    public static StmtNode loop(ExprNode condition, StmtNode body, ExprNode increment)
+    {
+        return new StatementNodes.While(condition, body, increment);
+    }
+
+    public static StmtNode breakLoop()
+    {
+        return StatementNodes.Jump.BREAK;
+    }
+
+    public static StmtNode continueLoop()
+    {
+        return StatementNodes.Jump.CONTINUE;
+    }
+
+    public static StmtNode ret(ExprNode value)
+    {
+        return new StatementNodes.Return(value);
+    }
+
+    public static StmtNode defineLocal(int slot, ExprNode value)
+    {
+        return new StatementNodes.DefineLocal(slot, value);
+    }
+
+    public static StmtNode defineCell(int slot, ExprNode value)
+    {
+        return new StatementNodes.DefineCell(slot, value);
+    }
+
+    /** Declaration of a captured function, which may refer to itself through its cell. */
+    public static StmtNode defineRecursive(int slot, ExprNode closure)
+    {
+        return new StatementNodes.DefineRecursive(slot, closure);
+    }
+
+    public static StmtNode defineGlobal(int symbol, Token name, Environment globals, ExprNode value)
+    {
+        return new StatementNodes.DefineGlobal(symbol, name, globals, value);
+    }
+
+    public static StmtNode duplicate(Token name, ExprNode value)
+    {
+        return new StatementNodes.Duplicate(name, value);
+    }
+
+    private Nodes() {}
+}
@@ -0,0 +1,703 @@
+package ru.beelang.nodes;
+
+import ru.beelang.Interpreter;
+import ru.beelang.Token;
+
+/**
+ * Nodes of the literals and the operators.<p/>
+ * A binary operator starts <code>Uninitialized</code>. Its first execution looks at the
+ * operands and replaces the node with the one specialized for their types: e.g.
+ * <code>AddInt</code> takes its operands as primitive ints from the typed
+ * <code>executeInt()</code> of the children and produces one the same way, so an int
+ * expression of a hot loop runs with neither boxing nor the switch over the operator
+ * and the operand types of <code>Interpreter.binary()</code>. Once the operands stop
+ * being ints, the node completes the operation with the values already evaluated
+ * and replaces itself with <code>Generic</code>, which is never specialized again.
+ */
+final class OperatorNodes
+{
+    static final class Literal extends ExprNode
+    {
+        private final Object value;
+
+        Literal(Object value)
+        {
+            this.value = value;
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            return value;
+        }
+    }
+
+    static final class IntLiteral extends ExprNode
+    {
+        private final int value;
+        private final Integer boxed;
+
+        IntLiteral(int value)
+        {
+            this.value = value;
+            this.boxed = value;
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            return boxed;
+        }
+
+        @Override
+        public int executeInt(Frame frame)
+        {
+            return value;
+        }
+    }
+
+    /** Operands of a binary operator, shared by all of its specializations. */
+    abstract static class Binary extends ExprNode
+    {
+        final int op;
+        final Token operator;
+        ExprNode left;
+        ExprNode right;
+
+        Binary(int op, Token operator, ExprNode left, ExprNode right)
+        {
+            this.op = op;
+            this.operator = operator;
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        /** Takes over the operands of the node being replaced. */
+        Binary(Binary node)
+        {
+            this(node.op, node.operator, node.left, node.right);
+        }
+
+        @Override
+        protected void replaceChild(Node child, Node node)
+        {
+            if (child == left)
+                left = (ExprNode)node;
+            else
+                right = (ExprNode)node;
+        }
+
+        /**
+         * Gives up the specialization: replaces the node with <code>Generic</code>
+         * and applies the operator to the operands already evaluated.
+         */
+        final Object generalize(Object l, Object r)
+        {
+            replace(new Generic(this));
+            return Interpreter.binary(operator, l, r);
+        }
+    }
+
+    static final class Uninitialized extends Binary
+    {
+        Uninitialized(int op, Token operator, ExprNode left, ExprNode right)
+        {
+            super(op, operator, left, right);
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            Object l = left.execute(frame);
+            Object r = right.execute(frame);
+
+            replace(specialize(l, r));
+            return Interpreter.binary(operator, l, r);
+        }
+
+        private Binary specialize(Object l, Object r)
+        {
+            if (l instanceof Integer && r instanceof Integer)
+            {
+                switch (op)
+                {
+                    case Nodes.ADD:           return new AddInt(this);
+                    case Nodes.SUBTRACT:      return new SubtractInt(this);
+                    case Nodes.MULTIPLY:      return new MultiplyInt(this);
+                    case Nodes.DIVIDE:        return new DivideInt(this);
+                    case Nodes.LESS:          return new LessInt(this);
+                    case Nodes.LESS_EQUAL:    return new LessEqualInt(this);
+                    case Nodes.GREATER:       return new GreaterInt(this);
+                    case Nodes.GREATER_EQUAL: return new GreaterEqualInt(this);
+                    case Nodes.EQUAL:         return new EqualInt(this);
+                    case Nodes.NOT_EQUAL:     return new NotEqualInt(this);
+                }
+            }
+
+            if (op == Nodes.ADD && l instanceof String && r instanceof String)
+                return new AddString(this);
+
+            return new Generic(this);
+        }
+    }
+
+    static final class Generic extends Binary
+    {
+        Generic(Binary node)
+        {
+            super(node);
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            Object l = left.execute(frame);
+            Object r = right.execute(frame);
+
+            return Interpreter.binary(operator, l, r);
+        }
+    }
+
+    static final class AddString extends Binary
+    {
+        AddString(Binary node)
+        {
+            super(node);
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            Object l = left.execute(frame);
+            Object r = right.execute(frame);
+
+            if (l instanceof String && r instanceof String)
+                return (String)l + (String)r;
+
+            return generalize(l, r);
+        }
+    }
+
+    static final class AddInt extends Binary
+    {
+        AddInt(Binary node)
+        {
+            super(node);
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            try
+            {
+                return executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                return e.getResult();
+            }
+        }
+
+        @Override
+        public int executeInt(Frame frame) throws UnexpectedResultException
+        {
+            int l;
+            try
+            {
+                l = left.executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                throw new UnexpectedResultException(generalize(e.getResult(), right.execute(frame)));
+            }
+
+            int r;
+            try
+            {
+                r = right.executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                throw new UnexpectedResultException(generalize(l, e.getResult()));
+            }
+
+            return l + r;
+        }
+    }
+
+    static final class SubtractInt extends Binary
+    {
+        SubtractInt(Binary node)
+        {
+            super(node);
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            try
+            {
+                return executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                return e.getResult();
+            }
+        }
+
+        @Override
+        public int executeInt(Frame frame) throws UnexpectedResultException
+        {
+            int l;
+            try
+            {
+                l = left.executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                throw new UnexpectedResultException(generalize(e.getResult(), right.execute(frame)));
+            }
+
+            int r;
+            try
+            {
+                r = right.executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                throw new UnexpectedResultException(generalize(l, e.getResult()));
+            }
+
+            return l - r;
+        }
+    }
+
+    static final class MultiplyInt extends Binary
+    {
+        MultiplyInt(Binary node)
+        {
+            super(node);
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            try
+            {
+                return executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                return e.getResult();
+            }
+        }
+
+        @Override
+        public int executeInt(Frame frame) throws UnexpectedResultException
+        {
+            int l;
+            try
+            {
+                l = left.executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                throw new UnexpectedResultException(generalize(e.getResult(), right.execute(frame)));
+            }
+
+            int r;
+            try
+            {
+                r = right.executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                throw new UnexpectedResultException(generalize(l, e.getResult()));
+            }
+
+            return l * r;
+        }
+    }
+
+    static final class DivideInt extends Binary
+    {
+        DivideInt(Binary node)
+        {
+            super(node);
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            try
+            {
+                return executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                return e.getResult();
+            }
+        }
+
+        @Override
+        public int executeInt(Frame frame) throws UnexpectedResultException
+        {
+            int l;
+            try
+            {
+                l = left.executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                throw new UnexpectedResultException(generalize(e.getResult(), right.execute(frame)));
+            }
+
+            int r;
+            try
+            {
+                r = right.executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                throw new UnexpectedResultException(generalize(l, e.getResult()));
+            }
+
+            if (r == 0)
+                Interpreter.binary(operator, l, r);    // reports the division by zero
+
+            return l / r;
+        }
+    }
+
+    static final class LessInt extends Binary
+    {
+        LessInt(Binary node)
+        {
+            super(node);
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            return executeCondition(frame);
+        }
+
+        @Override
+        public boolean executeCondition(Frame frame)
+        {
+            int l;
+            try
+            {
+                l = left.executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                return (boolean)generalize(e.getResult(), right.execute(frame));
+            }
+
+            int r;
+            try
+            {
+                r = right.executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                return (boolean)generalize(l, e.getResult());
+            }
+
+            return l < r;
+        }
+    }
+
+    static final class LessEqualInt extends Binary
+    {
+        LessEqualInt(Binary node)
+        {
+            super(node);
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            return executeCondition(frame);
+        }
+
+        @Override
+        public boolean executeCondition(Frame frame)
+        {
+            int l;
+            try
+            {
+                l = left.executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                return (boolean)generalize(e.getResult(), right.execute(frame));
+            }
+
+            int r;
+            try
+            {
+                r = right.executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                return (boolean)generalize(l, e.getResult());
+            }
+
+            return l <= r;
+        }
+    }
+
+    static final class GreaterInt extends Binary
+    {
+        GreaterInt(Binary node)
+        {
+            super(node);
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            return executeCondition(frame);
+        }
+
+        @Override
+        public boolean executeCondition(Frame frame)
+        {
+            int l;
+            try
+            {
+                l = left.executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                return (boolean)generalize(e.getResult(), right.execute(frame));
+            }
+
+            int r;
+            try
+            {
+                r = right.executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                return (boolean)generalize(l, e.getResult());
+            }
+
+            return l > r;
+        }
+    }
+
+    static final class GreaterEqualInt extends Binary
+    {
+        GreaterEqualInt(Binary node)
+        {
+            super(node);
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            return executeCondition(frame);
+        }
+
+        @Override
+        public boolean executeCondition(Frame frame)
+        {
+            int l;
+            try
+            {
+                l = left.executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                return (boolean)generalize(e.getResult(), right.execute(frame));
+            }
+
+            int r;
+            try
+            {
+                r = right.executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                return (boolean)generalize(l, e.getResult());
+            }
+
+            return l >= r;
+        }
+    }
+
+    static final class EqualInt extends Binary
+    {
+        EqualInt(Binary node)
+        {
+            super(node);
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            return executeCondition(frame);
+        }
+
+        @Override
+        public boolean executeCondition(Frame frame)
+        {
+            int l;
+            try
+            {
+                l = left.executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                return (boolean)generalize(e.getResult(), right.execute(frame));
+            }
+
+            int r;
+            try
+            {
+                r = right.executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                return (boolean)generalize(l, e.getResult());
+            }
+
+            return l == r;
+        }
+    }
+
+    static final class NotEqualInt extends Binary
+    {
+        NotEqualInt(Binary node)
+        {
+            super(node);
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            return executeCondition(frame);
+        }
+
+        @Override
+        public boolean executeCondition(Frame frame)
+        {
+            int l;
+            try
+            {
+                l = left.executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                return (boolean)generalize(e.getResult(), right.execute(frame));
+            }
+
+            int r;
+            try
+            {
+                r = right.executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                return (boolean)generalize(l, e.getResult());
+            }
+
+            return l != r;
+        }
+    }
+
+    /** <code>and</code>/<code>or</code>, evaluates to one of the operands. */
+    static final class Logical extends ExprNode
+    {
+        private final boolean or;
+        private ExprNode left;
+        private ExprNode right;
+
+        Logical(boolean or, ExprNode left, ExprNode right)
+        {
+            this.or = or;
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        @Override
+        protected void replaceChild(Node child, Node node)
+        {
+            if (child == left)
+                left = (ExprNode)node;
+            else
+                right = (ExprNode)node;
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            Object l = left.execute(frame);
+            if (Interpreter.isTruthy(l) == or)
+                return l;
+
+            return right.execute(frame);
+        }
+
+        @Override
+        public boolean executeCondition(Frame frame)
+        {
+            // the truthiness of the operand chosen is all the condition needs.
+            if (or)
+                return left.executeCondition(frame) || right.executeCondition(frame);
+
+            return left.executeCondition(frame) && right.executeCondition(frame);
+        }
+    }
+
+    static final class Not extends ExprNode
+    {
+        private ExprNode right;
+
+        Not(ExprNode right)
+        {
+            this.right = adopt(right);
+        }
+
+        @Override
+        protected void replaceChild(Node child, Node node)
+        {
+            right = (ExprNode)node;
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            return executeCondition(frame);
+        }
+
+        @Override
+        public boolean executeCondition(Frame frame)
+        {
+            return !right.executeCondition(frame);
+        }
+    }
+
+    static final class Negate extends ExprNode
+    {
+        private final Token operator;
+        private ExprNode right;
+
+        Negate(Token operator, ExprNode right)
+        {
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        protected void replaceChild(Node child, Node node)
+        {
+            right = (ExprNode)node;
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            try
+            {
+                return executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                return e.getResult();
+            }
+        }
+
+        @Override
+        public int executeInt(Frame frame) throws UnexpectedResultException
+        {
+            try
+            {
+                return -right.executeInt(frame);
+            }catch (UnexpectedResultException e)
+            {
+                throw new UnexpectedResultException(Interpreter.unary(operator, e.getResult()));
+            }
+        }
+    }
+
+    private OperatorNodes() {}
+}
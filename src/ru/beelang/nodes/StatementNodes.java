@@ -0,0 +1,306 @@
+package ru.beelang.nodes;
+
+import ru.beelang.Completion;
+import ru.beelang.Environment;
+import ru.beelang.RuntimeError;
+import ru.beelang.Token;
+
+/**
+ * Nodes of the statements.<p/>
+ * The conditions of <code>if</code> and <code>while</code> are evaluated by
+ * <code>executeCondition()</code>, so a specialized comparison hands over a primitive
+ * boolean instead of a <code>Boolean</code> to be checked for truthiness.
+ * <p>The control leaves a statement by its <code>Completion</code>: a block stops at the
+ * first statement which doesn't complete normally and hands its completion up, until
+ * the loop or the function consumes it.</p>
+ */
+final class StatementNodes
+{
+    static final class Block extends StmtNode
+    {
+        private final StmtNode[] statements;
+
+        Block(StmtNode[] statements)
+        {
+            this.statements = statements;
+            for (StmtNode statement : statements)
+                adopt(statement);
+        }
+
+        @Override
+        public Completion execute(Frame frame)
+        {
+            for (StmtNode statement : statements)
+            {
+                Completion completion = statement.execute(frame);
+                if (completion != Completion.NORMAL)
+                    return completion;
+            }
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class Expression extends StmtNode
+    {
+        private ExprNode expression;
+
+        Expression(ExprNode expression)
+        {
+            this.expression = adopt(expression);
+        }
+
+        @Override
+        protected void replaceChild(Node child, Node node)
+        {
+            expression = (ExprNode)node;
+        }
+
+        @Override
+        public Completion execute(Frame frame)
+        {
+            expression.execute(frame);
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class If extends StmtNode
+    {
+        private ExprNode condition;
+        private final StmtNode thenBranch;
+        private final StmtNode elseBranch;
+
+        If(ExprNode condition, StmtNode thenBranch, StmtNode elseBranch)
+        {
+            this.condition = adopt(condition);
+            this.thenBranch = adopt(thenBranch);
+            this.elseBranch = adopt(elseBranch);
+        }
+
+        @Override
+        protected void replaceChild(Node child, Node node)
+        {
+            condition = (ExprNode)node;
+        }
+
+        @Override
+        public Completion execute(Frame frame)
+        {
+            if (condition.executeCondition(frame))
+                return thenBranch.execute(frame);
+            else if (null != elseBranch)
+                return elseBranch.execute(frame);
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class While extends StmtNode
+    {
+        private ExprNode condition;
+        private final StmtNode body;
+        private ExprNode increment;
+
+        While(ExprNode condition, StmtNode body, ExprNode increment)
+        {
+            this.condition = adopt(condition);
+            this.body = adopt(body);
+            this.increment = adopt(increment);
+        }
+
+        @Override
+        protected void replaceChild(Node child, Node node)
+        {
+            if (child == condition)
+                condition = (ExprNode)node;
+            else
+                increment = (ExprNode)node;
+        }
+
+        @Override
+        public Completion execute(Frame frame)
+        {
+            while (condition.executeCondition(frame))
+            {
+                Completion completion = body.execute(frame);
+                if (completion == Completion.BREAK)
+                    break;
+                if (completion == Completion.RETURN)
+                    return completion;
+
+                if (null != increment)
+                    increment.execute(frame);
+            }
+            return Completion.NORMAL;
+        }
+    }
+
+    /**
+     * <code>break</code> or <code>continue</code>. Has no state, so a single
+     * instance of each is shared by all the loops.
+     */
+    static final class Jump extends StmtNode
+    {
+        static final Jump BREAK = new Jump(Completion.BREAK);
+        static final Jump CONTINUE = new Jump(Completion.CONTINUE);
+
+        private final Completion completion;
+
+        private Jump(Completion completion)
+        {
+            this.completion = completion;
+        }
+
+        @Override
+        public Completion execute(Frame frame)
+        {
+            return completion;
+        }
+    }
+
+    static final class Return extends StmtNode
+    {
+        private ExprNode value;
+
+        Return(ExprNode value)
+        {
+            this.value = adopt(value);
+        }
+
+        @Override
+        protected void replaceChild(Node child, Node node)
+        {
+            value = (ExprNode)node;
+        }
+
+        @Override
+        public Completion execute(Frame frame)
+        {
+            frame.returned = (null == value) ? null : value.execute(frame);
+            return Completion.RETURN;
+        }
+    }
+
+    /** Base of the declarations, holds the initializer, if there's one. */
+    abstract static class Define extends StmtNode
+    {
+        ExprNode value;
+
+        Define(ExprNode value)
+        {
+            this.value = adopt(value);
+        }
+
+        @Override
+        protected void replaceChild(Node child, Node node)
+        {
+            value = (ExprNode)node;
+        }
+
+        final Object evaluate(Frame frame)
+        {
+            return (null == value) ? null : value.execute(frame);
+        }
+    }
+
+    static final class DefineLocal extends Define
+    {
+        private final int slot;
+
+        DefineLocal(int slot, ExprNode value)
+        {
+            super(value);
+            this.slot = slot;
+        }
+
+        @Override
+        public Completion execute(Frame frame)
+        {
+            frame.locals[slot] = evaluate(frame);
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class DefineCell extends Define
+    {
+        private final int slot;
+
+        DefineCell(int slot, ExprNode value)
+        {
+            super(value);
+            this.slot = slot;
+        }
+
+        @Override
+        public Completion execute(Frame frame)
+        {
+            frame.locals[slot] = new Frame.Cell(evaluate(frame));
+            return Completion.NORMAL;
+        }
+    }
+
+    /**
+     * Declaration of a function captured by the functions nested in it: the cell is put
+     * into the slot before the closure is created, so the function may refer to itself.
+     */
+    static final class DefineRecursive extends Define
+    {
+        private final int slot;
+
+        DefineRecursive(int slot, ExprNode value)
+        {
+            super(value);
+            this.slot = slot;
+        }
+
+        @Override
+        public Completion execute(Frame frame)
+        {
+            Frame.Cell cell = new Frame.Cell(null);
+            frame.locals[slot] = cell;
+            cell.value = evaluate(frame);
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class DefineGlobal extends Define
+    {
+        private final int symbol;
+        private final Token name;
+        private final Environment globals;
+
+        DefineGlobal(int symbol, Token name, Environment globals, ExprNode value)
+        {
+            super(value);
+            this.symbol = symbol;
+            this.name = name;
+            this.globals = globals;
+        }
+
+        @Override
+        public Completion execute(Frame frame)
+        {
+            globals.defineGlobal(symbol, evaluate(frame), name);
+            return Completion.NORMAL;
+        }
+    }
+
+    /** Redeclaration of a local the <code>Resolver</code> has let through. */
+    static final class Duplicate extends Define
+    {
+        private final Token name;
+
+        Duplicate(Token name, ExprNode value)
+        {
+            super(value);
+            this.name = name;
+        }
+
+        @Override
+        public Completion execute(Frame frame)
+        {
+            evaluate(frame);
+            throw new RuntimeError(name, "identifier '" + name.lexeme + "' is already in use.");
+        }
+    }
+
+    private StatementNodes() {}
+}
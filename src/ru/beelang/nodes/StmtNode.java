@@ -0,0 +1,15 @@
+package ru.beelang.nodes;
+
+import ru.beelang.Completion;
+
+/**
+ * Node executed for its effect.
+ */
+public abstract class StmtNode extends Node
+{
+    /**
+     * @return the way the control leaves the statement. The value of a <code>return</code>
+     * is left in the <code>frame</code>.
+     */
+    public abstract Completion execute(Frame frame);
+}
@@ -0,0 +1,23 @@
+package ru.beelang.nodes;
+
+/**
+ * Thrown by a typed <code>execute</code> method of the node which has produced
+ * a value of another type. Carries the value, so it doesn't need to be evaluated again.
+ */
+public final class UnexpectedResultException extends Exception
+{
+    private static final long serialVersionUID = 1L;
+
+    private final Object result;
+
+    UnexpectedResultException(Object result)
+    {
+        super(null, null, false, false);
+        this.result = result;
+    }
+
+    Object getResult()
+    {
+        return result;
+    }
+}
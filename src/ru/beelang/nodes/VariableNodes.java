@@ -0,0 +1,335 @@
+package ru.beelang.nodes;
+
+import ru.beelang.Environment;
+import ru.beelang.RuntimeError;
+import ru.beelang.Token;
+
+/**
+ * Nodes reading and writing the variables, one class per kind the <code>Resolver</code>
+ * has given to the reference.<p/>
+ * A read of a local starts <code>ReadLocal</code> and replaces itself after the first
+ * execution with <code>ReadLocalInt</code> if the local has held an int, so the int
+ * operators above it get the primitive value with just the type check of the slot.
+ * A reference to a global looks its slot up once and replaces itself with the node
+ * which keeps the slot, the same inline cache the other engines have.
+ */
+final class VariableNodes
+{
+    static final class ReadLocal extends ExprNode
+    {
+        private final int slot;
+
+        ReadLocal(int slot)
+        {
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            Object value = frame.locals[slot];
+            replace((value instanceof Integer) ? new ReadLocalInt(slot) : new ReadLocalGeneric(slot));
+            return value;
+        }
+    }
+
+    static final class ReadLocalInt extends ExprNode
+    {
+        private final int slot;
+
+        ReadLocalInt(int slot)
+        {
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            return frame.locals[slot];
+        }
+
+        @Override
+        public int executeInt(Frame frame) throws UnexpectedResultException
+        {
+            Object value = frame.locals[slot];
+            if (value instanceof Integer)
+                return (int)value;
+
+            replace(new ReadLocalGeneric(slot));
+            throw new UnexpectedResultException(value);
+        }
+    }
+
+    static final class ReadLocalGeneric extends ExprNode
+    {
+        private final int slot;
+
+        ReadLocalGeneric(int slot)
+        {
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            return frame.locals[slot];
+        }
+    }
+
+    static final class ReadCell extends ExprNode
+    {
+        private final int slot;
+
+        ReadCell(int slot)
+        {
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            return ((Frame.Cell)frame.locals[slot]).value;
+        }
+    }
+
+    static final class ReadUpvalue extends ExprNode
+    {
+        private final int index;
+
+        ReadUpvalue(int index)
+        {
+            this.index = index;
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            return frame.upvalues[index].value;
+        }
+    }
+
+    static final class ReadGlobal extends ExprNode
+    {
+        private final int symbol;
+        private final Token name;
+        private final Environment globals;
+
+        ReadGlobal(int symbol, Token name, Environment globals)
+        {
+            this.symbol = symbol;
+            this.name = name;
+            this.globals = globals;
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            int slot = globals.slot(symbol, name);
+            replace(new ReadGlobalSlot(slot, globals));
+            return globals.get(slot);
+        }
+    }
+
+    static final class ReadGlobalSlot extends ExprNode
+    {
+        private final int slot;
+        private final Environment globals;
+
+        ReadGlobalSlot(int slot, Environment globals)
+        {
+            this.slot = slot;
+            this.globals = globals;
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            return globals.get(slot);
+        }
+    }
+
+    /** Base of the assignments, holds the value. */
+    abstract static class Write extends ExprNode
+    {
+        ExprNode value;
+
+        Write(ExprNode value)
+        {
+            this.value = adopt(value);
+        }
+
+        @Override
+        protected void replaceChild(Node child, Node node)
+        {
+            value = (ExprNode)node;
+        }
+    }
+
+    static final class WriteLocal extends Write
+    {
+        private final int slot;
+
+        WriteLocal(int slot, ExprNode value)
+        {
+            super(value);
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            return frame.locals[slot] = value.execute(frame);
+        }
+    }
+
+    static final class WriteCell extends Write
+    {
+        private final int slot;
+
+        WriteCell(int slot, ExprNode value)
+        {
+            super(value);
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            return ((Frame.Cell)frame.locals[slot]).value = value.execute(frame);
+        }
+    }
+
+    static final class WriteUpvalue extends Write
+    {
+        private final int index;
+
+        WriteUpvalue(int index, ExprNode value)
+        {
+            super(value);
+            this.index = index;
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            return frame.upvalues[index].value = value.execute(frame);
+        }
+    }
+
+    static final class WriteGlobal extends Write
+    {
+        private final int symbol;
+        private final Token name;
+        private final Environment globals;
+
+        WriteGlobal(int symbol, Token name, Environment globals, ExprNode value)
+        {
+            super(value);
+            this.symbol = symbol;
+            this.name = name;
+            this.globals = globals;
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            Object result = value.execute(frame);
+
+            int slot = globals.slot(symbol, name);
+            replace(new WriteGlobalSlot(slot, globals, value));
+            globals.set(slot, result);
+            return result;
+        }
+    }
+
+    static final class WriteGlobalSlot extends Write
+    {
+        private final int slot;
+        private final Environment globals;
+
+        WriteGlobalSlot(int slot, Environment globals, ExprNode value)
+        {
+            super(value);
+            this.slot = slot;
+            this.globals = globals;
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            Object result = value.execute(frame);
+            globals.set(slot, result);
+            return result;
+        }
+    }
+
+    /** <code>++</code>/<code>--</code> of a local, doesn't box when the parent takes an int. */
+    static final class IncrementLocal extends ExprNode
+    {
+        private final int slot;
+        private final int delta;
+        private final Token name;
+
+        IncrementLocal(int slot, int delta, Token name)
+        {
+            this.slot = slot;
+            this.delta = delta;
+            this.name = name;
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            return executeInt(frame);
+        }
+
+        @Override
+        public int executeInt(Frame frame)
+        {
+            Object value = frame.locals[slot];
+            if (!(value instanceof Integer))
+                throw new RuntimeError(name, "Operand must be of type int.");
+
+            int result = (int)value + delta;
+            frame.locals[slot] = result;
+            return result;
+        }
+    }
+
+    /**
+     * Value of <code>++</code>/<code>--</code> of a variable of any other kind, which is
+     * then stored by the <code>Write</code> node of that kind: <code>x++</code> runs as
+     * <code>x = (x + 1)</code> with the type check of the increment.
+     */
+    static final class Increment extends ExprNode
+    {
+        private final int delta;
+        private final Token name;
+        private ExprNode read;
+
+        Increment(ExprNode read, int delta, Token name)
+        {
+            this.read = adopt(read);
+            this.delta = delta;
+            this.name = name;
+        }
+
+        @Override
+        protected void replaceChild(Node child, Node node)
+        {
+            read = (ExprNode)node;
+        }
+
+        @Override
+        public Object execute(Frame frame)
+        {
+            Object value = read.execute(frame);
+            if (!(value instanceof Integer))
+                throw new RuntimeError(name, "Operand must be of type int.");
+
+            return (int)value + delta;
+        }
+    }
+
+    private VariableNodes() {}
+}
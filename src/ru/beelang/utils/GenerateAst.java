@@ -17,28 +17,36 @@ public class GenerateAst
         String outputDir = args[0];
         defineAst(outputDir, "Expr", Arrays.asList(
             "ArrayIndex : Token name, Expr index",
-            "Increment : Token name, Token sign",
-            "Assign   : Token name, Expr value",
+            "Increment : Token name, int symbol, Token sign | int kind, int slot",
+            "Assign   : Token name, int symbol, Expr value | int kind, int slot",
             "Binary   : Expr left, Token operator, Expr right",
-            "Call     : Expr callee, Token paren, List<Expr> arguments",
+            "Call     : Expr callee, Token paren, List<Expr> arguments | CallSite site",
             "Grouping : Expr expression",
             "Literal  : Object value",
             "Logical  : Expr left, Token operator, Expr right",
             "Unary    : Token operator, Expr right",
-            "Variable : Token name"
+            "Variable : Token name, int symbol | int kind, int slot"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
             "Block : List<Stmt> statements",
+            "Break      : Token keyword",
+            "Continue   : Token keyword",
             "Expression : Expr expression",
-            "Function   : Token name, List<Token> params, List<Stmt> body",
+            "Function   : Token name, int symbol, List<Token> params, List<Stmt> body | int kind, int slot, int locals, int[] upvalues, int[] cells",
             "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
-            "Return     : Token keyword, Expr value",
-            "Var        : Token name, Expr initializer",
-            "While      : Expr condition, Stmt body"
+            "Return     : Token keyword, Expr value | boolean tail",
+            "Var        : Token name, int symbol, Expr initializer | int kind, int slot",
+            "While      : Expr condition, Stmt body, Expr increment"
         ));
     }
 
+    /**
+     * Generates the base class and its subclasses.<p/>
+     * Each type is described as <code>"Name : fields"</code>. The fields may be followed
+     * by <code>"| fields"</code> - those aren't set by the constructor, but filled in later
+     * by the <code>Resolver</code>, so they are mutable and initialized to -1 (null for arrays).
+     */
     private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException
     {
         String path = outputDir + "/" + baseName + ".java";
@@ -84,6 +92,13 @@ public class GenerateAst
 
     private static void defineType(PrintWriter writer, String baseName, String className, String fieldList)
     {
+        String resolvedList = null;
+        if (fieldList.contains("|"))
+        {
+            resolvedList = fieldList.split("\\|")[1].trim();
+            fieldList = fieldList.split("\\|")[0].trim();
+        }
+
         writer.println("    static class " + className + " extends " + baseName + " {");
         // Constructor.
         writer.println("        " + className + "(" + fieldList + ") {");
@@ -111,6 +126,16 @@ public class GenerateAst
         {
             writer.println("        final " + field + ";");
         }
+
+        if (null != resolvedList)
+        {
+            writer.println("        /** Filled in by the Resolver. */");
+            for (String field : resolvedList.split(", "))
+            {
+                String init = field.startsWith("int ") ? " = -1;" : field.startsWith("boolean ") ? " = false;" : " = null;";
+                writer.println("        " + field + init);
+            }
+        }
         writer.println("    }");
         writer.println();
     }